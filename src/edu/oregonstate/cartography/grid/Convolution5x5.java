@@ -6,6 +6,12 @@ package edu.oregonstate.cartography.grid;
  */
 public class Convolution5x5 {
 
+    /**
+     * The minimum number of rows of the reduced grid computed by a single
+     * task.
+     */
+    private static final int REDUCE_BAND_HEIGHT = 16;
+
     /** 
      * kernel weights. A standard deviation of 1 would result in (9 elements):
      * 0.0001 0.0044 0.054 0.242 0.3989 0.242 0.054 0.0044 0.0001
@@ -27,7 +33,8 @@ public class Convolution5x5 {
 
         final int newCols = cols / 2 + cols % 2;
         final int newRows = rows / 2 + rows % 2;
-        Grid convGrid = new Grid(newCols, newRows, grid.getCellSize() * 2);
+        Grid convGrid = new Grid(newCols, newRows, grid.getCellSize() * 2,
+                grid.getStorageFactory());
         convGrid.setWest(grid.getWest());
         convGrid.setSouth(grid.getSouth());
 
@@ -47,22 +54,163 @@ public class Convolution5x5 {
             convGrid.setValue(g, cols / 2 - 1 + cols % 2, r / 2);
         }
 
-        // interior of grid
-        for (int r = 2; r < rows - 2; r += 2) {
-            for (int c = 2; c < cols - 2; c += 2) {
-                final float g = this.convolve(grid, c, r);
-                convGrid.setValue(g, c / 2, r / 2);
+        // interior of grid. Bands of rows of the reduced grid are computed
+        // by multiple threads.
+        final Grid src = grid;
+        RowBands.forEach(convGrid, REDUCE_BAND_HEIGHT, new RowBands.Task() {
+            @Override
+            public void run(Grid dstGrid, int startRow, int endRow) {
+                reduceInterior(src, dstGrid, startRow, endRow);
             }
-        }
+        });
 
         return convGrid;
     }
 
+    /**
+     * Computes interior rows of a reduced grid with a separable convolution.
+     * Each source row is first convolved horizontally at every second column,
+     * and the five horizontally convolved rows around every second source row
+     * are then combined vertically. Horizontally convolved rows are kept in a
+     * ring buffer and reused for the next row of the reduced grid. The
+     * results are identical to convolve(GridRow[], int).
+     *
+     * @param grid The grid to reduce.
+     * @param convGrid The reduced grid.
+     * @param startRow The first row of the reduced grid.
+     * @param endRow The row after the last row of the reduced grid.
+     */
+    private void reduceInterior(Grid grid, Grid convGrid, int startRow, int endRow) {
+        final int rows = grid.getRows();
+        final int cols = grid.getCols();
+
+        // interior rows of the reduced grid have a source row in 2..rows-3
+        startRow = Math.max(1, startRow);
+        endRow = Math.min((rows - 2 + 1) / 2, endRow);
+        if (startRow >= endRow) {
+            return;
+        }
+
+        // interior columns of the reduced grid have a source column in 2..cols-3
+        final int c0 = 1;
+        final int c1 = (cols - 2 + 1) / 2;
+
+        // horizontally convolved rows. Source row r is stored at r % 5
+        final float[][] ring = new float[5][c1];
+        final GridRow srcRow = grid.rowView();
+        int nextSrcRow = startRow * 2 - 2;
+        final GridRow dstRow = convGrid.rowView();
+        for (int r = startRow; r < endRow; r++) {
+            final int srcCenter = r * 2;
+            for (; nextSrcRow <= srcCenter + 2; nextSrcRow++) {
+                convolveRow(srcRow.moveTo(nextSrcRow), ring[nextSrcRow % 5], c0, c1);
+            }
+            final float[] h0 = ring[(srcCenter - 2) % 5];
+            final float[] h1 = ring[(srcCenter - 1) % 5];
+            final float[] h2 = ring[srcCenter % 5];
+            final float[] h3 = ring[(srcCenter + 1) % 5];
+            final float[] h4 = ring[(srcCenter + 2) % 5];
+            final float[] dst = dstRow.moveTo(r).array();
+            final int d = dstRow.offset();
+            for (int c = c0; c < c1; c++) {
+                final float res = wc * (h0[c] + h4[c]) + wb * (h1[c] + h3[c]) + wa * h2[c];
+                dst[d + c] = Float.isNaN(res)
+                        ? convolveWithVoid(grid, c * 2, srcCenter) : res;
+            }
+            dstRow.store();
+        }
+    }
+
+    /**
+     * Convolves a row horizontally at every second column. Identical to 
+     * convolveRow(GridRow, int).
+     *
+     * @param row The source row.
+     * @param h Receives the convolved value of source column c * 2 at c.
+     * @param c0 The first column of h to compute.
+     * @param c1 The column after the last column of h to compute.
+     */
+    private void convolveRow(GridRow row, float[] h, int c0, int c1) {
+        final float[] a = row.array();
+        final int offset = row.offset();
+        for (int c = c0; c < c1; c++) {
+            final int i = offset + c * 2;
+            final float v0 = a[i - 2];
+            final float v1 = a[i - 1];
+            final float v2 = a[i];
+            final float v3 = a[i + 1];
+            final float v4 = a[i + 2];
+            h[c] = wc * (v0 + v4) + wb * (v1 + v3) + wa * v2;
+        }
+    }
+
+    /**
+     * Convolves a source row horizontally at every second interior column.
+     * Used with reduceRow() for reducing a grid that is streamed row by row.
+     *
+     * @param row The values of the source row.
+     * @param cols The number of columns of the source grid.
+     * @param h Receives the convolved value of source column c * 2 at c, for
+     * c in 1..(cols - 1) / 2 - 1.
+     */
+    void convolveRow(float[] row, int cols, float[] h) {
+        final int c1 = (cols - 2 + 1) / 2;
+        for (int c = 1; c < c1; c++) {
+            final int i = c * 2;
+            h[c] = wc * (row[i - 2] + row[i + 2]) + wb * (row[i - 1] + row[i + 1]) + wa * row[i];
+        }
+    }
+
+    /**
+     * Computes a row of a reduced grid from source rows held in memory. The
+     * values are identical to the values computed by convolveToHalfSize().
+     *
+     * @param window Source row r is at window[r % 5]. Must contain the source
+     * rows around dstRow * 2, from two rows above to two rows below, and the
+     * last two source rows for the last row of the reduced grid.
+     * @param hWindow The rows of window convolved with convolveRow(), at the
+     * same positions as in window.
+     * @param cols The number of columns of the source grid.
+     * @param rows The number of rows of the source grid.
+     * @param dstRow The row of the reduced grid to compute.
+     * @param dst Receives the values of the reduced row.
+     */
+    void reduceRow(float[][] window, float[][] hWindow, int cols, int rows,
+            int dstRow, float[] dst) {
+        final int newCols = cols / 2 + cols % 2;
+        final int newRows = rows / 2 + rows % 2;
+        final int srcCenter = dstRow * 2;
+        if (dstRow == 0 || dstRow == newRows - 1) {
+            // the last reduced row is centered on the last source row,
+            // except for the first and last column
+            final int r = dstRow == 0 ? 0 : rows - 1;
+            for (int c = 1; c < newCols - 1; c++) {
+                dst[c] = convolveBorder(window, cols, rows, c * 2, r);
+            }
+        } else {
+            final float[] h0 = hWindow[(srcCenter - 2) % 5];
+            final float[] h1 = hWindow[(srcCenter - 1) % 5];
+            final float[] h2 = hWindow[srcCenter % 5];
+            final float[] h3 = hWindow[(srcCenter + 1) % 5];
+            final float[] h4 = hWindow[(srcCenter + 2) % 5];
+            for (int c = 1; c < newCols - 1; c++) {
+                final float res = wc * (h0[c] + h4[c]) + wb * (h1[c] + h3[c]) + wa * h2[c];
+                dst[c] = Float.isNaN(res)
+                        ? convolveWithVoid(window, cols, rows, c * 2, srcCenter) : res;
+            }
+        }
+
+        // the last column is centered on the last source column
+        dst[0] = convolveBorder(window, cols, rows, 0, srcCenter);
+        dst[newCols - 1] = convolveBorder(window, cols, rows, cols - 1, srcCenter);
+    }
+
     public Grid convolve(Grid geoGrid) {
 
         final int rows = geoGrid.getRows();
         final int cols = geoGrid.getCols();
-        Grid convoluted = new Grid(cols, rows, geoGrid.getCellSize());
+        Grid convoluted = new Grid(cols, rows, geoGrid.getCellSize(),
+                geoGrid.getStorageFactory());
         //convoluted.setWest(geoGrid.getWest());
         //convoluted.setNorth(geoGrid.getNorth());
 
@@ -83,10 +231,16 @@ public class Convolution5x5 {
         }
 
         // interior of grid
+        final GridRow[] srcRows = rowViews(geoGrid);
+        final GridRow dstRow = convoluted.rowView();
         for (int r = 2; r < rows - 2; r++) {
+            moveTo(srcRows, r);
+            final float[] dst = dstRow.moveTo(r).array();
+            final int d = dstRow.offset();
             for (int c = 2; c < cols - 2; c++) {
-                convoluted.setValue(this.convolve(geoGrid, c, r), c, r);
+                dst[d + c] = this.convolve(srcRows, c);
             }
+            dstRow.store();
         }
 
         return convoluted;
@@ -146,25 +300,83 @@ public class Convolution5x5 {
 
     }
 
-    private float convolve(Grid geoGrid, int col, int row) {
+    /**
+     * Identical to convolveBorder(Grid, int, int) for source rows held in
+     * memory. Source row r is at window[r % 5].
+     */
+    private float convolveBorder(float[][] window, int cols, int rows, int col, int row) {
+        final int r0 = row - 2 < 0 ? 0 : row - 2;
+        final int r1 = row - 1 < 0 ? 0 : row - 1;
+        final int r3 = row + 1 >= rows ? rows - 1 : row + 1;
+        final int r4 = row + 2 >= rows ? rows - 1 : row + 2;
+
+        float v0 = convolveBorderRow(window[r0 % 5], cols, col);
+        float v1 = convolveBorderRow(window[r1 % 5], cols, col);
+        float v2 = convolveBorderRow(window[row % 5], cols, col);
+        float v3 = convolveBorderRow(window[r3 % 5], cols, col);
+        float v4 = convolveBorderRow(window[r4 % 5], cols, col);
+        final float res = wc * (v0 + v4) + wb * (v1 + v3) + wa * v2;
+        return Float.isNaN(res) ? convolveWithVoid(window, cols, rows, col, row) : res;
+    }
+
+    private float convolveBorderRow(float[] row, int cols, int col) {
+        final int c0 = col - 2 < 0 ? 0 : col - 2;
+        final int c1 = col - 1 < 0 ? 0 : col - 1;
+        final int c3 = col + 1 >= cols ? cols - 1 : col + 1;
+        final int c4 = col + 2 >= cols ? cols - 1 : col + 2;
+        return wc * (row[c0] + row[c4]) + wb * (row[c1] + row[c3]) + wa * row[col];
+    }
+
+    /**
+     * Creates five views on the rows of a grid for convolving interior rows.
+     *
+     * @param grid The grid to convolve.
+     * @return Five views.
+     */
+    private static GridRow[] rowViews(Grid grid) {
+        final GridRow[] views = new GridRow[5];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = grid.rowView();
+        }
+        return views;
+    }
+
+    /**
+     * Moves five views to the rows row - 2 to row + 2.
+     *
+     * @param views The views.
+     * @param row The central row.
+     */
+    private static void moveTo(GridRow[] views, int row) {
+        for (int i = 0; i < views.length; i++) {
+            views[i].moveTo(row - 2 + i);
+        }
+    }
+
+    private float convolve(GridRow[] rows, int col) {
         
-        final float v0 = convolveRow(geoGrid, col, row - 2);
-        final float v1 = convolveRow(geoGrid, col, row - 1);
-        final float v2 = convolveRow(geoGrid, col, row);
-        final float v3 = convolveRow(geoGrid, col, row + 1);
-        final float v4 = convolveRow(geoGrid, col, row + 2);
+        final float v0 = convolveRow(rows[0], col);
+        final float v1 = convolveRow(rows[1], col);
+        final float v2 = convolveRow(rows[2], col);
+        final float v3 = convolveRow(rows[3], col);
+        final float v4 = convolveRow(rows[4], col);
         final float res = wc * (v0 + v4) + wb * (v1 + v3) + wa * v2;
-        return Float.isNaN(res) ? convolveWithVoid(geoGrid, col, row) : res;
+        if (Float.isNaN(res)) {
+            return convolveWithVoid(rows[2].getGrid(), col, rows[2].getRow());
+        }
+        return res;
         
     }
 
-    private float convolveRow(Grid geoGrid, int col, int row) {
+    private float convolveRow(GridRow row, int col) {
         
-        final float v0 = geoGrid.getValue(col - 2, row);
-        final float v1 = geoGrid.getValue(col - 1, row);
-        final float v2 = geoGrid.getValue(col, row);
-        final float v3 = geoGrid.getValue(col + 1, row);
-        final float v4 = geoGrid.getValue(col + 2, row);
+        final float[] a = row.array();
+        final int i = row.offset() + col;
+        final float v0 = a[i - 2];
+        final float v1 = a[i - 1];
+        final float v2 = a[i];
+        final float v3 = a[i + 1];
+        final float v4 = a[i + 2];
         return wc * (v0 + v4) + wb * (v1 + v3) + wa * v2;
         
     }
@@ -224,4 +436,30 @@ public class Convolution5x5 {
         return convolveWithVoid(v0, v1, v2, v3, v4);
 
     }
+
+    /**
+     * Identical to convolveWithVoid(Grid, int, int) for source rows held in
+     * memory. Source row r is at window[r % 5].
+     */
+    private float convolveWithVoid(float[][] window, int cols, int rows, int col, int row) {
+
+        final float v0 = convolveRowWithVoid(window[Math.max(0, row - 2) % 5], cols, col);
+        final float v1 = convolveRowWithVoid(window[Math.max(0, row - 1) % 5], cols, col);
+        final float v2 = convolveRowWithVoid(window[row % 5], cols, col);
+        final float v3 = convolveRowWithVoid(window[Math.min(rows - 1, row + 1) % 5], cols, col);
+        final float v4 = convolveRowWithVoid(window[Math.min(rows - 1, row + 2) % 5], cols, col);
+        return convolveWithVoid(v0, v1, v2, v3, v4);
+
+    }
+
+    private float convolveRowWithVoid(float[] row, int cols, int col) {
+
+        final float v0 = row[Math.max(0, col - 2)];
+        final float v1 = row[Math.max(0, col - 1)];
+        final float v2 = row[col];
+        final float v3 = row[Math.min(cols - 1, col + 1)];
+        final float v4 = row[Math.min(cols - 1, col + 2)];
+        return convolveWithVoid(v0, v1, v2, v3, v4);
+
+    }
 }
@@ -30,10 +30,13 @@ public class ESRIASCIIGridExporter {
             writer.write("yllcorner " + geoGrid.getSouth() + lineSeparator);
             writer.write("cellsize " + geoGrid.getCellSize() + lineSeparator);
             writer.write("nodata_value " + voidValueStr + lineSeparator);
-            float[][] grid = geoGrid.getGrid();
-            for (int r = 0; r < grid.length; ++r) {
-                for (int c = 0; c < grid[0].length; ++c) {
-                    float v = grid[r][c];
+            GridRow gridRow = geoGrid.rowView();
+            final int nRows = geoGrid.getRows();
+            final int nCols = geoGrid.getCols();
+            for (int r = 0; r < nRows; ++r) {
+                gridRow.moveTo(r);
+                for (int c = 0; c < nCols; ++c) {
+                    float v = gridRow.get(c);
                     if (Float.isNaN(v)) {
                         writer.write(voidValueStr);
                     } else {
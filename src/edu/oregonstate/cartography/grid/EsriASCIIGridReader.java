@@ -16,7 +16,13 @@ public class EsriASCIIGridReader {
 
     volatile private Exception producerConsumerException = null;
     
-    private EsriASCIIGridReader() {
+    /**
+     * Creates the storage for the values of the read grid.
+     */
+    private final GridStorage.Factory storageFactory;
+    
+    private EsriASCIIGridReader(GridStorage.Factory storageFactory) {
+        this.storageFactory = storageFactory;
     }
 
     /**
@@ -76,10 +82,22 @@ public class EsriASCIIGridReader {
      */
     public static Grid read(String filePath, ProgressIndicator progressIndicator)
             throws java.io.IOException {
+        return EsriASCIIGridReader.read(filePath, progressIndicator, GridStorage.HEAP);
+    }
+
+    /** Read a Grid from a file in ESRI ASCII format.
+     * @param filePath The path to the file to be read.
+     * @param progressIndicator A WorkerProgress to inform about the progress.
+     * @param storageFactory Creates the storage for the grid values.
+     * @return The read grid.
+     * @throws java.io.IOException
+     */
+    public static Grid read(String filePath, ProgressIndicator progressIndicator,
+            GridStorage.Factory storageFactory) throws java.io.IOException {
 
         File file = new File(filePath);
         InputStream fis = new FileInputStream(file.getAbsolutePath());
-        EsriASCIIGridReader esriReader = new EsriASCIIGridReader();
+        EsriASCIIGridReader esriReader = new EsriASCIIGridReader(storageFactory);
         Grid grid = esriReader.read(fis, progressIndicator);
         if (progressIndicator != null && progressIndicator.isCancelled()) {
             return null;
@@ -96,7 +114,7 @@ public class EsriASCIIGridReader {
     public static Grid readStream(InputStream input, ProgressIndicator progressIndicator)
             throws IOException {
         
-        EsriASCIIGridReader esriReader = new EsriASCIIGridReader();
+        EsriASCIIGridReader esriReader = new EsriASCIIGridReader(GridStorage.HEAP);
         Grid grid = esriReader.read(input, progressIndicator);
         if (progressIndicator != null && progressIndicator.isCancelled()) {
             return null;
@@ -126,7 +144,8 @@ public class EsriASCIIGridReader {
             br = new BufferedReader(in);
             GridHeaderImporter header = new GridHeaderImporter();
             String firstGridLine = header.readHeader(br, true);
-            Grid grid = new Grid(header.getCols(), header.getRows(), header.getCellSize());
+            Grid grid = new Grid(header.getCols(), header.getRows(),
+                    header.getCellSize(), storageFactory);
             grid.setWest(header.getWest());
             grid.setSouth(header.getSouth());
 
@@ -218,7 +237,7 @@ public class EsriASCIIGridReader {
         private final float noDataValue;
         private final Grid grid;
         private final ProgressIndicator progressIndicator;
-        private int counter = 0;
+        private long counter = 0;
 
         Consumer(BlockingQueue<String> queue, Grid grid, float noDataValue, ProgressIndicator progressIndicator) {
             this.queue = queue;
@@ -232,7 +251,7 @@ public class EsriASCIIGridReader {
             try {
                 final int nCols = grid.getCols();
                 final int nRows = grid.getRows();
-                final int nbrValues = nRows * nCols;
+                final long nbrValues = (long) nRows * nCols;
                 do {
                     String str = queue.take();
                     
@@ -256,8 +275,8 @@ public class EsriASCIIGridReader {
                             && !Thread.currentThread().isInterrupted()
                             // check whether producer thread has encountered an exception
                             && producerConsumerException == null) {
-                        int col = counter % nCols;
-                        int row = counter / nCols;
+                        int col = (int) (counter % nCols);
+                        int row = (int) (counter / nCols);
                         ++counter;
                         
                         // make sure we do not read too many cell values
@@ -270,7 +289,7 @@ public class EsriASCIIGridReader {
                     
                     // update progress info
                     if (progressIndicator != null) {
-                        int row = counter / nCols;
+                        long row = counter / nCols;
                         int perc = (int) ((row + 1d) / nRows * 100);
                         if (!progressIndicator.progress(perc)) {
                             counter = nbrValues;
@@ -0,0 +1,213 @@
+package edu.oregonstate.cartography.grid;
+
+import java.util.Arrays;
+
+/**
+ * The levels of a Laplacian pyramid expanded to the size of the most detailed
+ * level. A weighted sum of the levels is then computed in a single pass
+ * without expanding levels, which is fast enough for updating a generalized
+ * grid while a slider is dragged. The expanded levels require one full size
+ * grid per level of the pyramid, so they are only created within a memory
+ * budget.
+ *
+ * The sum equals LaplacianPyramid.sumLevels() up to rounding, except close to
+ * void values, where the void values of each level are expanded separately.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class FullResolutionBands {
+
+    /**
+     * The minimum number of rows in a band of rows summed by one thread.
+     */
+    private static final int SUM_BAND_HEIGHT = 16;
+
+    /**
+     * The levels expanded to full resolution. The first level is the most
+     * detailed level of the pyramid, which is not copied.
+     */
+    private final Grid[] bands;
+
+    /**
+     * Cached sum of the coarsest expanded levels, or null.
+     */
+    private Grid coarseSum;
+
+    /**
+     * The most detailed level included in coarseSum, or -1.
+     */
+    private int coarseSumLevelID = -1;
+
+    private FullResolutionBands(Grid[] bands) {
+        this.bands = bands;
+    }
+
+    /**
+     * Returns the number of bytes required for expanding the levels of a
+     * pyramid, including a grid caching the sum of coarse levels. Values are
+     * counted as 4-byte floats.
+     *
+     * @param pyramid The pyramid.
+     * @return The number of bytes.
+     */
+    public static long requiredBytes(LaplacianPyramid pyramid) {
+        Grid[] levels = pyramid.getLevels();
+        return 4L * levels[0].getCols() * levels[0].getRows() * levels.length;
+    }
+
+    /**
+     * Expands the levels of a pyramid to the size of the most detailed level.
+     *
+     * @param pyramid The pyramid.
+     * @param maxBytes The maximum number of bytes for the expanded levels.
+     * @param storage The storage for the expanded levels.
+     * @return The expanded levels, or null if they would require more than
+     * maxBytes.
+     */
+    public static FullResolutionBands create(LaplacianPyramid pyramid,
+            long maxBytes, GridStorage.Factory storage) {
+        if (requiredBytes(pyramid) > maxBytes) {
+            return null;
+        }
+        Grid[] levels = pyramid.getLevels();
+        Grid[] bands = new Grid[levels.length];
+        bands[0] = levels[0];
+        for (int i = 1; i < levels.length; i++) {
+            // expand level by level to the size of the next larger level
+            Grid band = levels[i];
+            for (int k = i - 1; k >= 0; k--) {
+                Grid expanded;
+                if (k == 0) {
+                    expanded = new Grid(levels[0].getCols(), levels[0].getRows(),
+                            levels[0].getCellSize(), storage);
+                    expanded.setWest(levels[0].getWest());
+                    expanded.setSouth(levels[0].getSouth());
+                    LaplacianPyramid.expandAndAdd(band, expanded, null, 0f);
+                } else {
+                    expanded = LaplacianPyramid.expand(band,
+                            levels[k].getCols(), levels[k].getRows());
+                }
+                // intermediate expansions are not referenced elsewhere
+                if (band != levels[i]) {
+                    GridPool.SHARED.release(band);
+                }
+                band = expanded;
+            }
+            bands[i] = band;
+        }
+        return new FullResolutionBands(bands);
+    }
+
+    /**
+     * Computes the weighted sum of the expanded levels.
+     *
+     * The sum of the coarsest levels with weights of 1 is cached, as
+     * generalization typically changes the weights of the more detailed
+     * levels only. Each row of the destination grid then is the sum of the
+     * cached row and of the rows of the other levels.
+     *
+     * @param levelWeights Weights of the levels. The first value is the weight
+     * for the highest frequency band.
+     * @param dst Destination grid with the size of the most detailed level.
+     * @return dst
+     */
+    public synchronized Grid sum(final float[] levelWeights, Grid dst) {
+        if (levelWeights.length != bands.length) {
+            throw new IllegalArgumentException("incorrect number of pyramid weights");
+        }
+        if (!dst.isIdenticalInSize(bands[0])) {
+            throw new IllegalArgumentException("destination grid of wrong size");
+        }
+
+        // find the coarsest levels with weights of 1
+        int unitLevelID = bands.length;
+        while (unitLevelID > 0 && levelWeights[unitLevelID - 1] == 1f) {
+            unitLevelID--;
+        }
+
+        // update the cached sum of the coarsest levels if it does not
+        // contain the same levels. A single level is not cached.
+        final int coarseLevelID = unitLevelID;
+        if (coarseLevelID < bands.length - 1 && coarseLevelID != coarseSumLevelID) {
+            if (coarseSum == null) {
+                coarseSum = new Grid(dst.getCols(), dst.getRows(),
+                        dst.getCellSize(), bands[bands.length - 1].getStorageFactory());
+            }
+            RowBands.forEach(coarseSum, SUM_BAND_HEIGHT, new RowBands.Task() {
+                @Override
+                public void run(Grid grid, int startRow, int endRow) {
+                    sumRows(null, grid, startRow, endRow, null, bands.length, coarseLevelID);
+                }
+            });
+            coarseSum.modified();
+            coarseSumLevelID = coarseLevelID;
+        }
+
+        final Grid base = coarseLevelID == coarseSumLevelID ? coarseSum : null;
+        final int fromLevelID = base == null ? bands.length : coarseLevelID;
+        RowBands.forEach(dst, SUM_BAND_HEIGHT, new RowBands.Task() {
+            @Override
+            public void run(Grid grid, int startRow, int endRow) {
+                sumRows(levelWeights, grid, startRow, endRow, base, fromLevelID, 0);
+            }
+        });
+        dst.modified();
+        return dst;
+    }
+
+    /**
+     * Computes a weighted sum of expanded levels for a band of rows. Levels
+     * are added from the coarsest to the most detailed level, and levels with
+     * a weight of 0 are skipped.
+     *
+     * @param levelWeights Weights of the levels, or null for weights of 1.
+     * @param dst The destination grid.
+     * @param startRow The first row.
+     * @param endRow The row after the last row.
+     * @param base A sum of levels to add the levels to, or null.
+     * @param fromLevelID The level after the coarsest level to add.
+     * @param toLevelID The most detailed level to add.
+     */
+    private void sumRows(float[] levelWeights, Grid dst, int startRow, int endRow,
+            Grid base, int fromLevelID, int toLevelID) {
+        final int cols = dst.getCols();
+        final GridRow dstRow = dst.rowView();
+        final GridRow baseRow = base == null ? null : base.rowView();
+        final GridRow[] bandRows = new GridRow[bands.length];
+        for (int i = toLevelID; i < fromLevelID; i++) {
+            bandRows[i] = bands[i].rowView();
+        }
+        for (int r = startRow; r < endRow; r++) {
+            final float[] d = dstRow.moveTo(r).array();
+            final int o = dstRow.offset();
+            boolean first = true;
+            if (baseRow != null) {
+                System.arraycopy(baseRow.moveTo(r).array(), baseRow.offset(), d, o, cols);
+                first = false;
+            }
+            for (int i = fromLevelID - 1; i >= toLevelID; i--) {
+                final float w = levelWeights == null ? 1f : levelWeights[i];
+                if (w == 0f) {
+                    continue;
+                }
+                final float[] b = bandRows[i].moveTo(r).array();
+                final int ob = bandRows[i].offset();
+                if (first) {
+                    for (int c = 0; c < cols; c++) {
+                        d[o + c] = b[ob + c] * w;
+                    }
+                    first = false;
+                } else {
+                    for (int c = 0; c < cols; c++) {
+                        d[o + c] = d[o + c] + b[ob + c] * w;
+                    }
+                }
+            }
+            if (first) {
+                Arrays.fill(d, o, o + cols, 0f);
+            }
+            dstRow.store();
+        }
+    }
+}
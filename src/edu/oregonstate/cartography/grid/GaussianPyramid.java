@@ -1,6 +1,10 @@
 package edu.oregonstate.cartography.grid;
 
+import edu.oregonstate.cartography.grid.operators.ThreadedGridOperator;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Gaussian pyramid.
@@ -12,6 +16,12 @@ public class GaussianPyramid {
     private static int MIN_SIDE_LENGTH = 2;
     private final Grid[] pyramid;
 
+    /**
+     * Levels expanded to full resolution by getExpandedPyramid(). Null for
+     * levels that have not been expanded.
+     */
+    private Grid[] expandedPyramid;
+
 
     public static Grid[] createPyramid(Grid geoGrid, int maxLevelsCount) {
         return GaussianPyramid.createPyramid(geoGrid, maxLevelsCount,
@@ -59,17 +69,149 @@ public class GaussianPyramid {
         return this.pyramid;
     }
     
+    /**
+     * Receives levels expanded to full resolution, one level at a time.
+     */
+    public interface ExpandedLevelHandler {
+
+        /**
+         * Called for each expanded level.
+         *
+         * @param level The level of the pyramid.
+         * @param expanded The level expanded to full resolution.
+         */
+        void levelExpanded(int level, Grid expanded);
+    }
+
+    /**
+     * Expands a level of the pyramid to full resolution.
+     */
+    private final class Expansion extends RecursiveTask<Grid> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int level;
+
+        Expansion(int level) {
+            this.level = level;
+        }
+
+        @Override
+        protected Grid compute() {
+            Grid expanded = pyramid[level];
+            for (int k = 0; k < level; k++) {
+                Grid grid = LaplacianPyramid.expand(expanded,
+                        expanded.getCols() * 2, expanded.getRows() * 2);
+                // intermediate expansions are not referenced elsewhere
+                if (k > 0) {
+                    GridPool.SHARED.release(expanded);
+                }
+                expanded = grid;
+            }
+            return expanded;
+        }
+    }
+
+    /**
+     * Expands all levels to full resolution. Levels are expanded in parallel,
+     * and expanded levels are kept by this pyramid and returned by later
+     * calls.
+     *
+     * @return The expanded levels. The grid at position 0 is the full
+     * resolution level.
+     */
     public Grid[] getExpandedPyramid() {
-        Grid[] expandedPyramid = new Grid[pyramid.length];
-        for (int i = 0; i < pyramid.length; i++) {
-            expandedPyramid[i] = pyramid[i];
-            for (int k = 0; k < i; k++) {
-                expandedPyramid[i] = LaplacianPyramid.expand(expandedPyramid[i], 
-                        expandedPyramid[i].getCols() * 2,
-                        expandedPyramid[i].getRows() * 2);
+        int[] levels = new int[pyramid.length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = i;
+        }
+        return getExpandedPyramid(levels);
+    }
+
+    /**
+     * Expands selected levels to full resolution. Levels are expanded in
+     * parallel, and expanded levels are kept by this pyramid and returned by
+     * later calls.
+     *
+     * @param levels The levels to expand.
+     * @return An array with an element for each level of the pyramid. Levels
+     * that were not selected are null.
+     */
+    public Grid[] getExpandedPyramid(int... levels) {
+        final ArrayList<Expansion> expansions = new ArrayList<>();
+        for (int level : levels) {
+            if (getExpandedLevel(level) == null) {
+                expansions.add(new Expansion(level));
+            }
+        }
+        ThreadedGridOperator.getSharedPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(expansions);
+            }
+        });
+
+        synchronized (this) {
+            for (Expansion expansion : expansions) {
+                if (expandedPyramid[expansion.level] == null) {
+                    expandedPyramid[expansion.level] = expansion.join();
+                }
             }
+            Grid[] selected = new Grid[pyramid.length];
+            for (int level : levels) {
+                selected[level] = expandedPyramid[level];
+            }
+            return selected;
+        }
+    }
+
+    /**
+     * Expands selected levels to full resolution and passes them to a
+     * handler in the order of the selection. Levels are expanded in
+     * parallel, but at most one level per thread of the shared pool is
+     * expanded ahead of the handler. Levels are not kept by this pyramid,
+     * such that the handler can process one level after the other without
+     * holding all levels in memory. Levels kept by getExpandedPyramid() are
+     * reused.
+     *
+     * @param levels The levels to expand.
+     * @param handler Receives the expanded levels. Called by the calling
+     * thread.
+     */
+    public void expandLevels(int[] levels, ExpandedLevelHandler handler) {
+        final ForkJoinPool pool = ThreadedGridOperator.getSharedPool();
+        final int ahead = pool.getParallelism();
+        final Expansion[] expansions = new Expansion[levels.length];
+        int submitted = 0;
+        for (int i = 0; i < levels.length; i++) {
+            // start the expansion of the following levels
+            for (; submitted < Math.min(levels.length, i + ahead); submitted++) {
+                if (getExpandedLevel(levels[submitted]) == null) {
+                    expansions[submitted] = new Expansion(levels[submitted]);
+                    pool.execute(expansions[submitted]);
+                }
+            }
+            Grid expanded = expansions[i] == null
+                    ? getExpandedLevel(levels[i]) : expansions[i].join();
+            expansions[i] = null;
+            handler.levelExpanded(levels[i], expanded);
+        }
+    }
+
+    /**
+     * Returns a level expanded to full resolution if it is available without
+     * expanding.
+     *
+     * @param level The level.
+     * @return The expanded level, or null if the level has not been expanded
+     * by getExpandedPyramid().
+     */
+    private synchronized Grid getExpandedLevel(int level) {
+        if (expandedPyramid == null) {
+            expandedPyramid = new Grid[pyramid.length];
+            expandedPyramid[0] = pyramid[0];
         }
-        return expandedPyramid;
+        return expandedPyramid[level];
     }
 
     public Grid getFullResolutionLevel() {
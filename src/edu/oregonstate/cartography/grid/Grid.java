@@ -22,9 +22,38 @@ public final class Grid {
      */
     private double cellSize;
     /**
-     * The grid values.
+     * The storage for the grid values.
      */
-    private float[][] grid;
+    private final GridStorage storage;
+
+    /**
+     * The factory that created the storage. Used to create storages for
+     * copies of this grid.
+     */
+    private final GridStorage.Factory storageFactory;
+
+    /**
+     * The grid values if they are stored in a single array on the heap,
+     * otherwise null. All rows are stored one after the other. The value at
+     * col/row is at index row * stride + col.
+     */
+    private final float[] grid;
+
+    /**
+     * The number of array elements between the first values of two
+     * consecutive rows.
+     */
+    private final int stride;
+
+    /**
+     * The number of columns.
+     */
+    private final int cols;
+
+    /**
+     * The number of rows.
+     */
+    private final int rows;
 
     /**
      * horizontal coordinate of west border
@@ -37,20 +66,51 @@ public final class Grid {
     private double south = 0;
 
     /**
-     * Copy constructor
+     * Counts modifications of the grid values. Used to detect whether cached
+     * statistics are outdated.
+     */
+    private volatile long modificationCount = 0;
+
+    /**
+     * True if setValue() has changed a value since the modification count
+     * was last incremented. The flag is added to the count when the count is
+     * read, such that setValue() only writes to a shared field for the first
+     * of a series of changes.
+     */
+    private volatile boolean valueSet = false;
+
+    /**
+     * Cached statistics or null if the statistics have not been computed or
+     * the grid has been modified since.
+     */
+    private volatile GridStatistics statistics;
+
+    /**
+     * Cached void mask or null if the mask has not been created or the grid
+     * has been modified since.
+     */
+    private volatile VoidMask voidMask;
+
+    /**
+     * Copy constructor. The copy uses the same kind of storage as the
+     * template.
      *
      * @param template
      */
     public Grid(Grid template) {
-        this(template.getCols(), template.getRows(), template.getCellSize());
+        this(template.getCols(), template.getRows(), template.getCellSize(),
+                template.storageFactory);
         west = template.getWest();
         south = template.getSouth();
 
-        // deep clone grid array
-        int nRows = template.getRows();
-        int nCols = template.getCols();
-        for (int row = 0; row < nRows; row++) {
-            System.arraycopy(template.grid[row], 0, grid[row], 0, nCols);
+        // deep clone grid values
+        if (grid != null && template.grid != null && stride == template.stride) {
+            System.arraycopy(template.grid, 0, grid, 0, grid.length);
+        } else {
+            GridRow row = template.rowView();
+            for (int r = 0; r < rows; r++) {
+                storage.writeRow(r, row.moveTo(r).array(), row.offset());
+            }
         }
     }
 
@@ -61,13 +121,52 @@ public final class Grid {
      * @param rows The number of horizontal rows in the new grid.
      */
     public Grid(int cols, int rows) {
+        this(cols, rows, GridStorage.HEAP);
+    }
+
+    /**
+     * Creates a new instance of Grid.
+     *
+     * @param cols The number of vertical columns in the new grid.
+     * @param rows The number of horizontal rows in the new grid.
+     * @param storageFactory Creates the storage for the grid values.
+     */
+    private Grid(int cols, int rows, GridStorage.Factory storageFactory) {
         // the grid must contain at least 2 x 2 cells.
         if (cols < 3 || rows < 3) {
             throw new IllegalArgumentException("Not enough data points.");
         }
 
         this.cellSize = 1;
-        this.grid = new float[rows][cols];
+        this.cols = cols;
+        this.rows = rows;
+        this.storageFactory = storageFactory;
+        this.storage = storageFactory.create(cols, rows);
+        this.grid = storage.array();
+        this.stride = storage.stride();
+    }
+
+    /**
+     * Creates a new instance of Grid with an existing storage.
+     *
+     * @param storage The storage with the grid values.
+     * @param cellSize The size between two rows or columns.
+     * @param storageFactory Creates the storage for copies of this grid.
+     */
+    Grid(GridStorage storage, double cellSize, GridStorage.Factory storageFactory) {
+        if (storage.cols < 3 || storage.rows < 3) {
+            throw new IllegalArgumentException("Not enough data points.");
+        }
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Negative cell size");
+        }
+        this.cellSize = cellSize;
+        this.cols = storage.cols;
+        this.rows = storage.rows;
+        this.storageFactory = storageFactory;
+        this.storage = storage;
+        this.grid = storage.array();
+        this.stride = storage.stride();
     }
 
     /**
@@ -78,12 +177,20 @@ public final class Grid {
      * @param cellSize The size between two rows or columns.
      */
     public Grid(int cols, int rows, double cellSize) {
-        this(cols, rows);
+        this(cols, rows, cellSize, GridStorage.HEAP);
+    }
 
-        // the grid must contain at least 2 x 2 cells.
-        if (cols < 3 || rows < 3) {
-            throw new IllegalArgumentException("Not enough data points.");
-        }
+    /**
+     * Creates a new instance of Grid.
+     *
+     * @param cols The number of vertical columns in the new grid.
+     * @param rows The number of horizontal rows in the new grid.
+     * @param cellSize The size between two rows or columns.
+     * @param storageFactory Creates the storage for the grid values.
+     */
+    public Grid(int cols, int rows, double cellSize,
+            GridStorage.Factory storageFactory) {
+        this(cols, rows, storageFactory);
 
         if (cellSize <= 0) {
             throw new IllegalArgumentException("Negative cell size");
@@ -99,7 +206,10 @@ public final class Grid {
      * @return The value at the specified position.
      */
     public final float getValue(int col, int row) {
-        return grid[row][col];
+        if (grid == null) {
+            return storage.getValue(col, row);
+        }
+        return grid[row * stride + col];
     }
 
     /**
@@ -110,7 +220,14 @@ public final class Grid {
      * @param row The horizontal row for which a value is set.
      */
     public final void setValue(float value, int col, int row) {
-        grid[row][col] = value;
+        if (grid == null) {
+            storage.setValue(value, col, row);
+        } else {
+            grid[row * stride + col] = value;
+        }
+        if (!valueSet) {
+            valueSet = true;
+        }
     }
 
     /**
@@ -122,14 +239,14 @@ public final class Grid {
      * @param row The horizontal row for which a value must be set.
      */
     public void setValue(double value, int col, int row) {
-        grid[row][col] = (float) value;
+        setValue((float) value, col, row);
     }
 
     private float verticalBilinearInterpol(double y, int topRow, int col) {
         // top value
-        float topH = grid[topRow][col];
+        float topH = getValue(col, topRow);
         // bottom value
-        float bottomH = grid[topRow + 1][col];
+        float bottomH = getValue(col, topRow + 1);
         double w = (getNorth() - y) / cellSize;
         return (float) (w * (topH - bottomH) + bottomH);
     }
@@ -146,8 +263,6 @@ public final class Grid {
     public final float getBilinearInterpol(double x, double y) {
 
         float h1, h2, h3, h4;
-        final int rows = grid.length;
-        final int cols = grid[0].length;
         final double north = south + (rows - 1) * cellSize;
 
         final double dx = (x - west) / cellSize;
@@ -164,15 +279,15 @@ public final class Grid {
         if (col == cols - 1) {
             // point on lower right corner
             if (row == rows - 1) {
-                return grid[rows - 1][cols - 1];
+                return getValue(cols - 1, rows - 1);
             }
             return verticalBilinearInterpol(y, row, col);
         }
 
         // point on lower border
         if (row == rows - 1) {
-            float leftH = grid[row][col];
-            float rightH = grid[row][col + 1];
+            float leftH = getValue(col, row);
+            float rightH = getValue(col + 1, row);
             return (float) (dx * (rightH - leftH) + leftH);
         }
 
@@ -180,15 +295,15 @@ public final class Grid {
         final double relY = (y - south) / cellSize - rows + row + 2;
 
         // value at bottom left corner
-        h1 = grid[row + 1][col];
+        h1 = getValue(col, row + 1);
         // value at bottom right corner
-        h2 = grid[row + 1][col + 1];
+        h2 = getValue(col + 1, row + 1);
 
         // value at top left corner
-        h3 = grid[row][col];
+        h3 = getValue(col, row);
 
         // value at top right corner
-        h4 = grid[row][col + 1];
+        h4 = getValue(col + 1, row);
 
         // assume all values are valid
         return (float) (h1 + (h2 - h1) * relX + (h3 - h1) * relY + (h1 - h2 - h3 + h4) * relX * relY);
@@ -203,8 +318,6 @@ public final class Grid {
      * @return Interpolated value.
      */
     public final double getBicubicInterpol(double x, double y) {
-        final int rows = grid.length;
-        final int cols = grid[0].length;
         final double north = south + (rows - 1) * cellSize;
 
         // column and row of the top left corner
@@ -233,14 +346,10 @@ public final class Grid {
         final double u = (x - west) / cellSize - col1;
         final double v = (north - y) / cellSize - row1;
 
-        final float[] r0 = grid[row0];
-        final float[] r1 = grid[row1];
-        final float[] r2 = grid[row2];
-        final float[] r3 = grid[row3];
-        final double v0 = interp_cubic(u, r0[col0], r0[col1], r0[col2], r0[col3]);
-        final double v1 = interp_cubic(u, r1[col0], r1[col1], r1[col2], r1[col3]);
-        final double v2 = interp_cubic(u, r2[col0], r2[col1], r2[col2], r2[col3]);
-        final double v3 = interp_cubic(u, r3[col0], r3[col1], r3[col2], r3[col3]);
+        final double v0 = interp_cubic(u, getValue(col0, row0), getValue(col1, row0), getValue(col2, row0), getValue(col3, row0));
+        final double v1 = interp_cubic(u, getValue(col0, row1), getValue(col1, row1), getValue(col2, row1), getValue(col3, row1));
+        final double v2 = interp_cubic(u, getValue(col0, row2), getValue(col1, row2), getValue(col2, row2), getValue(col3, row2));
+        final double v3 = interp_cubic(u, getValue(col0, row3), getValue(col1, row3), getValue(col2, row3), getValue(col3, row3));
 
         return interp_cubic(v, v0, v1, v2, v3);
     }
@@ -250,28 +359,114 @@ public final class Grid {
     }
 
     /**
-     * Returns the minimum and the maximum value in the grid.
+     * Returns the minimum and the maximum value in the grid. Void values are
+     * ignored.
      *
      * @return Returns an array with two elements. The first element is the
      * minimum value in the grid, the second value is the maximum value in the
-     * grid.
+     * grid. If all values are void, the minimum is Float.MAX_VALUE and the
+     * maximum is -Float.MAX_VALUE.
      */
     public float[] getMinMax() {
-        int cols = this.getCols();
-        int rows = this.getRows();
-        float min = Float.MAX_VALUE;
-        float max = -Float.MAX_VALUE;
-        for (int r = 0; r < rows; ++r) {
-            for (int c = 0; c < cols; ++c) {
-                if (grid[r][c] < min) {
-                    min = grid[r][c];
+        GridStatistics stats = getStatistics();
+        if (stats.getValidCount() == 0) {
+            return new float[]{Float.MAX_VALUE, -Float.MAX_VALUE};
+        }
+        return new float[]{stats.getMin(), stats.getMax()};
+    }
+
+    /**
+     * Returns statistics of the grid values. The statistics are computed with
+     * multiple threads when this method is first called and cached until the
+     * grid is modified. The grid must not be modified while the statistics
+     * are computed.
+     *
+     * @return The statistics.
+     */
+    public GridStatistics getStatistics() {
+        final long count = getModificationCount();
+        GridStatistics stats = statistics;
+        if (stats == null || stats.getModificationCount() != count) {
+            stats = GridStatistics.compute(this, count);
+            synchronized (this) {
+                if (getModificationCount() == count) {
+                    statistics = stats;
                 }
-                if (grid[r][c] > max) {
-                    max = grid[r][c];
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a histogram of the grid values. The histogram has
+     * GridStatistics.HISTOGRAM_BINS bins of equal width between the minimum
+     * and the maximum of the grid. Void values are not counted. The histogram
+     * is cached with the statistics until the grid is modified.
+     *
+     * @return The number of values in each bin. The array must not be
+     * changed.
+     */
+    public long[] getHistogram() {
+        GridStatistics stats = getStatistics();
+        long[] histogram = stats.histogram();
+        if (histogram == null) {
+            histogram = GridStatistics.computeHistogram(this, stats);
+            stats.setHistogram(histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns a mask with the void values of the grid. The mask is created
+     * with multiple threads when this method is first called and cached until
+     * the grid is modified. The grid must not be modified while the mask is
+     * created.
+     *
+     * @return The void mask.
+     */
+    public VoidMask getVoidMask() {
+        final long count = getModificationCount();
+        VoidMask mask = voidMask;
+        if (mask == null || mask.getModificationCount() != count) {
+            mask = VoidMask.create(this, count);
+            synchronized (this) {
+                if (getModificationCount() == count) {
+                    voidMask = mask;
                 }
             }
         }
-        return new float[]{min, max};
+        return mask;
+    }
+
+    /**
+     * Notifies the grid that its values have changed. Code changing values
+     * with a GridRow or with the array of the grid must call this method
+     * after changing values, unless the grid is newly created. setValue()
+     * does not need to be followed by a call to this method. Discards cached
+     * statistics and the cached void mask.
+     */
+    public synchronized void modified() {
+        valueSet = false;
+        ++modificationCount;
+        statistics = null;
+        voidMask = null;
+    }
+
+    /**
+     * Returns the number of modifications. The count is incremented each time
+     * modified() is called, and when the count is read after setValue() has
+     * changed a value. Two equal counts read from a grid therefore guarantee
+     * that no value has been changed in between with setValue(), or with a
+     * GridRow followed by a call to modified(). Caches of values derived from
+     * a grid use the count to detect changes.
+     *
+     * @return The modification count.
+     */
+    public long getModificationCount() {
+        if (valueSet) {
+            modified();
+        }
+        return modificationCount;
     }
 
     /**
@@ -280,7 +475,7 @@ public final class Grid {
      * @return The number of columns in the grid.
      */
     public int getCols() {
-        return grid[0].length;
+        return cols;
     }
 
     /**
@@ -289,7 +484,7 @@ public final class Grid {
      * @return The number of rows in the grid.
      */
     public int getRows() {
-        return grid.length;
+        return rows;
     }
 
     /**
@@ -301,10 +496,89 @@ public final class Grid {
         return cellSize;
     }
 
-    public float[][] getGrid() {
+    /**
+     * Sets the distance between two neighboring rows or columns. Used by
+     * GridPool when a grid is reused.
+     *
+     * @param cellSize The distance between two rows or columns.
+     */
+    void setCellSize(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Returns a new view for iterating over the rows of this grid. Call
+     * GridRow.moveTo() to select a row. A view is not thread-safe, but
+     * multiple views can be used concurrently on the same grid.
+     *
+     * @return A new row view.
+     */
+    public GridRow rowView() {
+        return new GridRow(this);
+    }
+
+    /**
+     * Returns the array storing the values of this grid. Used by GridRow.
+     *
+     * @return The array with all grid values or null if the values are not
+     * stored in a single array.
+     */
+    float[] array() {
         return grid;
     }
 
+    /**
+     * Returns whether all values are stored in a single array. The rows of
+     * such grids are accessed without copying values.
+     *
+     * @return True if the values are stored in a single array.
+     */
+    public boolean hasArray() {
+        return grid != null;
+    }
+
+    /**
+     * Returns the number of array elements between the first values of two
+     * consecutive rows.
+     *
+     * @return The row stride.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns the storage of the grid values. Used by GridRow.
+     *
+     * @return The storage.
+     */
+    GridStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns the number of columns and rows in a tile if the grid values are
+     * stored in tiles. Operators should process tiled grids in bands of this
+     * height.
+     *
+     * @return The tile size or 0 if values are not stored in tiles.
+     */
+    public int getTileSize() {
+        return storage.tileSize();
+    }
+
+    /**
+     * Returns a factory for the storage of grids derived from this grid. Pass
+     * it to the constructor to create a grid with the same kind of storage.
+     * If this grid stores values with reduced precision, GridStorage.HEAP is
+     * returned, such that derived values are not rounded.
+     *
+     * @return The storage factory.
+     */
+    public GridStorage.Factory getStorageFactory() {
+        return storage.isLossy() ? GridStorage.HEAP : storageFactory;
+    }
+
     /**
      * Returns true if the passed grid has the same number of columns and rows
      * and has the same cell size.
@@ -329,8 +603,6 @@ public final class Grid {
      * @return Aspect in radians in counter-clockwise direction. East is 0.
      */
     public double getAspect(int col, int row) {
-        final int cols = grid[0].length;
-        final int rows = grid.length;
         final int colLeft = col > 0 ? col - 1 : 0;
         final int colRight = col < cols - 1 ? col + 1 : cols - 1;
         final int rowTop = row > 0 ? row - 1 : 0;
@@ -397,9 +669,6 @@ public final class Grid {
      * @return Slope in [0..1].
      */
     public double getSlope(int col, int row) {
-        final int cols = grid[0].length;
-        final int rows = grid.length;
-
         final int colLeft = col > 0 ? col - 1 : 0;
         final int colRight = col < cols - 1 ? col + 1 : cols - 1;
         final int rowTop = row > 0 ? row - 1 : 0;
@@ -0,0 +1,198 @@
+package edu.oregonstate.cartography.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A pool of grids that are no longer used. Generalizing a grid and rendering
+ * an image create many temporary grids of identical size, for example when
+ * expanding the levels of a Laplacian pyramid. Grids released to the pool are
+ * reused for new grids with the same number of columns and rows, which
+ * avoids allocating and garbage collecting large arrays.
+ *
+ * Only grids storing their values in an array on the Java heap are pooled.
+ * The pool holds grids up to a maximum number of bytes. When the pool is
+ * full, the grids released first are removed.
+ *
+ * A released grid must not be used anymore by the code releasing it, because
+ * the grid may be returned by acquire() at any time. Only grids that are not
+ * referenced elsewhere can therefore be released.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class GridPool {
+
+    /**
+     * The pool shared by all operators.
+     */
+    public static final GridPool SHARED = new GridPool(Runtime.getRuntime().maxMemory() / 8);
+
+    /**
+     * The pooled grids in the order in which they were released.
+     */
+    private final ArrayList<Grid> grids = new ArrayList<>();
+
+    /**
+     * The maximum number of bytes of all pooled grids.
+     */
+    private long maxBytes;
+
+    /**
+     * The number of bytes of all pooled grids.
+     */
+    private long bytes;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxBytes The maximum number of bytes of all pooled grids.
+     */
+    public GridPool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid pool size.");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a grid with all values set to 0. The grid is either taken from
+     * the pool or newly created.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param cellSize The size between two rows or columns.
+     * @param storageFactory Creates the storage if a new grid is created.
+     * @return The grid. West and south are 0.
+     */
+    public Grid acquire(int cols, int rows, double cellSize,
+            GridStorage.Factory storageFactory) {
+        Grid grid = take(cols, rows, cellSize, storageFactory);
+        if (grid == null) {
+            return new Grid(cols, rows, cellSize, storageFactory);
+        }
+        Arrays.fill(grid.array(), 0f);
+        return grid;
+    }
+
+    /**
+     * Returns a grid with undefined values. The grid is either taken from the
+     * pool or newly created. The caller must overwrite all values.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param cellSize The size between two rows or columns.
+     * @param storageFactory Creates the storage if a new grid is created.
+     * @return The grid. West and south are 0.
+     */
+    public Grid acquireUninitialized(int cols, int rows, double cellSize,
+            GridStorage.Factory storageFactory) {
+        Grid grid = take(cols, rows, cellSize, storageFactory);
+        if (grid == null) {
+            return new Grid(cols, rows, cellSize, storageFactory);
+        }
+        return grid;
+    }
+
+    /**
+     * Removes a grid with the passed size and storage factory from the pool.
+     *
+     * @return The grid or null if the pool contains no such grid.
+     */
+    private Grid take(int cols, int rows, double cellSize,
+            GridStorage.Factory storageFactory) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Negative cell size");
+        }
+        Grid grid = null;
+        synchronized (this) {
+            // search the most recently released grids first
+            for (int i = grids.size() - 1; i >= 0; i--) {
+                Grid g = grids.get(i);
+                if (g.getCols() == cols && g.getRows() == rows
+                        && g.getStorageFactory() == storageFactory) {
+                    grid = grids.remove(i);
+                    bytes -= bytes(grid);
+                    break;
+                }
+            }
+        }
+        if (grid != null) {
+            grid.setCellSize(cellSize);
+            grid.setWest(0);
+            grid.setSouth(0);
+            grid.modified();
+        }
+        return grid;
+    }
+
+    /**
+     * Returns a grid to the pool. Grids that do not store values in an array
+     * on the Java heap are ignored. The grid must not be used anymore after
+     * it has been released.
+     *
+     * @param grid The grid to release. Can be null.
+     */
+    public void release(Grid grid) {
+        if (grid == null || grid.array() == null) {
+            return;
+        }
+        long gridBytes = bytes(grid);
+        synchronized (this) {
+            if (gridBytes > maxBytes) {
+                return;
+            }
+            for (Grid g : grids) {
+                if (g == grid) {
+                    throw new IllegalArgumentException("Grid released twice.");
+                }
+            }
+            while (bytes + gridBytes > maxBytes) {
+                bytes -= bytes(grids.remove(0));
+            }
+            grids.add(grid);
+            bytes += gridBytes;
+        }
+    }
+
+    /**
+     * Removes all grids from the pool.
+     */
+    public synchronized void clear() {
+        grids.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Sets the maximum size of the pool. Removes grids if the pool is larger
+     * than the new size.
+     *
+     * @param maxBytes The maximum number of bytes of all pooled grids. Use 0
+     * to disable pooling.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid pool size.");
+        }
+        this.maxBytes = maxBytes;
+        while (bytes > maxBytes) {
+            bytes -= bytes(grids.remove(0));
+        }
+    }
+
+    /**
+     * Returns the maximum size of the pool.
+     *
+     * @return The maximum number of bytes of all pooled grids.
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes used by the values of a grid.
+     */
+    private static long bytes(Grid grid) {
+        return 4L * grid.array().length;
+    }
+}
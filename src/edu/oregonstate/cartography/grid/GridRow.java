@@ -0,0 +1,147 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * A view on a single row of a Grid. Operators iterate over the rows of a grid
+ * with a view and access the values of the current row with array() and
+ * offset(): the value in column col is at array()[offset() + col]. Accessing
+ * the array directly avoids the index computations of Grid.getValue() and
+ * Grid.setValue() in inner loops.
+ *
+ * If the grid does not store its values in a single array on the heap, the
+ * view holds a copy of the current row. moveTo() loads the row, and store()
+ * writes changed values back to the grid. Operators writing to a view must
+ * therefore call store() before moving to another row. For grids storing
+ * values on the heap, store() does nothing.
+ *
+ * A view is not thread-safe. Each thread must use its own view.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class GridRow {
+
+    /**
+     * The grid this view is on.
+     */
+    private final Grid grid;
+
+    /**
+     * The array with the values of the current row.
+     */
+    private final float[] array;
+
+    /**
+     * True if array is a copy of the current row.
+     */
+    private final boolean buffered;
+
+    /**
+     * Index of the first value of the current row in array.
+     */
+    private int offset;
+
+    /**
+     * The index of the current row.
+     */
+    private int row;
+
+    /**
+     * Creates a new view. Use Grid.rowView() to create a view.
+     *
+     * @param grid The grid to view.
+     */
+    GridRow(Grid grid) {
+        this.grid = grid;
+        buffered = grid.array() == null;
+        array = buffered ? new float[grid.getCols()] : grid.array();
+        moveTo(0);
+    }
+
+    /**
+     * Selects the row to view.
+     *
+     * @param row The index of the row.
+     * @return This view.
+     */
+    public GridRow moveTo(int row) {
+        if (row < 0 || row >= grid.getRows()) {
+            throw new IndexOutOfBoundsException("row " + row);
+        }
+        this.row = row;
+        if (buffered) {
+            grid.getStorage().readRow(row, array, 0);
+        } else {
+            offset = row * grid.getStride();
+        }
+        return this;
+    }
+
+    /**
+     * Writes the values of the current row back to the grid.
+     *
+     * @return This view.
+     */
+    public GridRow store() {
+        if (buffered) {
+            grid.getStorage().writeRow(row, array, 0);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the array with the values of the current row.
+     *
+     * @return The array with the values of the current row. The array may
+     * contain values of other rows.
+     */
+    public float[] array() {
+        return array;
+    }
+
+    /**
+     * Returns the index of the first value of the current row in array().
+     *
+     * @return The index of the value in the first column.
+     */
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * Returns the index of the current row.
+     *
+     * @return The row index.
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Returns a value of the current row.
+     *
+     * @param col The column.
+     * @return The value in the passed column.
+     */
+    public float get(int col) {
+        return array[offset + col];
+    }
+
+    /**
+     * Sets a value of the current row.
+     *
+     * @param value The new value.
+     * @param col The column.
+     */
+    public void set(float value, int col) {
+        array[offset + col] = value;
+    }
+
+    /**
+     * Returns the grid this view is on.
+     *
+     * @return The grid.
+     */
+    public Grid getGrid() {
+        return grid;
+    }
+}
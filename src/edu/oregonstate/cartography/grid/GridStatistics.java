@@ -0,0 +1,253 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * Statistics of the values of a grid: minimum, maximum, mean, and the number
+ * of void (NaN) values. Void values are ignored for the minimum, maximum and
+ * mean. Statistics are computed with multiple threads and cached by Grid until
+ * the grid is modified. Use Grid.getStatistics() to obtain the statistics of
+ * a grid.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class GridStatistics {
+
+    /**
+     * The number of bins of histograms.
+     */
+    public static final int HISTOGRAM_BINS = 256;
+
+    /**
+     * The number of rows in a band processed by a single task.
+     */
+    private static final int BAND_HEIGHT = 64;
+
+    /**
+     * The smallest value or NaN if all values are void.
+     */
+    private final float min;
+
+    /**
+     * The largest value or NaN if all values are void.
+     */
+    private final float max;
+
+    /**
+     * The mean of all values that are not void or NaN if all values are void.
+     */
+    private final double mean;
+
+    /**
+     * The number of void values.
+     */
+    private final long voidCount;
+
+    /**
+     * The number of values that are not void.
+     */
+    private final long validCount;
+
+    /**
+     * The modification count of the grid when the statistics were computed.
+     */
+    private final long modificationCount;
+
+    /**
+     * The histogram or null if it has not been computed yet.
+     */
+    private long[] histogram;
+
+    private GridStatistics(Accumulator acc, long modificationCount) {
+        boolean valid = acc.validCount > 0;
+        this.min = valid ? acc.min : Float.NaN;
+        this.max = valid ? acc.max : Float.NaN;
+        this.mean = valid ? acc.sum / acc.validCount : Double.NaN;
+        this.voidCount = acc.voidCount;
+        this.validCount = acc.validCount;
+        this.modificationCount = modificationCount;
+    }
+
+    /**
+     * Computes the statistics of a grid.
+     *
+     * @param grid The grid.
+     * @param modificationCount The modification count of the grid before the
+     * statistics are computed.
+     * @return The statistics.
+     */
+    static GridStatistics compute(Grid grid, long modificationCount) {
+        final Accumulator total = new Accumulator();
+        RowBands.forEach(grid, BAND_HEIGHT, new RowBands.Task() {
+            @Override
+            public void run(Grid grid, int startRow, int endRow) {
+                Accumulator acc = new Accumulator();
+                acc.add(grid, startRow, endRow);
+                synchronized (total) {
+                    total.add(acc);
+                }
+            }
+        });
+        return new GridStatistics(total, modificationCount);
+    }
+
+    /**
+     * Computes the histogram of a grid.
+     *
+     * @param grid The grid.
+     * @param stats The statistics of the grid.
+     * @return The number of values in each bin.
+     */
+    static long[] computeHistogram(Grid grid, GridStatistics stats) {
+        final long[] total = new long[HISTOGRAM_BINS];
+        if (stats.validCount == 0) {
+            return total;
+        }
+        final float min = stats.min;
+        final double binScale = stats.max > stats.min
+                ? HISTOGRAM_BINS / ((double) stats.max - stats.min) : 0;
+        RowBands.forEach(grid, BAND_HEIGHT, new RowBands.Task() {
+            @Override
+            public void run(Grid grid, int startRow, int endRow) {
+                final long[] bins = new long[HISTOGRAM_BINS];
+                final int cols = grid.getCols();
+                final GridRow row = grid.rowView();
+                for (int r = startRow; r < endRow; r++) {
+                    final float[] values = row.moveTo(r).array();
+                    final int offset = row.offset();
+                    for (int c = offset; c < offset + cols; c++) {
+                        final float v = values[c];
+                        if (!Float.isNaN(v)) {
+                            int bin = (int) ((v - min) * binScale);
+                            ++bins[Math.min(bin, HISTOGRAM_BINS - 1)];
+                        }
+                    }
+                }
+                synchronized (total) {
+                    for (int i = 0; i < HISTOGRAM_BINS; i++) {
+                        total[i] += bins[i];
+                    }
+                }
+            }
+        });
+        return total;
+    }
+
+    /**
+     * Accumulates statistics for a band of rows.
+     */
+    private static final class Accumulator {
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum;
+        long voidCount;
+        long validCount;
+
+        void add(Grid grid, int startRow, int endRow) {
+            final int cols = grid.getCols();
+            final GridRow row = grid.rowView();
+            for (int r = startRow; r < endRow; r++) {
+                final float[] values = row.moveTo(r).array();
+                final int offset = row.offset();
+                double rowSum = 0;
+                for (int c = offset; c < offset + cols; c++) {
+                    final float v = values[c];
+                    if (Float.isNaN(v)) {
+                        ++voidCount;
+                    } else {
+                        if (v < min) {
+                            min = v;
+                        }
+                        if (v > max) {
+                            max = v;
+                        }
+                        rowSum += v;
+                    }
+                }
+                sum += rowSum;
+            }
+            validCount = (long) (endRow - startRow) * cols - voidCount;
+        }
+
+        void add(Accumulator acc) {
+            min = Math.min(min, acc.min);
+            max = Math.max(max, acc.max);
+            sum += acc.sum;
+            voidCount += acc.voidCount;
+            validCount += acc.validCount;
+        }
+    }
+
+    /**
+     * Returns the smallest value.
+     *
+     * @return The minimum or NaN if all values are void.
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the largest value.
+     *
+     * @return The maximum or NaN if all values are void.
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of all values that are not void.
+     *
+     * @return The mean or NaN if all values are void.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Returns the number of void values.
+     *
+     * @return The number of NaN values.
+     */
+    public long getVoidCount() {
+        return voidCount;
+    }
+
+    /**
+     * Returns the number of values that are not void.
+     *
+     * @return The number of values that are not NaN.
+     */
+    public long getValidCount() {
+        return validCount;
+    }
+
+    /**
+     * Returns the modification count of the grid when these statistics were
+     * computed.
+     *
+     * @return The modification count.
+     */
+    long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Returns the cached histogram.
+     *
+     * @return The histogram or null.
+     */
+    synchronized long[] histogram() {
+        return histogram;
+    }
+
+    /**
+     * Caches a histogram.
+     *
+     * @param histogram The histogram.
+     */
+    synchronized void setHistogram(long[] histogram) {
+        this.histogram = histogram;
+    }
+}
@@ -0,0 +1,268 @@
+package edu.oregonstate.cartography.grid;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stores the values of a Grid. The default storage keeps all values in a
+ * single array on the Java heap. Other storages keep values outside of the
+ * heap. The storage of a grid is selected with a GridStorage.Factory when the
+ * grid is created.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public abstract class GridStorage {
+
+    /**
+     * Creates storages for grids.
+     */
+    public interface Factory {
+
+        /**
+         * Creates a new storage. All values of the new storage are 0.
+         *
+         * @param cols The number of columns.
+         * @param rows The number of rows.
+         * @return The new storage.
+         */
+        public GridStorage create(int cols, int rows);
+    }
+
+    /**
+     * Stores values in an array on the Java heap.
+     */
+    public static final Factory HEAP = new Factory() {
+        @Override
+        public GridStorage create(int cols, int rows) {
+            return new HeapGridStorage(cols, rows);
+        }
+    };
+
+    /**
+     * Stores values in a memory-mapped scratch file in the temporary
+     * directory. The operating system pages values in and out of memory.
+     */
+    public static final Factory MAPPED = new Factory() {
+        @Override
+        public GridStorage create(int cols, int rows) {
+            return createMapped(cols, rows);
+        }
+    };
+
+    /**
+     * Stores values as 16-bit half-precision floats on the Java heap. Uses
+     * half the memory of HEAP, but values only have 11 significant bits. Well
+     * suited for the levels of a Laplacian pyramid, which store small
+     * differences.
+     */
+    public static final Factory HALF_FLOAT = new Factory() {
+        @Override
+        public GridStorage create(int cols, int rows) {
+            return new HalfFloatGridStorage(cols, rows);
+        }
+    };
+
+    /**
+     * Returns a factory for storages with 16-bit integers on the Java heap.
+     * Uses half the memory of HEAP. A value v is stored as round((v - offset)
+     * / scale), which is in [-32767, +32767].
+     *
+     * @param scale The quantization step. For integer elevations in meters
+     * use 1.
+     * @param offset The value stored as 0.
+     * @return The factory.
+     */
+    public static Factory int16(final float scale, final float offset) {
+        if (!(scale > 0) || Float.isInfinite(scale) || Float.isNaN(offset)) {
+            throw new IllegalArgumentException("Invalid scale or offset.");
+        }
+        return new Factory() {
+            @Override
+            public GridStorage create(int cols, int rows) {
+                return new Int16GridStorage(cols, rows, scale, offset);
+            }
+        };
+    }
+
+    /**
+     * Fraction of the maximum heap size that a single grid may occupy with
+     * AUTOMATIC. The application keeps about a dozen grids of the size of the
+     * input grid in memory.
+     */
+    private static final int HEAP_FRACTION = 16;
+
+    /**
+     * Stores small grids on the heap and large grids in memory-mapped scratch
+     * files.
+     */
+    public static final Factory AUTOMATIC = new Factory() {
+        @Override
+        public GridStorage create(int cols, int rows) {
+            final long bytes = 4L * cols * rows;
+            final long maxHeapBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+            if (bytes <= maxHeapBytes && (long) cols * rows <= Integer.MAX_VALUE) {
+                return new HeapGridStorage(cols, rows);
+            }
+            return createMapped(cols, rows);
+        }
+    };
+
+    /**
+     * Default number of columns and rows in a tile of TILED.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /**
+     * Stores values in tiles of DEFAULT_TILE_SIZE x DEFAULT_TILE_SIZE cells.
+     * Tiles are kept in a cache of limited size, and tiles that do not fit
+     * into the cache are written to scratch files. Use setTileCacheSize() to
+     * adjust the memory used by all tiled grids.
+     */
+    public static final Factory TILED = tiled(DEFAULT_TILE_SIZE);
+
+    /**
+     * Returns a factory for tiled storages.
+     *
+     * @param tileSize The number of columns and rows in a tile. Must be a power
+     * of 2.
+     * @return The factory.
+     */
+    public static Factory tiled(final int tileSize) {
+        if (tileSize < 1 || Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("Tile size must be a power of 2.");
+        }
+        return new Factory() {
+            @Override
+            public GridStorage create(int cols, int rows) {
+                return new TiledGridStorage(cols, rows, tileSize, TileCache.SHARED);
+            }
+        };
+    }
+
+    /**
+     * Sets the maximum memory used by the tiles of all tiled grids. The
+     * default is a quarter of the maximum heap size.
+     *
+     * @param bytes The maximum number of bytes.
+     */
+    public static void setTileCacheSize(long bytes) {
+        TileCache.SHARED.setMaxBytes(bytes);
+    }
+
+    /**
+     * Returns the maximum memory used by the tiles of all tiled grids.
+     *
+     * @return The maximum number of bytes.
+     */
+    public static long getTileCacheSize() {
+        return TileCache.SHARED.getMaxBytes();
+    }
+
+    /**
+     * The number of columns.
+     */
+    protected final int cols;
+
+    /**
+     * The number of rows.
+     */
+    protected final int rows;
+
+    GridStorage(int cols, int rows) {
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+    /**
+     * Creates a storage in a memory-mapped scratch file in the temporary
+     * directory.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @return The new storage.
+     */
+    private static GridStorage createMapped(int cols, int rows) {
+        try {
+            String tmpDir = System.getProperty("java.io.tmpdir");
+            return new MappedGridStorage(cols, rows, new File(tmpDir));
+        } catch (IOException exc) {
+            throw new IllegalStateException("Cannot create scratch file for grid.", exc);
+        }
+    }
+
+    /**
+     * Returns the value at a specific position.
+     *
+     * @param col The column.
+     * @param row The row.
+     * @return The value.
+     */
+    abstract float getValue(int col, int row);
+
+    /**
+     * Sets a value.
+     *
+     * @param value The new value.
+     * @param col The column.
+     * @param row The row.
+     */
+    abstract void setValue(float value, int col, int row);
+
+    /**
+     * Copies the values of a row to an array.
+     *
+     * @param row The row to copy.
+     * @param dst The destination array.
+     * @param dstOffset The index in dst for the first value of the row.
+     */
+    abstract void readRow(int row, float[] dst, int dstOffset);
+
+    /**
+     * Copies values from an array to a row.
+     *
+     * @param row The row to write.
+     * @param src The source array.
+     * @param srcOffset The index in src of the first value of the row.
+     */
+    abstract void writeRow(int row, float[] src, int srcOffset);
+
+    /**
+     * Returns the array storing all values if values are stored in a single
+     * array on the Java heap.
+     *
+     * @return The array or null.
+     */
+    float[] array() {
+        return null;
+    }
+
+    /**
+     * Returns the number of array elements between the first values of two
+     * consecutive rows in the array returned by array().
+     *
+     * @return The row stride.
+     */
+    int stride() {
+        return cols;
+    }
+
+    /**
+     * Returns whether values are stored with reduced precision.
+     *
+     * @return True if a stored value may differ from the value passed to
+     * setValue().
+     */
+    boolean isLossy() {
+        return false;
+    }
+
+    /**
+     * Returns the number of columns and rows in a tile.
+     *
+     * @return The tile size or 0 if values are not stored in tiles.
+     */
+    int tileSize() {
+        return 0;
+    }
+}
@@ -0,0 +1,132 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * Stores the values of a grid as 16-bit IEEE 754 half-precision floats in a
+ * single array on the Java heap. Uses half the memory of float values. Half
+ * floats have a precision of 11 significant bits and a maximum of 65504.
+ * Larger values are stored as infinity. NaN is stored as a half-float NaN.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class HalfFloatGridStorage extends GridStorage {
+
+    /**
+     * Float values for all 2^16 half floats.
+     */
+    private static final float[] DECODED = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < DECODED.length; i++) {
+            DECODED[i] = decode(i);
+        }
+    }
+
+    /**
+     * The encoded grid values.
+     */
+    private final short[] values;
+
+    HalfFloatGridStorage(int cols, int rows) {
+        super(cols, rows);
+        if ((long) cols * rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large.");
+        }
+        values = new short[rows * cols];
+    }
+
+    /**
+     * Converts a half float to a float.
+     *
+     * @param h The bits of the half float in the lower 16 bits.
+     * @return The float value.
+     */
+    private static float decode(int h) {
+        final int sign = (h & 0x8000) << 16;
+        final int exp = (h >>> 10) & 0x1f;
+        final int mant = h & 0x3ff;
+        if (exp == 0x1f) {
+            // infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+        if (exp == 0) {
+            // zero or subnormal number: mant * 2^-24
+            final float v = mant * 0x1p-24f;
+            return sign == 0 ? v : -v;
+        }
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+    }
+
+    /**
+     * Converts a float to a half float. Rounds to the nearest half float, and
+     * to the even half float for ties.
+     *
+     * @param v The float value.
+     * @return The half float.
+     */
+    static short encode(float v) {
+        final int bits = Float.floatToRawIntBits(v);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int abs = bits & 0x7fffffff;
+        if (abs >= 0x7f800000) {
+            // infinity or NaN
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if (abs >= 0x38800000) {
+            // normal number: adjust exponent bias and round the mantissa
+            int h = (abs - 0x38000000) >>> 13;
+            final int rest = abs & 0x1fff;
+            if (rest > 0x1000 || (rest == 0x1000 && (h & 1) != 0)) {
+                ++h;
+            }
+            // overflow results in infinity
+            return (short) (sign | Math.min(h, 0x7c00));
+        }
+        if (abs <= 0x33000000) {
+            // too small for a subnormal half float
+            return (short) sign;
+        }
+        // subnormal number
+        final int exp = abs >>> 23;
+        final int mant = (abs & 0x7fffff) | 0x800000;
+        final int shift = 126 - exp;
+        int h = mant >>> shift;
+        final int rest = mant & ((1 << shift) - 1);
+        final int halfway = 1 << (shift - 1);
+        if (rest > halfway || (rest == halfway && (h & 1) != 0)) {
+            ++h;
+        }
+        return (short) (sign | h);
+    }
+
+    @Override
+    boolean isLossy() {
+        return true;
+    }
+
+    @Override
+    float getValue(int col, int row) {
+        return DECODED[values[row * cols + col] & 0xffff];
+    }
+
+    @Override
+    void setValue(float value, int col, int row) {
+        values[row * cols + col] = encode(value);
+    }
+
+    @Override
+    void readRow(int row, float[] dst, int dstOffset) {
+        final int offset = row * cols;
+        for (int c = 0; c < cols; c++) {
+            dst[dstOffset + c] = DECODED[values[offset + c] & 0xffff];
+        }
+    }
+
+    @Override
+    void writeRow(int row, float[] src, int srcOffset) {
+        final int offset = row * cols;
+        for (int c = 0; c < cols; c++) {
+            values[offset + c] = encode(src[srcOffset + c]);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * Stores the values of a grid in a single array on the Java heap. All rows are
+ * stored one after the other. The value at col/row is at index row * cols +
+ * col.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class HeapGridStorage extends GridStorage {
+
+    /**
+     * The grid values.
+     */
+    private final float[] values;
+
+    HeapGridStorage(int cols, int rows) {
+        super(cols, rows);
+        if ((long) cols * rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large.");
+        }
+        values = new float[rows * cols];
+    }
+
+    @Override
+    float getValue(int col, int row) {
+        return values[row * cols + col];
+    }
+
+    @Override
+    void setValue(float value, int col, int row) {
+        values[row * cols + col] = value;
+    }
+
+    @Override
+    void readRow(int row, float[] dst, int dstOffset) {
+        System.arraycopy(values, row * cols, dst, dstOffset, cols);
+    }
+
+    @Override
+    void writeRow(int row, float[] src, int srcOffset) {
+        System.arraycopy(src, srcOffset, values, row * cols, cols);
+    }
+
+    @Override
+    float[] array() {
+        return values;
+    }
+}
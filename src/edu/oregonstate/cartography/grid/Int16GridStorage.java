@@ -0,0 +1,92 @@
+package edu.oregonstate.cartography.grid;
+
+import java.util.Arrays;
+
+/**
+ * Stores the values of a grid as 16-bit integers in a single array on the Java
+ * heap. Uses half the memory of float values. A value is stored as
+ * round((value - offset) / scale) and restored as integer * scale + offset.
+ * With a scale of 1 and an offset of 0, integer elevations between -32767
+ * and +32767 are stored without loss. Values outside of the representable
+ * range are clamped. NaN is stored as Short.MIN_VALUE.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class Int16GridStorage extends GridStorage {
+
+    /**
+     * Encodes NaN.
+     */
+    private static final short VOID = Short.MIN_VALUE;
+
+    /**
+     * The encoded grid values.
+     */
+    private final short[] values;
+
+    /**
+     * Scale factor applied when decoding values.
+     */
+    private final float scale;
+
+    /**
+     * Offset added when decoding values.
+     */
+    private final float offset;
+
+    Int16GridStorage(int cols, int rows, float scale, float offset) {
+        super(cols, rows);
+        if ((long) cols * rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large.");
+        }
+        values = new short[rows * cols];
+        this.scale = scale;
+        this.offset = offset;
+        // all values are 0 after decoding
+        Arrays.fill(values, encode(0f));
+    }
+
+    private float decode(short v) {
+        return v == VOID ? Float.NaN : v * scale + offset;
+    }
+
+    private short encode(float v) {
+        if (Float.isNaN(v)) {
+            return VOID;
+        }
+        final double i = Math.rint((v - (double) offset) / scale);
+        return (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, i));
+    }
+
+    @Override
+    boolean isLossy() {
+        return true;
+    }
+
+    @Override
+    float getValue(int col, int row) {
+        return decode(values[row * cols + col]);
+    }
+
+    @Override
+    void setValue(float value, int col, int row) {
+        values[row * cols + col] = encode(value);
+    }
+
+    @Override
+    void readRow(int row, float[] dst, int dstOffset) {
+        final int o = row * cols;
+        for (int c = 0; c < cols; c++) {
+            dst[dstOffset + c] = decode(values[o + c]);
+        }
+    }
+
+    @Override
+    void writeRow(int row, float[] src, int srcOffset) {
+        final int o = row * cols;
+        for (int c = 0; c < cols; c++) {
+            values[o + c] = encode(src[srcOffset + c]);
+        }
+    }
+}
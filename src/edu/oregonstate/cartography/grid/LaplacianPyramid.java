@@ -1,6 +1,8 @@
 package edu.oregonstate.cartography.grid;
 
 import edu.oregonstate.cartography.grid.operators.GridScaleOperator;
+import edu.oregonstate.cartography.grid.operators.ThreadedGridOperator;
+import java.awt.Rectangle;
 import java.util.Arrays;
 
 /**
@@ -11,12 +13,52 @@ public class LaplacianPyramid {
 
     private Grid[] levels;
 
+    /**
+     * Partial sum of the coarsest levels with weights of 1, cached by
+     * sumLevels. Generalization typically changes the weights of the more
+     * detailed levels only, so the sum of the coarse levels can be reused.
+     * Null if no partial sum is cached.
+     */
+    private Grid partialSum;
+
+    /**
+     * The most detailed level included in partialSum.
+     */
+    private int partialSumLevelID;
+
     private static final float wa = 0.4f;
     private static final float wb = 0.25f;
     private static final float wc = 0.05f;
 
+    /**
+     * The minimum number of rows of the grid to expand in a band of rows
+     * expanded by one thread.
+     */
+    private static final int EXPAND_BAND_HEIGHT = 32;
+
+    /**
+     * The number of bands expanded per thread of the shared pool.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
     public void createPyramid(Grid[] gaussianPyramid) {
+        createPyramid(gaussianPyramid, null);
+    }
+
+    /**
+     * Creates the levels of this pyramid.
+     *
+     * @param gaussianPyramid Gaussian pyramid with the full resolution grid at
+     * position 0.
+     * @param levelStorage Storage for the levels with high frequencies, for
+     * example GridStorage.HALF_FLOAT to reduce memory. If null, the storage of
+     * the Gaussian pyramid is used. The lowest frequency level is the smallest
+     * grid of the Gaussian pyramid and is not copied.
+     */
+    public void createPyramid(Grid[] gaussianPyramid,
+            GridStorage.Factory levelStorage) {
 
+        releasePartialSum();
         levels = new Grid[gaussianPyramid.length];
 
         // store the smallest Gaussian grid in the Laplacian pyramid
@@ -33,121 +75,226 @@ public class LaplacianPyramid {
                     nextLargerGrid.getCols(), nextLargerGrid.getRows());
 
             // compute the difference
-            levels[i - 1] = LaplacianPyramid.difGrids(nextLargerGrid, expanded);
+            levels[i - 1] = LaplacianPyramid.difGrids(nextLargerGrid, expanded,
+                    levelStorage == null ? nextLargerGrid.getStorageFactory() : levelStorage);
+            GridPool.SHARED.release(expanded);
         }
 
     }
 
     /**
-     * Horizontally expands the leftmost and rightmost columns of a grid.
+     * Expands three consecutive values to an even and an odd value. The even
+     * value is at the position of the central value v1, the odd value is
+     * between v1 and v2.
+     *
+     * @param v0 Value before the central value.
+     * @param v1 Central value.
+     * @param v2 Value after the central value.
+     * @param even Destination array for the even value.
+     * @param evenIndex Index of the even value in even.
+     * @param odd Destination array for the odd value.
+     * @param oddIndex Index of the odd value in odd.
+     */
+    private static void expand(float v0, float v1, float v2,
+            float[] even, int evenIndex, float[] odd, int oddIndex) {
+        final float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
+        final float vOdd = 2.f * wb * (v1 + v2);
+        final boolean evenNaN = Float.isNaN(vEven);
+        final boolean oddNaN = Float.isNaN(vOdd);
+        if (evenNaN || oddNaN) {
+            if (evenNaN && oddNaN) {
+                even[evenIndex] = Float.NaN;
+                odd[oddIndex] = Float.NaN;
+            } else {
+                even[evenIndex] = expandEvenWithVoid(v0, v1, v2);
+                odd[oddIndex] = expandOddWithVoid(v1, v2);
+            }
+        } else {
+            even[evenIndex] = vEven;
+            odd[oddIndex] = vOdd;
+        }
+    }
+
+    /**
+     * Computes an even expanded value when some of the values are void. Void
+     * values are ignored and the weights of the other values are scaled up.
+     *
+     * @param v0 Value before the central value.
+     * @param v1 Central value.
+     * @param v2 Value after the central value.
+     * @return The expanded value or NaN if all values are void.
+     */
+    private static float expandEvenWithVoid(float v0, float v1, float v2) {
+        float vEven = 0f;
+        float totEvenW = 0f;
+        if (!Float.isNaN(v0)) {
+            vEven = wc * v0;
+            totEvenW = wc;
+        }
+        if (!Float.isNaN(v1)) {
+            vEven += wa * v1;
+            totEvenW += wa;
+        }
+        if (!Float.isNaN(v2)) {
+            vEven += wc * v2;
+            totEvenW += wc;
+        }
+        if (totEvenW == 0) {
+            return Float.NaN;
+        }
+        final float scaleEven = (wc * 2 + wa) / totEvenW;
+        return vEven * (2f * scaleEven);
+    }
+
+    /**
+     * Computes an odd expanded value when some of the values are void. Void
+     * values are ignored and the weight of the other value is scaled up.
      *
-     * @param src
-     * @param dst
+     * @param v1 Central value.
+     * @param v2 Value after the central value.
+     * @return The expanded value or NaN if both values are void.
      */
-    private static void expandBorderColumns(Grid src, float[][] dst) {
+    private static float expandOddWithVoid(float v1, float v2) {
+        float vOdd = 0f;
+        float totOddW = 0f;
+        if (!Float.isNaN(v1)) {
+            vOdd += wb * v1;
+            totOddW += wb;
+        }
+        if (!Float.isNaN(v2)) {
+            vOdd += wb * v2;
+            totOddW += wb;
+        }
+        if (totOddW == 0) {
+            return Float.NaN;
+        }
+        final float scaleOdd = wb * 2 / totOddW;
+        return vOdd * (2f * scaleOdd);
+    }
 
-        final int cols = src.getCols();
-        final int rows = src.getRows();
+    /**
+     * Horizontally expands a row of a grid. Border columns are repeated. The
+     * row is processed in segments that are one tile of the void mask wide.
+     * NaN tests are skipped for segments without void values, and segments
+     * with only void values are filled with NaN.
+     *
+     * @param srcRow View on the row to expand.
+     * @param cols The number of columns in the row to expand.
+     * @param dst Destination array for twice the number of columns.
+     * @param mask The void mask of the grid to expand.
+     * @return The destination array.
+     */
+    private static float[] expandRow(GridRow srcRow, int cols, float[] dst,
+            VoidMask mask) {
+        final float[] s = srcRow.array();
+        final int o = srcRow.offset();
+        final int row = srcRow.getRow();
 
         // left column
-        for (int r = 0; r < rows; r++) {
-            float v0 = src.getValue(0, r);
-            float v1 = v0;
-            float v2 = src.getValue(1, r);
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            final boolean evenNaN = Float.isNaN(vEven);
-            final boolean oddNaN = Float.isNaN(vOdd);
-            if (evenNaN || oddNaN) {
-                if (evenNaN && oddNaN) {
-                    dst[r][0] = Float.NaN;
-                    dst[r][1] = Float.NaN;
-                } else {
-                    expandWithVoid(src.getGrid(), dst, 0, r, true);
+        expand(s[o], s[o], s[o + 1], dst, 0, dst, 1);
+
+        for (int c0 = 1; c0 < cols - 1;) {
+            final int c1 = Math.min(cols - 1, (c0 / VoidMask.TILE_SIZE + 1) * VoidMask.TILE_SIZE);
+            final byte state = mask.getState(c0 - 1, row, c1 + 1, row + 1);
+            if (state == VoidMask.ALL_VOID) {
+                Arrays.fill(dst, c0 * 2, c1 * 2, Float.NaN);
+            } else if (state == VoidMask.ALL_VALID) {
+                for (int c = c0; c < c1; c++) {
+                    final float v0 = s[o + c - 1];
+                    final float v1 = s[o + c];
+                    final float v2 = s[o + c + 1];
+                    dst[c * 2] = 2.f * (wc * (v0 + v2) + wa * v1);
+                    dst[c * 2 + 1] = 2.f * wb * (v1 + v2);
                 }
             } else {
-                dst[r][0] = vEven;
-                dst[r][1] = vOdd;
+                for (int c = c0; c < c1; c++) {
+                    final int dstCol = c * 2;
+                    expand(s[o + c - 1], s[o + c], s[o + c + 1],
+                            dst, dstCol, dst, dstCol + 1);
+                }
             }
+            c0 = c1;
         }
 
         // right column
-        for (int r = 0; r < rows; r++) {
-            float v0 = src.getValue(cols - 2, r);
-            float v1 = src.getValue(cols - 1, r);
-            float v2 = v1;
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            int dstCol = (cols - 1) * 2;
-            final boolean evenNaN = Float.isNaN(vEven);
-            final boolean oddNaN = Float.isNaN(vOdd);
-            if (evenNaN || oddNaN) {
-                if (evenNaN && oddNaN) {
-                    dst[r][dstCol] = Float.NaN;
-                    dst[r][dstCol + 1] = Float.NaN;
-                } else {
-                    expandWithVoid(src.getGrid(), dst, cols - 1, r, true);
-                }
-            } else {
-                dst[r][dstCol] = vEven;
-                dst[r][dstCol + 1] = vOdd;
-            }
-        }
+        final int dstCol = (cols - 1) * 2;
+        expand(s[o + cols - 2], s[o + cols - 1], s[o + cols - 1],
+                dst, dstCol, dst, dstCol + 1);
+        return dst;
     }
 
-    private static void expandBorderRows(float[][] src, Grid dstGeoGrid) {
-
-        final int cols = dstGeoGrid.getCols();
-        final int rows = dstGeoGrid.getRows();
-        final float[][] dstGrid = dstGeoGrid.getGrid();
-
-        // top row
-        for (int c = 0; c < cols; c++) {
-            float v0 = src[0][c];
-            float v1 = v0;
-            float v2 = src[1][c];
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            final boolean evenNaN = Float.isNaN(vEven);
-            final boolean oddNaN = Float.isNaN(vOdd);
-            if (evenNaN || oddNaN) {
-                if (evenNaN && oddNaN) {
-                    dstGrid[0][c] = Float.NaN;
-                    dstGrid[1][c] = Float.NaN;
-                } else {
-                    expandWithVoid(src, dstGrid, c, 0, false);
+    /**
+     * Vertically expands three consecutive horizontally expanded rows to an
+     * even and an odd row. The rows are processed in segments that are one
+     * tile of the void mask wide.
+     *
+     * @param row0 The row before the central row.
+     * @param row1 The central row.
+     * @param row2 The row after the central row.
+     * @param even Destination array for the even row.
+     * @param e Index of the first value of the even row in even.
+     * @param odd Destination array for the odd row.
+     * @param d Index of the first value of the odd row in odd.
+     * @param cols Number of columns to expand.
+     * @param mask The void mask of the grid to expand.
+     * @param srcRow0 The first row of the grid to expand that was used for
+     * the three horizontally expanded rows.
+     * @param srcRow1 The row after the last row of the grid to expand that
+     * was used for the three horizontally expanded rows.
+     */
+    private static void expandColumns(float[] row0, float[] row1, float[] row2,
+            float[] even, int e, float[] odd, int d, int cols,
+            VoidMask mask, int srcRow0, int srcRow1) {
+        for (int c0 = 0; c0 < cols;) {
+            final int c1 = Math.min(cols, (c0 / VoidMask.TILE_SIZE + 1) * VoidMask.TILE_SIZE);
+            // columns of the grid to expand used for this segment
+            final byte state = mask.getState(c0 / 2 - 1, srcRow0, (c1 - 1) / 2 + 2, srcRow1);
+            if (state == VoidMask.ALL_VOID) {
+                Arrays.fill(even, e + c0, e + c1, Float.NaN);
+                Arrays.fill(odd, d + c0, d + c1, Float.NaN);
+            } else if (state == VoidMask.ALL_VALID) {
+                for (int c = c0; c < c1; c++) {
+                    final float v1 = row1[c];
+                    final float v2 = row2[c];
+                    even[e + c] = 2.f * (wc * (row0[c] + v2) + wa * v1);
+                    odd[d + c] = 2.f * wb * (v1 + v2);
                 }
             } else {
-                dstGrid[0][c] = vEven;
-                dstGrid[1][c] = vOdd;
+                for (int c = c0; c < c1; c++) {
+                    expand(row0[c], row1[c], row2[c], even, e + c, odd, d + c);
+                }
             }
+            c0 = c1;
         }
+    }
 
-        // bottom row
-        for (int c = 0; c < cols; c++) {
-            float v0 = src[src.length - 2][c];
-            float v1 = src[src.length - 1][c];
-            float v2 = v1;
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            final boolean evenNaN = Float.isNaN(vEven);
-            final boolean oddNaN = Float.isNaN(vOdd);
-            if (evenNaN || oddNaN) {
-                if (evenNaN && oddNaN) {
-                    dstGrid[rows - 2][c] = Float.NaN;
-                    dstGrid[rows - 1][c] = Float.NaN;
-                } else {
-                    expandWithVoid(src, dstGrid, c, src.length - 1, false);
-                }
-            } else {
-                dstGrid[rows - 2][c] = vEven;
-                dstGrid[rows - 1][c] = vOdd;
+    /**
+     * Adds a weighted row of a high frequency grid to a row of a low
+     * frequency grid and stores the row.
+     *
+     * @param lowFreqRow View on the row of the low frequency grid.
+     * @param highFreqRow View on the row of the high frequency grid, or null.
+     * @param cols The number of columns.
+     * @param weight The weight of the high frequency row.
+     */
+    private static void addRow(GridRow lowFreqRow, GridRow highFreqRow,
+            int cols, float weight) {
+        if (highFreqRow != null && weight != 0f) {
+            final float[] g1 = lowFreqRow.array();
+            final float[] g2 = highFreqRow.moveTo(lowFreqRow.getRow()).array();
+            final int o1 = lowFreqRow.offset();
+            final int o2 = highFreqRow.offset();
+            for (int c = 0; c < cols; c++) {
+                g1[o1 + c] = g1[o1 + c] + g2[o2 + c] * weight;
             }
         }
+        lowFreqRow.store();
     }
 
     /**
-     * Expand the size of a grid by a factor 2.
+     * Expand the size of a grid by a factor 2. The expanded grid uses the same
+     * kind of storage as the passed grid and is taken from the shared
+     * GridPool.
      *
      * @param grid The grid to expand.
      * @param maxCols
@@ -156,160 +303,121 @@ public class LaplacianPyramid {
      */
     public static Grid expand(Grid grid, int maxCols, int maxRows) {
 
-        final int cols = grid.getCols();
-        final int rows = grid.getRows();
-
         // the new grid is twice as large
-        final int newCols = Math.min(maxCols, cols * 2);
-        final int newRows = Math.min(maxRows, rows * 2);
+        final int newCols = Math.min(maxCols, grid.getCols() * 2);
+        final int newRows = Math.min(maxRows, grid.getRows() * 2);
 
-        Grid expandedGrid = new Grid(newCols, newRows, grid.getCellSize() / 2);
+        // all values of the expanded grid are overwritten
+        Grid expandedGrid = GridPool.SHARED.acquireUninitialized(newCols, newRows,
+                grid.getCellSize() / 2, grid.getStorageFactory());
         expandedGrid.setWest(grid.getWest());
         expandedGrid.setSouth(grid.getSouth());
-
-        // tempGrid holds an intermediate grid that is expanded horizontally, 
-        // but not vertically.
-        float[][] tempGrid = new float[rows][cols * 2];
-
-        LaplacianPyramid.expandBorderColumns(grid, tempGrid);
-        for (int r = 0; r < rows; r++) {
-            final float[] tempGridRow = tempGrid[r];
-            for (int c = 1; c < cols - 1; c++) {
-                final float v0 = grid.getValue(c - 1, r);
-                final float v1 = grid.getValue(c, r);
-                final float v2 = grid.getValue(c + 1, r);
-                final float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-                final float vOdd = 2.f * wb * (v1 + v2);
-                final boolean evenNaN = Float.isNaN(vEven);
-                final boolean oddNaN = Float.isNaN(vOdd);
-                if (evenNaN || oddNaN) {
-                    if (evenNaN && oddNaN) {
-                        tempGridRow[c * 2] = Float.NaN;
-                        tempGridRow[c * 2 + 1] = Float.NaN;
-                    } else {
-                        expandWithVoid(grid.getGrid(), tempGrid, c, r, true);
-                    }
-                } else {
-                    tempGridRow[c * 2] = vEven;
-                    tempGridRow[c * 2 + 1] = vOdd;
-                }
-            }
-        }
-
-        LaplacianPyramid.expandBorderRows(tempGrid, expandedGrid);
-        for (int r = 1; r < rows - 1; r++) {
-            for (int c = 0; c < newCols; c++) {
-
-                final float v0 = tempGrid[r - 1][c];
-                final float v1 = tempGrid[r][c];
-                final float v2 = tempGrid[r + 1][c];
-                final float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-                final float vOdd = 2.f * wb * (v1 + v2);
-                final boolean evenNaN = Float.isNaN(vEven);
-                final boolean oddNaN = Float.isNaN(vOdd);
-                if (evenNaN || oddNaN) {
-                    if (evenNaN && oddNaN) {
-                        expandedGrid.setValue(Float.NaN, c, 2 * r);
-                        expandedGrid.setValue(Float.NaN, c, 2 * r + 1);
-                    } else {
-                        expandWithVoid(tempGrid, expandedGrid.getGrid(), c / 2, r, false);
-                    }
-                } else {
-                    expandedGrid.setValue(vEven, c, 2 * r);
-                    expandedGrid.setValue(vOdd, c, 2 * r + 1);
-                }
-            }
-        }
-
+        expandAndAdd(grid, expandedGrid, null, 0f);
         return expandedGrid;
     }
 
-    private static void expandWithVoid(float[][] srcGrid,
-            float[][] expandedGrid,
-            int c,
-            int r,
-            boolean horizontal) {
-
-        final float v0, v1, v2;
-        if (horizontal) {
-            v0 = srcGrid[r][Math.max(0, c - 1)];
-            v1 = srcGrid[r][c];
-            v2 = srcGrid[r][Math.min(srcGrid[0].length - 1, c + 1)];
-        } else {
-            v0 = srcGrid[Math.max(0, r - 1)][c];
-            v1 = srcGrid[r][c];
-            v2 = srcGrid[Math.min(srcGrid.length - 1, r + 1)][c];
-        }
-
-        float vEven = 0f;
-        float vOdd = 0f;
-        float totEvenW = 0f;
-        float totOddW = 0f;
-
-        if (!Float.isNaN(v0)) {
-            vEven = wc * v0;
-            totEvenW = wc;
-        }
-        if (!Float.isNaN(v1)) {
-            vEven += wa * v1;
-            vOdd += wb * v1;
-            totEvenW += wa;
-            totOddW += wb;
-        }
-        if (!Float.isNaN(v2)) {
-            vEven += wc * v2;
-            vOdd += wb * v2;
-            totEvenW += wc;
-            totOddW += wb;
-        }
-
-        if (totEvenW == 0) {
-            vEven = Float.NaN;
-        }
-        if (totOddW == 0) {
-            vOdd = Float.NaN;
-        }
-        final float scaleEven = (wc * 2 + wa) / totEvenW;
-        final float scaleOdd = wb * 2 / totOddW;
-
-        vEven *= 2f * scaleEven;
-        vOdd *= 2f * scaleOdd;
-        if (horizontal) {
-            expandedGrid[r][c * 2] = vEven;
-            expandedGrid[r][c * 2 + 1] = vOdd;
-        } else {
-            expandedGrid[r * 2][c] = vEven;
-            expandedGrid[r * 2 + 1][c] = vOdd;
-        }
+    /**
+     * Expands a grid by a factor 2 and adds a weighted high frequency grid in
+     * the same pass. Bands of rows of the grid to expand are processed in
+     * parallel.
+     *
+     * @param grid The grid to expand. Must have at least two columns and
+     * two rows.
+     * @param expandedGrid Destination grid. Must have twice the number of
+     * columns and rows of the grid to expand, or one column or row less.
+     * @param highFreq The high frequency grid with the size of expandedGrid,
+     * or null.
+     * @param weight The weight of the high frequency grid.
+     */
+    static void expandAndAdd(final Grid grid, final Grid expandedGrid,
+            final Grid highFreq, final float weight) {
+        final VoidMask mask = grid.getVoidMask();
+        // each band expands two more rows than it writes, so bands are not
+        // made smaller than needed for keeping all threads busy
+        final int parallelism = ThreadedGridOperator.getSharedPool().getParallelism();
+        final int bandHeight = Math.max(EXPAND_BAND_HEIGHT,
+                grid.getRows() / (parallelism * BANDS_PER_THREAD));
+        RowBands.forEach(grid, bandHeight, new RowBands.Task() {
+            @Override
+            public void run(Grid src, int startRow, int endRow) {
+                expandBand(src, expandedGrid, highFreq, weight, mask,
+                        startRow, endRow);
+            }
+        });
+        expandedGrid.modified();
     }
 
     /**
-     * Adds a high frequency grid to a low frequency grid.
+     * Expands a band of rows. Every row of the expanded grid is written by
+     * exactly one row of the grid to expand, such that bands can be expanded
+     * concurrently.
      *
-     * @param lowFreqSum Low frequency grid. The high frequency grid will be
-     * added to this grid.
-     * @param highFreq High frequency grid.
-     * @param scale
+     * @param grid The grid to expand.
+     * @param expandedGrid Destination grid.
+     * @param highFreq The high frequency grid or null.
+     * @param weight The weight of the high frequency grid.
+     * @param mask The void mask of the grid to expand.
+     * @param startRow The first row of the band in the grid to expand.
+     * @param endRow The row after the last row of the band.
      */
-    private void sumGrids(Grid lowFreqSum, Grid highFreq, float scale) {
-
-        if (!lowFreqSum.isIdenticalInSize(highFreq)) {
-            throw new IllegalArgumentException("grids of different size cannot be summed");
-        }
-
-        if (scale == 0f) {
-            return;
-        }
-
-        final int cols = lowFreqSum.getCols();
-        final int rows = lowFreqSum.getRows();
-
-        for (int r = 0; r < rows; r++) {
-            final float[] g1row = lowFreqSum.getGrid()[r];
-            final float[] g2row = highFreq.getGrid()[r];
-            for (int c = 0; c < cols; c++) {
-                lowFreqSum.setValue(g1row[c] + g2row[c] * scale, c, r);
+    private static void expandBand(Grid grid, Grid expandedGrid, Grid highFreq,
+            float weight, VoidMask mask, int startRow, int endRow) {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final int newCols = expandedGrid.getCols();
+        final int newRows = expandedGrid.getRows();
+
+        // The grid is first expanded horizontally and then vertically. Only
+        // three horizontally expanded rows are kept in memory. Border rows
+        // are repeated.
+        final int tempCols = cols * 2;
+        float[] temp0 = new float[tempCols];
+        float[] temp1 = new float[tempCols];
+        float[] temp2 = new float[tempCols];
+        final GridRow srcRow = grid.rowView();
+        final GridRow evenRow = expandedGrid.rowView();
+        final GridRow oddRow = expandedGrid.rowView();
+        final GridRow highFreqRow = highFreq == null ? null : highFreq.rowView();
+        float[] skipped = null;
+
+        expandRow(srcRow.moveTo(Math.max(0, startRow - 1)), cols, temp0, mask);
+        expandRow(srcRow.moveTo(startRow), cols, temp1, mask);
+        for (int r = startRow; r < endRow; r++) {
+            expandRow(srcRow.moveTo(Math.min(rows - 1, r + 1)), cols, temp2, mask);
+
+            // the last row is expanded to the last two rows of the expanded
+            // grid. If the expanded grid has an odd number of rows, the even
+            // row of the last row is the odd row of the previous row.
+            final boolean lastRow = r == rows - 1;
+            final boolean writeEven = !(lastRow && newRows % 2 == 1 && rows > 2);
+            final boolean writeOdd = !(r == 0 && newRows == 3);
+            if (writeEven) {
+                evenRow.moveTo(lastRow ? newRows - 2 : 2 * r);
+            }
+            if (writeOdd) {
+                oddRow.moveTo(lastRow ? newRows - 1 : 2 * r + 1);
+            }
+            if ((!writeEven || !writeOdd) && skipped == null) {
+                skipped = new float[newCols];
+            }
+            expandColumns(temp0, temp1, temp2,
+                    writeEven ? evenRow.array() : skipped,
+                    writeEven ? evenRow.offset() : 0,
+                    writeOdd ? oddRow.array() : skipped,
+                    writeOdd ? oddRow.offset() : 0,
+                    newCols, mask, Math.max(0, r - 1), Math.min(rows, r + 2));
+            if (writeEven) {
+                addRow(evenRow, highFreqRow, newCols, weight);
             }
+            if (writeOdd) {
+                addRow(oddRow, highFreqRow, newCols, weight);
+            }
+
+            // rotate the horizontally expanded rows
+            final float[] t = temp0;
+            temp0 = temp1;
+            temp1 = temp2;
+            temp2 = t;
         }
     }
 
@@ -322,6 +430,20 @@ public class LaplacianPyramid {
      * @return
      */
     public static Grid difGrids(Grid grid1, Grid grid2) {
+        return difGrids(grid1, grid2, grid1.getStorageFactory());
+    }
+
+    /**
+     * Compute the difference between two grids. Grids must be of identical
+     * size.
+     *
+     * @param grid1
+     * @param grid2
+     * @param storageFactory Storage for the difference grid.
+     * @return
+     */
+    private static Grid difGrids(Grid grid1, Grid grid2,
+            GridStorage.Factory storageFactory) {
 
         if (!grid1.isIdenticalInSize(grid2)) {
             throw new IllegalArgumentException("grids of different size");
@@ -329,16 +451,25 @@ public class LaplacianPyramid {
 
         final int cols = grid1.getCols();
         final int rows = grid1.getRows();
-        Grid difGrid = new Grid(cols, rows, grid1.getCellSize());
+        Grid difGrid = GridPool.SHARED.acquireUninitialized(cols, rows,
+                grid1.getCellSize(), storageFactory);
         difGrid.setWest(grid1.getWest());
         difGrid.setSouth(grid1.getSouth());
 
+        final GridRow row1 = grid1.rowView();
+        final GridRow row2 = grid2.rowView();
+        final GridRow difRow = difGrid.rowView();
         for (int r = 0; r < rows; r++) {
+            final float[] g1 = row1.moveTo(r).array();
+            final float[] g2 = row2.moveTo(r).array();
+            final float[] dif = difRow.moveTo(r).array();
+            final int o1 = row1.offset();
+            final int o2 = row2.offset();
+            final int d = difRow.offset();
             for (int c = 0; c < cols; c++) {
-                final float v1 = grid1.getValue(c, r);
-                final float v2 = grid2.getValue(c, r);
-                difGrid.setValue(v1 - v2, c, r);
+                dif[d + c] = g1[o1 + c] - g2[o2 + c];
             }
+            difRow.store();
         }
 
         return difGrid;
@@ -368,6 +499,32 @@ public class LaplacianPyramid {
      * @return Synthesized grid.
      */
     public Grid sumLevels(float[] levelWeights, boolean fullExpand) {
+        return sumLevels(levelWeights, fullExpand, null);
+    }
+
+    /**
+     * Sums the levels of the pyramid to re-synthesize the original image. Each
+     * level is expanded and the weighted next larger level is added in a
+     * single pass. Intermediate sums are taken from the shared GridPool and
+     * released as soon as the next level has been computed.
+     *
+     * The sum of the coarsest levels with weights of 1 is cached, and the
+     * cached sum is reused by the next call if the weights of these levels
+     * are still 1. Only the levels with other weights are then expanded and
+     * added.
+     *
+     * @param levelWeights Weights applied when merging pyramid levels. The
+     * first value is the weight for the highest frequency band.
+     * @param fullExpand If true, the resulting grid will have the same number
+     * of columns and rows as the most detailed level in this pyramid. If false,
+     * the resulting grid is smaller if the first weights in levelWeights are 0.
+     * @param dst Destination grid for the synthesized grid, or null. Must have
+     * the size of the resulting grid.
+     * @return Synthesized grid. This is dst if dst is not null, otherwise a
+     * grid taken from the shared GridPool.
+     */
+    public synchronized Grid sumLevels(float[] levelWeights, boolean fullExpand,
+            Grid dst) {
         if (levelWeights != null && levelWeights.length != levels.length) {
             throw new IllegalArgumentException("incorrect number of pyramid weights");
         }
@@ -381,29 +538,354 @@ public class LaplacianPyramid {
                 }
             }
         }
-        
-        // copy the smallest grid of the pyramid
-        Grid sum = new Grid(levels[levels.length - 1]);
+        final int resultLevelID = Math.min(mostDetailedLevelID, levels.length - 1);
+        if (dst != null && !dst.isIdenticalInSize(levels[resultLevelID])) {
+            throw new IllegalArgumentException("destination grid of wrong size");
+        }
 
-        // the weight for the base is usually 1, but might be different for
-        // a high-pass filter
-        if (levelWeights != null) {
-            float w = levelWeights[levels.length - 1];
+        // the level at which the partial sum of the coarse levels with
+        // weights of 1 will be cached, or -1
+        int cacheLevelID = -1;
+        if (getLevelWeight(levelWeights, levels.length - 1) == 1f) {
+            cacheLevelID = levels.length - 1;
+            while (cacheLevelID > 0 && getLevelWeight(levelWeights, cacheLevelID - 1) == 1f) {
+                cacheLevelID--;
+            }
+            cacheLevelID = Math.max(cacheLevelID, mostDetailedLevelID + 1);
+            if (cacheLevelID >= levels.length - 1) {
+                cacheLevelID = -1;
+            }
+        }
+
+        Grid sum;
+        int sumLevelID;
+        if (partialSum != null && partialSumLevelID > mostDetailedLevelID
+                && hasUnitWeights(levelWeights, partialSumLevelID)) {
+            // start with the cached sum of the coarse levels
+            sum = partialSum;
+            sumLevelID = partialSumLevelID;
+        } else {
+            // copy the smallest grid of the pyramid
+            sumLevelID = levels.length - 1;
+            sum = copy(levels[sumLevelID], resultLevelID == sumLevelID ? dst : null);
+
+            // the weight for the base is usually 1, but might be different
+            // for a high-pass filter
+            float w = getLevelWeight(levelWeights, sumLevelID);
             if (w != 1f) {
                 new GridScaleOperator(w).operate(sum, sum);
             }
         }
 
-        // expand the sum and and add the next larger grids
-        for (int i = levels.length - 2; i >= mostDetailedLevelID; i--) {
+        // expand the sum and add the next larger grids
+        for (int i = sumLevelID - 1; i >= mostDetailedLevelID; i--) {
             Grid grid = levels[i];
-            sum = LaplacianPyramid.expand(sum, grid.getCols(), grid.getRows());
-            float w = (levelWeights == null ? 1 : levelWeights[i]);
-            sumGrids(sum, grid, w);
+            Grid expanded;
+            if (i == mostDetailedLevelID && dst != null) {
+                expanded = dst;
+            } else {
+                // all values of the expanded grid are overwritten
+                expanded = GridPool.SHARED.acquireUninitialized(grid.getCols(),
+                        grid.getRows(), sum.getCellSize() / 2, sum.getStorageFactory());
+                expanded.setWest(sum.getWest());
+                expanded.setSouth(sum.getSouth());
+            }
+            if (!expanded.isIdenticalInSize(grid)) {
+                throw new IllegalArgumentException("grids of different size cannot be summed");
+            }
+            expandAndAdd(sum, expanded, grid, getLevelWeight(levelWeights, i));
+            // the intermediate sum is not referenced elsewhere
+            if (sum != partialSum) {
+                GridPool.SHARED.release(sum);
+            }
+            sum = expanded;
+
+            if (i == cacheLevelID) {
+                releasePartialSum();
+                partialSum = sum;
+                partialSumLevelID = i;
+            }
         }
         return sum;
     }
 
+    /**
+     * Sums the levels of the pyramid for a rectangular region of the most
+     * detailed level. For each level, only the cells required for the region
+     * and a halo of one cell of the next smaller level are expanded. The
+     * values are identical to the values of sumLevels(levelWeights, true).
+     *
+     * @param levelWeights Weights applied when merging pyramid levels. The
+     * first value is the weight for the highest frequency band. Can be null.
+     * @param roi The region in columns and rows of the most detailed level.
+     * Must be at least 3 x 3 cells and inside the most detailed level.
+     * @return A grid with the synthesized values of the region.
+     */
+    public Grid sumLevels(float[] levelWeights, Rectangle roi) {
+        return sumLevels(levelWeights, 0, roi);
+    }
+
+    /**
+     * Sums the levels of the pyramid down to a level for a rectangular region
+     * of this level. For each level, only the cells required for the region
+     * and a halo of one cell of the next smaller level are expanded. The
+     * partial sum cached by sumLevels(float[], boolean, Grid) is neither used
+     * nor changed.
+     *
+     * @param levelWeights Weights applied when merging pyramid levels. The
+     * first value is the weight for the highest frequency band. The weights
+     * of the levels with more detail than levelID are ignored. Can be null.
+     * @param levelID The most detailed level that is added. The level with
+     * the highest resolution is 0.
+     * @param roi The region in columns and rows of the level levelID. Must be
+     * at least 3 x 3 cells and inside the level.
+     * @return A grid with the synthesized values of the region.
+     */
+    public Grid sumLevels(float[] levelWeights, int levelID, Rectangle roi) {
+        if (levelWeights != null && levelWeights.length != levels.length) {
+            throw new IllegalArgumentException("incorrect number of pyramid weights");
+        }
+        if (levelID < 0 || levelID >= levels.length) {
+            throw new IllegalArgumentException("invalid pyramid level");
+        }
+        final Grid detailed = levels[levelID];
+        if (roi.x < 0 || roi.y < 0
+                || roi.x + roi.width > detailed.getCols()
+                || roi.y + roi.height > detailed.getRows()) {
+            throw new IllegalArgumentException("region outside of grid");
+        }
+
+        // the region of each level required for the region of the next
+        // larger level
+        final int n = levels.length;
+        final int[] x0 = new int[n];
+        final int[] x1 = new int[n];
+        final int[] y0 = new int[n];
+        final int[] y1 = new int[n];
+        x0[levelID] = roi.x;
+        x1[levelID] = roi.x + roi.width;
+        y0[levelID] = roi.y;
+        y1[levelID] = roi.y + roi.height;
+        for (int i = levelID + 1; i < n; i++) {
+            final int cols = levels[i].getCols();
+            final int rows = levels[i].getRows();
+            final int newRows = levels[i - 1].getRows();
+            x0[i] = Math.max(0, x0[i - 1] / 2 - 1);
+            x1[i] = Math.min(cols, (x1[i - 1] - 1) / 2 + 2);
+            y0[i] = Math.max(0, centerRow(y0[i - 1], rows, newRows) - 1);
+            y1[i] = Math.min(rows, centerRow(y1[i - 1] - 1, rows, newRows) + 2);
+        }
+
+        // the region of the smallest level
+        final Grid base = levels[n - 1];
+        final float baseWeight = getLevelWeight(levelWeights, n - 1);
+        float[] sum = new float[(x1[n - 1] - x0[n - 1]) * (y1[n - 1] - y0[n - 1])];
+        for (int r = y0[n - 1], i = 0; r < y1[n - 1]; r++) {
+            for (int c = x0[n - 1]; c < x1[n - 1]; c++, i++) {
+                final float v = base.getValue(c, r);
+                sum[i] = baseWeight == 1f ? v : v * baseWeight;
+            }
+        }
+
+        // expand the regions and add the regions of the next larger levels
+        for (int i = n - 2; i >= levelID; i--) {
+            sum = expandAndAddRegion(sum, x0[i + 1], x1[i + 1], y0[i + 1], y1[i + 1],
+                    levels[i + 1].getCols(), levels[i + 1].getRows(),
+                    levels[i], x0[i], x1[i], y0[i], y1[i],
+                    getLevelWeight(levelWeights, i));
+        }
+
+        Grid roiGrid = new Grid(roi.width, roi.height, detailed.getCellSize(),
+                detailed.getStorageFactory());
+        roiGrid.setWest(detailed.getWest() + roi.x * detailed.getCellSize());
+        roiGrid.setSouth(detailed.getSouth()
+                + (detailed.getRows() - roi.y - roi.height) * detailed.getCellSize());
+        final GridRow row = roiGrid.rowView();
+        for (int r = 0; r < roi.height; r++) {
+            System.arraycopy(sum, r * roi.width, row.moveTo(r).array(), row.offset(),
+                    roi.width);
+            row.store();
+        }
+        roiGrid.modified();
+        return roiGrid;
+    }
+
+    /**
+     * Returns the row of a grid that is expanded to a row of the expanded
+     * grid.
+     *
+     * @param expandedRow The row of the expanded grid.
+     * @param rows The number of rows of the grid.
+     * @param newRows The number of rows of the expanded grid.
+     * @return The central row of the three rows that are expanded.
+     */
+    private static int centerRow(int expandedRow, int rows, int newRows) {
+        // see expandBand() for the last two rows
+        if (expandedRow == newRows - 1
+                || (expandedRow == newRows - 2 && (newRows % 2 == 0 || rows == 2))) {
+            return rows - 1;
+        }
+        return expandedRow / 2;
+    }
+
+    /**
+     * Returns whether a row of the expanded grid is an even row, for which
+     * three rows are weighted with wc, wa and wc.
+     *
+     * @param expandedRow The row of the expanded grid.
+     * @param rows The number of rows of the grid.
+     * @param newRows The number of rows of the expanded grid.
+     * @return True for an even row, false for an odd row.
+     */
+    private static boolean isEvenRow(int expandedRow, int rows, int newRows) {
+        if (expandedRow == newRows - 1) {
+            return false;
+        }
+        if (expandedRow == newRows - 2 && (newRows % 2 == 0 || rows == 2)) {
+            return true;
+        }
+        return expandedRow % 2 == 0;
+    }
+
+    /**
+     * Expands a region of a grid and adds a weighted region of the next
+     * larger level. Computes the same values as expandAndAdd() for the
+     * region. NaN tests are not skipped, as void masks are not available for
+     * regions.
+     *
+     * @param src The values of the region to expand, row by row.
+     * @param srcX0 The first column of the region to expand.
+     * @param srcX1 The column after the last column of the region to expand.
+     * @param srcY0 The first row of the region to expand.
+     * @param srcY1 The row after the last row of the region to expand.
+     * @param cols The number of columns of the grid to expand.
+     * @param rows The number of rows of the grid to expand.
+     * @param highFreq The next larger level.
+     * @param x0 The first column of the expanded region.
+     * @param x1 The column after the last column of the expanded region.
+     * @param y0 The first row of the expanded region.
+     * @param y1 The row after the last row of the expanded region.
+     * @param weight The weight of the next larger level.
+     * @return The values of the expanded region, row by row.
+     */
+    private static float[] expandAndAddRegion(float[] src,
+            int srcX0, int srcX1, int srcY0, int srcY1, int cols, int rows,
+            Grid highFreq, int x0, int x1, int y0, int y1, float weight) {
+        final int srcWidth = srcX1 - srcX0;
+        final int width = x1 - x0;
+        final int newRows = highFreq.getRows();
+        final float[] pair = new float[2];
+
+        // expand the rows of the region horizontally
+        final float[][] h = new float[srcY1 - srcY0][width];
+        for (int r = srcY0; r < srcY1; r++) {
+            final int o = (r - srcY0) * srcWidth - srcX0;
+            final float[] hRow = h[r - srcY0];
+            for (int x = x0; x < x1; x++) {
+                final int c = x / 2;
+                expand(src[o + Math.max(0, c - 1)], src[o + c],
+                        src[o + Math.min(cols - 1, c + 1)], pair, 0, pair, 1);
+                hRow[x - x0] = pair[x % 2];
+            }
+        }
+
+        // expand vertically and add the next larger level
+        final float[] dst = new float[width * (y1 - y0)];
+        for (int y = y0; y < y1; y++) {
+            final int r = centerRow(y, rows, newRows);
+            final int k = isEvenRow(y, rows, newRows) ? 0 : 1;
+            final float[] h0 = h[Math.max(0, r - 1) - srcY0];
+            final float[] h1 = h[r - srcY0];
+            final float[] h2 = h[Math.min(rows - 1, r + 1) - srcY0];
+            final int o = (y - y0) * width;
+            for (int x = 0; x < width; x++) {
+                expand(h0[x], h1[x], h2[x], pair, 0, pair, 1);
+                float v = pair[k];
+                if (weight != 0f) {
+                    v = v + highFreq.getValue(x0 + x, y) * weight;
+                }
+                dst[o + x] = v;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Returns the weight of a level.
+     *
+     * @param levelWeights The weights of all levels or null.
+     * @param levelID The level.
+     * @return The weight, which is 1 if levelWeights is null.
+     */
+    private static float getLevelWeight(float[] levelWeights, int levelID) {
+        return levelWeights == null ? 1f : levelWeights[levelID];
+    }
+
+    /**
+     * Returns whether a level and all coarser levels have weights of 1.
+     *
+     * @param levelWeights The weights of all levels or null.
+     * @param levelID The most detailed level to test.
+     * @return True if the weights are 1.
+     */
+    private boolean hasUnitWeights(float[] levelWeights, int levelID) {
+        for (int i = levelID; i < levels.length; i++) {
+            if (getLevelWeight(levelWeights, i) != 1f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached partial sum of the coarse levels to the shared
+     * GridPool.
+     */
+    private synchronized void releasePartialSum() {
+        if (partialSum != null) {
+            GridPool.SHARED.release(partialSum);
+            partialSum = null;
+        }
+    }
+
+    /**
+     * Copies a grid.
+     *
+     * @param grid The grid to copy.
+     * @param copy The destination grid with the size of grid, or null to
+     * take a grid from the shared GridPool.
+     * @return The copy.
+     */
+    private static Grid copy(Grid grid, Grid copy) {
+        if (copy == null) {
+            copy = GridPool.SHARED.acquireUninitialized(grid.getCols(),
+                    grid.getRows(), grid.getCellSize(), grid.getStorageFactory());
+            copy.setWest(grid.getWest());
+            copy.setSouth(grid.getSouth());
+        }
+        final GridRow srcRow = grid.rowView();
+        final GridRow dstRow = copy.rowView();
+        for (int r = 0; r < grid.getRows(); r++) {
+            System.arraycopy(srcRow.moveTo(r).array(), srcRow.offset(),
+                    dstRow.moveTo(r).array(), dstRow.offset(), grid.getCols());
+            dstRow.store();
+        }
+        copy.modified();
+        return copy;
+    }
+
+    /**
+     * Sets the levels of this pyramid, for example levels loaded from a
+     * PyramidCache.
+     *
+     * @param levels The levels with the highest frequencies at position 0
+     * and the lowest frequencies at the last position.
+     */
+    void setLevels(Grid[] levels) {
+        releasePartialSum();
+        this.levels = levels;
+    }
+
     public Grid[] getLevels() {
         return levels;
     }
@@ -103,6 +103,7 @@ class LocalGridModel {
             // high pass grid is the difference between the original grid
             // and the low-pass filtered grid.
             highPassGrid = new GridDiffOperator().operate(originalGrid, lowPassGrid);
+            GridPool.SHARED.release(lowPassGrid);
         } else {
             // compute weights for constructing high-pass grid from Laplacian pyramid
             float[] w = originalGridLaplacianPyramid.createConstantWeights(0);
@@ -0,0 +1,144 @@
+package edu.oregonstate.cartography.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores the values of a grid in a memory-mapped scratch file outside of the
+ * Java heap. The operating system pages values in and out of memory, which
+ * allows for grids that are larger than the heap.
+ *
+ * A single mapping cannot exceed 2 GB. The file is therefore mapped in chunks
+ * of entire rows.
+ *
+ * The scratch file is deleted when the storage is created. On systems that do
+ * not allow for deleting mapped files, the file is deleted when the virtual
+ * machine exits.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class MappedGridStorage extends GridStorage {
+
+    /**
+     * Mapped chunks of rows.
+     */
+    private final FloatBuffer[] chunks;
+
+    /**
+     * The number of rows in each chunk. The last chunk may contain fewer rows.
+     */
+    private final int rowsPerChunk;
+
+    /**
+     * Creates a new storage.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param dir The directory for the scratch file.
+     * @throws IOException If the scratch file cannot be created or mapped.
+     */
+    MappedGridStorage(int cols, int rows, File dir) throws IOException {
+        super(cols, rows);
+        rowsPerChunk = rowsPerChunk(cols, rows);
+        chunks = new FloatBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+
+        File file = File.createTempFile("grid", ".tmp", dir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+            raf.setLength(4L * cols * rows);
+            map(channel, 0, FileChannel.MapMode.READ_WRITE);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Creates a read-only storage for values in an existing file. The values
+     * are stored row by row in the native byte order. The operating system
+     * loads values when they are first accessed.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param channel The channel of the file. Can be closed after the storage
+     * has been created.
+     * @param position The position of the first value in the file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    MappedGridStorage(int cols, int rows, FileChannel channel, long position)
+            throws IOException {
+        super(cols, rows);
+        rowsPerChunk = rowsPerChunk(cols, rows);
+        chunks = new FloatBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+        map(channel, position, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Returns the number of rows in a chunk mapped with a single mapping.
+     */
+    private static int rowsPerChunk(int cols, int rows) {
+        final long rowBytes = 4L * cols;
+        if (rowBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large.");
+        }
+        return (int) Math.min(rows, Integer.MAX_VALUE / rowBytes);
+    }
+
+    /**
+     * Maps the chunks of rows.
+     *
+     * @param channel The channel of the file.
+     * @param position The position of the first value in the file.
+     * @param mode The mapping mode.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private void map(FileChannel channel, long position, FileChannel.MapMode mode)
+            throws IOException {
+        final long rowBytes = 4L * cols;
+        for (int i = 0; i < chunks.length; i++) {
+            final int chunkRows = Math.min(rowsPerChunk, rows - i * rowsPerChunk);
+            final long chunkPosition = position + rowBytes * i * rowsPerChunk;
+            chunks[i] = channel.map(mode, chunkPosition, rowBytes * chunkRows)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    @Override
+    float getValue(int col, int row) {
+        return chunks[row / rowsPerChunk].get((row % rowsPerChunk) * cols + col);
+    }
+
+    @Override
+    void setValue(float value, int col, int row) {
+        chunks[row / rowsPerChunk].put((row % rowsPerChunk) * cols + col, value);
+    }
+
+    /**
+     * Returns a buffer positioned at the first value of a row. The buffer is
+     * not shared with other threads.
+     *
+     * @param row The row.
+     * @return The buffer.
+     */
+    private FloatBuffer rowBuffer(int row) {
+        FloatBuffer buffer = chunks[row / rowsPerChunk].duplicate();
+        buffer.position((row % rowsPerChunk) * cols);
+        return buffer;
+    }
+
+    @Override
+    void readRow(int row, float[] dst, int dstOffset) {
+        rowBuffer(row).get(dst, dstOffset, cols);
+    }
+
+    @Override
+    void writeRow(int row, float[] src, int srcOffset) {
+        rowBuffer(row).put(src, srcOffset, cols);
+    }
+}
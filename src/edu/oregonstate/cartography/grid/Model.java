@@ -3,22 +3,33 @@ package edu.oregonstate.cartography.grid;
 import static edu.oregonstate.cartography.grid.Model.ForegroundVisualization.ILLUMINATED_CONTOURS;
 import edu.oregonstate.cartography.grid.operators.ColorizerOperator;
 import edu.oregonstate.cartography.grid.operators.ColorizerOperator.ColorVisualization;
+import edu.oregonstate.cartography.grid.operators.ExecutionContext;
 import edu.oregonstate.cartography.grid.operators.GridAddOperator;
 import edu.oregonstate.cartography.grid.operators.GridCopyOperator;
 import edu.oregonstate.cartography.grid.operators.GridMaskOperator;
+import edu.oregonstate.cartography.grid.operators.GridPipeline;
 import edu.oregonstate.cartography.grid.operators.GridScaleOperator;
 import edu.oregonstate.cartography.grid.operators.GridScaleToRangeOperator;
 import edu.oregonstate.cartography.grid.operators.GridSlopeOperator;
 import edu.oregonstate.cartography.grid.operators.GridVoidOperator;
 import edu.oregonstate.cartography.grid.operators.IlluminatedContoursOperator;
 import edu.oregonstate.cartography.grid.operators.PlanObliqueOperator;
+import edu.oregonstate.cartography.grid.operators.ShadingCache;
+import edu.oregonstate.cartography.grid.operators.ThreadedGridOperator;
 import edu.oregonstate.cartography.gui.bivariate.BivariateColorRenderer;
 import edu.oregonstate.cartography.gui.ProgressIndicator;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import edu.oregonstate.cartography.gui.bivariate.ColorLUTInterface;
 
 /**
@@ -79,6 +90,141 @@ public class Model implements Cloneable {
         NONE, ILLUMINATED_CONTOURS, SHADED_CONTOURS
     }
 
+    /**
+     * A preview of a region of the generalized grid, rendered from a level of
+     * the Laplacian pyramid.
+     */
+    public static final class Preview {
+
+        /**
+         * The level of the pyramid. The level with the highest resolution is
+         * 0, and each pixel of the images covers 2^levelID x 2^levelID cells
+         * of the generalized grid.
+         */
+        public final int levelID;
+
+        /**
+         * The region covered by the images in columns and rows of the
+         * generalized grid. The region may extend beyond the last column and
+         * row of the generalized grid when a cell of the level covers the
+         * border of the generalized grid.
+         */
+        public final Rectangle bounds;
+
+        /**
+         * The background image.
+         */
+        public final BufferedImage backgroundImage;
+
+        /**
+         * The foreground image, or null if no foreground is rendered.
+         */
+        public final BufferedImage foregroundImage;
+
+        Preview(int levelID, Rectangle bounds, BufferedImage backgroundImage,
+                BufferedImage foregroundImage) {
+            this.levelID = levelID;
+            this.bounds = bounds;
+            this.backgroundImage = backgroundImage;
+            this.foregroundImage = foregroundImage;
+        }
+    }
+
+    /**
+     * Reports the progress of one of several concurrent renderings to a
+     * progress indicator shared by all renderings. Each rendering covers an
+     * equal share of the progress of the shared indicator. The shared
+     * indicator is started and completed by its owner.
+     */
+    private static final class ShareOfProgress implements ProgressIndicator {
+
+        private final ProgressIndicator indicator;
+        private final AtomicIntegerArray percentages;
+        private final int id;
+
+        /**
+         * Creates progress indicators for concurrent renderings.
+         *
+         * @param indicator The shared progress indicator.
+         * @param n The number of renderings.
+         * @return One progress indicator for each rendering.
+         */
+        static ShareOfProgress[] create(ProgressIndicator indicator, int n) {
+            AtomicIntegerArray percentages = new AtomicIntegerArray(n);
+            ShareOfProgress[] shares = new ShareOfProgress[n];
+            for (int i = 0; i < n; i++) {
+                shares[i] = new ShareOfProgress(indicator, percentages, i);
+            }
+            return shares;
+        }
+
+        private ShareOfProgress(ProgressIndicator indicator,
+                AtomicIntegerArray percentages, int id) {
+            this.indicator = indicator;
+            this.percentages = percentages;
+            this.id = id;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void completeProgress() {
+        }
+
+        @Override
+        public boolean progress(int percentage) {
+            percentages.set(id, percentage);
+            int sum = 0;
+            for (int i = 0; i < percentages.length(); i++) {
+                sum += percentages.get(i);
+            }
+            return indicator.progress(sum / percentages.length());
+        }
+
+        @Override
+        public void cancel() {
+            indicator.cancel();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return indicator.isCancelled();
+        }
+
+        @Override
+        public void setCancellable(boolean cancellable) {
+        }
+
+        @Override
+        public void setMessage(String msg) {
+            indicator.setMessage(msg);
+        }
+
+        @Override
+        public void setTotalTasksCount(int tasksCount) {
+        }
+
+        @Override
+        public int getTotalTasksCount() {
+            return indicator.getTotalTasksCount();
+        }
+
+        @Override
+        public void nextTask() {
+        }
+
+        @Override
+        public void nextTask(String message) {
+        }
+
+        @Override
+        public int currentTask() {
+            return indicator.currentTask();
+        }
+    }
+
     /**
      * original grid
      */
@@ -94,11 +240,62 @@ public class Model implements Cloneable {
      */
     public LaplacianPyramid laplacianPyramid;
 
+    /**
+     * Storage for the levels of the Laplacian pyramid, for example
+     * GridStorage.HALF_FLOAT to halve the memory of the pyramid. If null, the
+     * storage of the original grid is used.
+     */
+    public GridStorage.Factory laplacianPyramidStorage = null;
+
+    /**
+     * Cache for Laplacian pyramids in files, such that the pyramid of a grid
+     * that is opened again does not need to be computed. Only used if
+     * laplacianPyramidStorage is null. Null if pyramids are not cached.
+     */
+    public PyramidCache pyramidCache = null;
+
+    /**
+     * Maximum number of bytes for the levels of the Laplacian pyramid expanded
+     * to full resolution. With expanded levels, the generalized grid is
+     * updated without expanding levels. If the expanded levels require more
+     * memory, or if this is 0, the levels are not expanded in advance.
+     */
+    public long fullResolutionBandsBudget = 0;
+
+    /**
+     * Levels of the Laplacian pyramid expanded to full resolution, or null.
+     */
+    private FullResolutionBands fullResolutionBands;
+
+    /**
+     * Shading of the last rendered grid, such that changing colors does not
+     * require computing the shading again.
+     */
+    private final ShadingCache shadingCache = new ShadingCache();
+
+    /**
+     * Generalized grid with plan oblique relief of the last rendered image.
+     */
+    private final RenderStage planObliqueStage = new RenderStage();
+
+    /**
+     * Smoothed generalized grid for the aspect of illuminated contours of
+     * the last rendered image.
+     */
+    private final RenderStage contoursSmoothStage = new RenderStage();
+
     /**
      * modified grid composed of summed pyramids
      */
     private Grid generalizedGrid;
 
+    /**
+     * Minimum and maximum of the summed pyramid levels before the generalized
+     * grid is scaled to the range of the original grid. Previews of regions
+     * are scaled with this range.
+     */
+    private float[] generalizedSumMinMax;
+
     /**
      * slope values of generalized grid.
      */
@@ -365,22 +562,56 @@ public class Model implements Cloneable {
                 w[i] = getPyramidLevelWeight(i);
             }
 
-            // sum the Laplacian pyramids
-            generalizedGrid = laplacianPyramid.sumLevels(w, true);
+            // sum the Laplacian pyramids. The most detailed level is written
+            // directly to a new grid, as renderers may still read the
+            // previous generalized grid.
+            if (fullResolutionBands != null) {
+                generalizedGrid = fullResolutionBands.sum(w, createGrid(grid));
+            } else {
+                generalizedGrid = laplacianPyramid.sumLevels(w, true, createGrid(grid));
+            }
 
             // copy NaN values from original grid
             new GridMaskOperator().operate(grid, generalizedGrid);
 
             // scale the minimum and maximum values of the output generalized grid to 
-            // the same range as the input grid.
-            new GridScaleToRangeOperator(gridMinMax).operate(generalizedGrid, generalizedGrid);
+            // the same range as the input grid, and compute the slope. Both
+            // operators are applied band by band in a single pass.
+            generalizedSumMinMax = generalizedGrid.getMinMax();
+            GridScaleToRangeOperator scaleOp = new GridScaleToRangeOperator(gridMinMax);
+            scaleOp.setSourceRange(generalizedSumMinMax);
+            generalizedSlopeGrid = createGrid(generalizedGrid);
+            new GridPipeline()
+                    .add(scaleOp, generalizedGrid, generalizedGrid)
+                    .add(new GridSlopeOperator(), generalizedGrid, generalizedSlopeGrid)
+                    .run();
         } else {
-            generalizedGrid = new GridCopyOperator().operate(grid);
+            // copy the grid and compute the slope in a single pass
+            generalizedGrid = createGrid(grid);
+            generalizedSlopeGrid = createGrid(grid);
+            new GridPipeline()
+                    .add(new GridCopyOperator(), grid, generalizedGrid)
+                    .add(new GridSlopeOperator(), generalizedGrid, generalizedSlopeGrid)
+                    .run();
         }
-        generalizedSlopeGrid = new GridSlopeOperator().operate(generalizedGrid);
         //System.out.println((System.nanoTime() - start) / 1000 / 1000 + "ms");
     }
 
+    /**
+     * Creates a new grid with the same size, position and kind of storage as
+     * a template grid.
+     *
+     * @param template The template grid.
+     * @return The new grid with all values set to 0.
+     */
+    private static Grid createGrid(Grid template) {
+        Grid newGrid = new Grid(template.getCols(), template.getRows(),
+                template.getCellSize(), template.getStorageFactory());
+        newGrid.setWest(template.getWest());
+        newGrid.setSouth(template.getSouth());
+        return newGrid;
+    }
+
     /**
      * Creates a new BufferedImage
      *
@@ -417,31 +648,29 @@ public class Model implements Cloneable {
      */
     public BufferedImage renderBackgroundImage(BufferedImage destinationImage,
             ProgressIndicator progressIndicator) {
+        return renderBackgroundImage(destinationImage, progressIndicator, null);
+    }
+
+    /**
+     * Render background image, such as shading or hypsometric tinting.
+     *
+     * @param destinationImage The background image will be rendered to this
+     * image.
+     * @param progressIndicator
+     * @param executionContext The thread budget, priority and cancellation
+     * token of the rendering. Can be null.
+     * @return
+     */
+    public BufferedImage renderBackgroundImage(BufferedImage destinationImage,
+            ProgressIndicator progressIndicator, ExecutionContext executionContext) {
         if (destinationImage == null) {
             return null;
         }
 
         // background visualization
         if (backgroundVisualization == ColorVisualization.CONTINUOUS) {
-            // fill image with single color
-            Graphics2D graphics = (Graphics2D) destinationImage.getGraphics();
-            graphics.setColor(solidColor);
-            graphics.fillRect(0, 0, destinationImage.getWidth(), destinationImage.getHeight());
-            graphics.dispose();
+            fillSolidColor(destinationImage);
         } else {
-            Grid planObliqueGeneralizedGrid = generalizedGrid;
-            if (generalizedGrid != null) {
-                PlanObliqueOperator planObliqueOp = new PlanObliqueOperator(planObliqueAngle, gridMinMax[0]);
-                if (planObliqueAngle != 90) {
-                    planObliqueGeneralizedGrid = planObliqueOp.operate(generalizedGrid);
-                }
-            }
-
-            // coloring and shading
-            ColorizerOperator colorizer = new ColorizerOperator(backgroundVisualization,
-                    bivariateColorRender, colorLUT, progressIndicator);
-            colorizer.setColors(colorRamp.colors, colorRamp.colorPositions);
-
             final Grid g;
             final float min;
             final float max;
@@ -459,16 +688,72 @@ public class Model implements Cloneable {
                 if (backgroundVisualization.isLocal()) {
                     g = localGridModel.getFilteredGrid();
                 } else {
-                    g = planObliqueGeneralizedGrid;
+                    g = getPlanObliqueGrid();
                 }
             }
-            colorizer.operate(g, destinationImage,
-                    min, max,
-                    azimuth, zenith, ambientLight, shadingVerticalExaggeration);
+            colorize(g, destinationImage, min, max, shadingCache,
+                    progressIndicator, executionContext);
         }
         return destinationImage;
     }
 
+    /**
+     * Fills an image with the solid background color.
+     *
+     * @param destinationImage The image.
+     */
+    private void fillSolidColor(BufferedImage destinationImage) {
+        Graphics2D graphics = (Graphics2D) destinationImage.getGraphics();
+        graphics.setColor(solidColor);
+        graphics.fillRect(0, 0, destinationImage.getWidth(), destinationImage.getHeight());
+        graphics.dispose();
+    }
+
+    /**
+     * Colors and shades a grid with the background visualization.
+     *
+     * @param g The grid.
+     * @param destinationImage The image to render to.
+     * @param min The value of the lowest color.
+     * @param max The value of the highest color.
+     * @param cache Cache for the shading or null.
+     * @param progressIndicator Progress indicator. Can be null.
+     * @param executionContext The execution context. Can be null.
+     */
+    private void colorize(Grid g, BufferedImage destinationImage, float min,
+            float max, ShadingCache cache, ProgressIndicator progressIndicator,
+            ExecutionContext executionContext) {
+        ColorizerOperator colorizer = new ColorizerOperator(backgroundVisualization,
+                bivariateColorRender, colorLUT, progressIndicator);
+        colorizer.setColors(colorRamp.colors, colorRamp.colorPositions);
+        colorizer.setExecutionContext(executionContext);
+        colorizer.setShadingCache(cache);
+        colorizer.operate(g, destinationImage, min, max,
+                azimuth, zenith, ambientLight, shadingVerticalExaggeration);
+    }
+
+    /**
+     * Returns the generalized grid with plan oblique relief. The grid is
+     * kept until the generalized grid or the plan oblique angle change.
+     *
+     * @return The plan oblique grid, or the generalized grid if the plan
+     * oblique angle is 90 degrees.
+     */
+    private Grid getPlanObliqueGrid() {
+        if (generalizedGrid == null || planObliqueAngle == 90) {
+            return generalizedGrid;
+        }
+        Object[] inputs = {generalizedGrid, generalizedGrid.getModificationCount(),
+            planObliqueAngle, gridMinMax[0]};
+        Grid planObliqueGrid = planObliqueStage.get(inputs);
+        if (planObliqueGrid == null) {
+            PlanObliqueOperator planObliqueOp = new PlanObliqueOperator(planObliqueAngle, gridMinMax[0]);
+            planObliqueGrid = planObliqueOp.operate(generalizedGrid);
+            planObliqueStage.put(planObliqueGrid, inputs);
+        }
+        return planObliqueGrid;
+    }
+
     /**
      * Render foreground visualization: illuminated contours
      *
@@ -479,15 +764,306 @@ public class Model implements Cloneable {
      */
     public BufferedImage renderForegroundImage(BufferedImage destinationImage,
             ProgressIndicator progressIndicator) {
+        return renderForegroundImage(destinationImage, progressIndicator, null);
+    }
+
+    /**
+     * Render foreground visualization: illuminated contours
+     *
+     * @param destinationImage The foreground image will be rendered to this
+     * image.
+     * @param progressIndicator
+     * @param executionContext The thread budget, priority and cancellation
+     * token of the rendering. Can be null.
+     * @return
+     */
+    public BufferedImage renderForegroundImage(BufferedImage destinationImage,
+            ProgressIndicator progressIndicator, ExecutionContext executionContext) {
         if (isRenderingForeground()) {
             boolean illuminated = (foregroundVisualization == ILLUMINATED_CONTOURS);
             IlluminatedContoursOperator op = setupIlluminatedContoursOperator(illuminated);
+            op.setExecutionContext(executionContext);
+
+            // the smoothed grid is kept until the generalized grid or the
+            // blur change. The grid of a cancelled rendering is incomplete.
+            Object[] inputs = {generalizedGrid, generalizedGrid.getModificationCount(),
+                contoursAspectGaussBlur};
+            Grid smoothGrid = contoursSmoothStage.get(inputs);
+            if (smoothGrid == null) {
+                smoothGrid = op.createSmoothGrid(generalizedGrid, progressIndicator);
+                if (isCancelled(progressIndicator, executionContext)) {
+                    GridPool.SHARED.release(smoothGrid);
+                    return destinationImage;
+                }
+                contoursSmoothStage.put(smoothGrid, inputs);
+            }
             op.renderToImage(destinationImage, generalizedGrid,
-                    generalizedSlopeGrid, progressIndicator);
+                    generalizedSlopeGrid, smoothGrid, progressIndicator);
         }
         return destinationImage;
     }
 
+    /**
+     * Renders the background and the foreground image. The two images do not
+     * depend on each other and are rendered concurrently by the pool of the
+     * execution context, or by the pool shared by all operators. The stages
+     * of each image, for example the plan oblique grid and the coloring of
+     * the background, or the smoothed grid and the contours of the
+     * foreground, are executed in sequence. The operators of each stage
+     * split their rows between the threads of the pool, and threads that
+     * become idle in one image help with the other image.
+     *
+     * @param backgroundImage The background image will be rendered to this
+     * image.
+     * @param foregroundImage The foreground image will be rendered to this
+     * image if isRenderingForeground() returns true.
+     * @param progressIndicator Progress indicator informed by both images,
+     * each covering half of the progress. Can be null.
+     * @param executionContext The thread budget, priority and cancellation
+     * token of the rendering. Can be null.
+     */
+    public void renderImages(final BufferedImage backgroundImage,
+            final BufferedImage foregroundImage,
+            final ProgressIndicator progressIndicator,
+            final ExecutionContext executionContext) {
+        if (!isRenderingForeground()) {
+            renderBackgroundImage(backgroundImage, progressIndicator, executionContext);
+            return;
+        }
+
+        // both images report to the progress indicator concurrently
+        final ProgressIndicator[] progress = progressIndicator == null
+                ? new ProgressIndicator[2]
+                : ShareOfProgress.create(progressIndicator, 2);
+        final RecursiveAction background = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                renderBackgroundImage(backgroundImage, progress[0], executionContext);
+            }
+        };
+        final RecursiveAction foreground = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                renderForegroundImage(foregroundImage, progress[1], executionContext);
+            }
+        };
+        renderConcurrently(background, foreground, executionContext);
+    }
+
+    /**
+     * Executes two rendering tasks concurrently.
+     *
+     * @param task1 The first task.
+     * @param task2 The second task.
+     * @param executionContext The execution context providing the pool, or
+     * null to use the pool shared by all operators.
+     */
+    private static void renderConcurrently(final RecursiveAction task1,
+            final RecursiveAction task2, ExecutionContext executionContext) {
+        ForkJoinPool pool = executionContext == null
+                ? ThreadedGridOperator.getSharedPool() : executionContext.getPool();
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(task1, task2);
+            }
+        });
+    }
+
+    /**
+     * Renders a preview of a region of the generalized grid. The preview is
+     * rendered from a level of the Laplacian pyramid, such that the number
+     * of rendered pixels depends on the size of the region on the screen
+     * instead of the size of the grid. The weighted levels of the pyramid
+     * are summed down to the requested level for the cells of the region
+     * only, and the sum is scaled like the generalized grid.
+     *
+     * The preview approximates the full resolution rendering: above level 0,
+     * void areas are not masked, and contour line widths are relative to the
+     * cell size of the level.
+     *
+     * @param levelID The requested level of the pyramid. The level with the
+     * highest resolution is 0. The coarsest level is used if the pyramid has
+     * fewer levels.
+     * @param region The region in columns and rows of the generalized grid.
+     * @param foregroundScale Scale factor by which the foreground image will
+     * be larger than the background image.
+     * @param progressIndicator Progress indicator. Can be null.
+     * @param executionContext The thread budget, priority and cancellation
+     * token of the rendering. Can be null.
+     * @return The preview, or null if there is no grid, if the level of
+     * the pyramid is smaller than 3 x 3 cells, or if the background
+     * visualization cannot be previewed.
+     * Local hypsometric tints and bivariate colors cannot be previewed, as
+     * they are derived from other grids than the generalized grid.
+     */
+    public Preview renderPreview(int levelID, Rectangle region, int foregroundScale,
+            final ProgressIndicator progressIndicator,
+            final ExecutionContext executionContext) {
+        if (generalizedGrid == null || laplacianPyramid == null
+                || backgroundVisualization.isLocal()
+                || backgroundVisualization == ColorVisualization.BIVARIATE
+                || backgroundVisualization == ColorVisualization.BIVARIATE_SHADING) {
+            return null;
+        }
+
+        // the region in columns and rows of the level
+        final Grid[] levels = laplacianPyramid.getLevels();
+        levelID = Math.max(0, Math.min(levels.length - 1, levelID));
+        final int levelScale = 1 << levelID;
+        final int levelCols = levels[levelID].getCols();
+        final int levelRows = levels[levelID].getRows();
+        if (levelCols < 3 || levelRows < 3) {
+            return null;
+        }
+        int x1 = Math.min(levelCols, (region.x + region.width + levelScale - 1) / levelScale);
+        int y1 = Math.min(levelRows, (region.y + region.height + levelScale - 1) / levelScale);
+        // operators need at least 3 x 3 cells
+        int x0 = Math.max(0, Math.min(region.x / levelScale, x1 - 3));
+        int y0 = Math.max(0, Math.min(region.y / levelScale, y1 - 3));
+        x1 = Math.max(x1, x0 + 3);
+        y1 = Math.max(y1, y0 + 3);
+        final Rectangle levelRegion = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        final Grid previewGrid = levelID == 0
+                ? crop(generalizedGrid, levelRegion)
+                : sumPreviewLevels(levelID, levelRegion);
+        final Rectangle bounds = new Rectangle(x0 * levelScale, y0 * levelScale,
+                (x1 - x0) * levelScale, (y1 - y0) * levelScale);
+
+        final BufferedImage backgroundImage = new BufferedImage(
+                previewGrid.getCols(), previewGrid.getRows(), BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage foregroundImage = isRenderingForeground()
+                ? new BufferedImage(previewGrid.getCols() * foregroundScale,
+                        previewGrid.getRows() * foregroundScale, BufferedImage.TYPE_INT_ARGB)
+                : null;
+
+        final RecursiveAction background = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (backgroundVisualization == ColorVisualization.CONTINUOUS) {
+                    fillSolidColor(backgroundImage);
+                    return;
+                }
+                Grid g = previewGrid;
+                if (planObliqueAngle != 90) {
+                    g = new PlanObliqueOperator(planObliqueAngle, gridMinMax[0]).operate(previewGrid);
+                }
+                try {
+                    colorize(g, backgroundImage, gridMinMax[0], gridMinMax[1],
+                            null, progressIndicator, executionContext);
+                } finally {
+                    if (g != previewGrid) {
+                        GridPool.SHARED.release(g);
+                    }
+                }
+            }
+        };
+        final RecursiveAction foreground = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                GridSlopeOperator slopeOp = new GridSlopeOperator();
+                slopeOp.setExecutionContext(executionContext);
+                Grid slopeGrid = slopeOp.operate(previewGrid);
+                try {
+                    boolean illuminated = (foregroundVisualization == ILLUMINATED_CONTOURS);
+                    IlluminatedContoursOperator op = setupIlluminatedContoursOperator(illuminated);
+                    op.setExecutionContext(executionContext);
+                    op.renderToImage(foregroundImage, previewGrid, slopeGrid, progressIndicator);
+                } finally {
+                    GridPool.SHARED.release(slopeGrid);
+                }
+            }
+        };
+
+        try {
+            if (foregroundImage == null) {
+                background.invoke();
+            } else {
+                renderConcurrently(background, foreground, executionContext);
+            }
+        } finally {
+            if (previewGrid != generalizedGrid) {
+                GridPool.SHARED.release(previewGrid);
+            }
+        }
+        return new Preview(levelID, bounds, backgroundImage, foregroundImage);
+    }
+
+    /**
+     * Sums the weighted levels of the Laplacian pyramid down to a level for a
+     * region of the level. Only the cells required for the region are
+     * expanded. The sum is scaled like the generalized grid.
+     *
+     * @param levelID The most detailed level of the sum. Must be greater
+     * than 0.
+     * @param region The region in columns and rows of the level.
+     * @return The sum of the region.
+     */
+    private Grid sumPreviewLevels(int levelID, Rectangle region) {
+        final boolean generalizing = isGeneralizing();
+        float[] w = laplacianPyramid.createConstantWeights(1f);
+        if (generalizing) {
+            for (int i = levelID; i < w.length; i++) {
+                w[i] = getPyramidLevelWeight(i);
+            }
+        }
+        Grid sum = laplacianPyramid.sumLevels(w, levelID, region);
+        final float[] sumMinMax = generalizedSumMinMax;
+        if (generalizing && sumMinMax != null) {
+            GridScaleToRangeOperator op = new GridScaleToRangeOperator(gridMinMax);
+            op.setSourceRange(sumMinMax);
+            op.operate(sum, sum);
+        }
+        return sum;
+    }
+
+    /**
+     * Copies a rectangular region of a grid.
+     *
+     * @param grid The grid.
+     * @param region The region in columns and rows of the grid.
+     * @return The grid if the region covers the entire grid, otherwise a new
+     * grid taken from the shared GridPool.
+     */
+    private static Grid crop(Grid grid, Rectangle region) {
+        final int x = region.x;
+        final int y = region.y;
+        final int width = region.width;
+        final int height = region.height;
+        if (x == 0 && y == 0 && width == grid.getCols() && height == grid.getRows()) {
+            return grid;
+        }
+        final double cellSize = grid.getCellSize();
+        Grid cropped = GridPool.SHARED.acquireUninitialized(width, height,
+                cellSize, grid.getStorageFactory());
+        cropped.setWest(grid.getWest() + x * cellSize);
+        cropped.setSouth(grid.getSouth() + (grid.getRows() - y - height) * cellSize);
+        final GridRow srcRow = grid.rowView();
+        final GridRow dstRow = cropped.rowView();
+        for (int r = 0; r < height; r++) {
+            System.arraycopy(srcRow.moveTo(y + r).array(), srcRow.offset() + x,
+                    dstRow.moveTo(r).array(), dstRow.offset(), width);
+            dstRow.store();
+        }
+        cropped.modified();
+        return cropped;
+    }
+
+    /**
+     * Returns whether a rendering has been cancelled.
+     *
+     * @param progressIndicator The progress indicator of the rendering. Can
+     * be null.
+     * @param executionContext The execution context of the rendering. Can be
+     * null.
+     * @return True if the rendering has been cancelled.
+     */
+    private static boolean isCancelled(ProgressIndicator progressIndicator,
+            ExecutionContext executionContext) {
+        return (progressIndicator != null && progressIndicator.isCancelled())
+                || (executionContext != null && executionContext.isCancelled());
+    }
+
     /**
      * Set the elevation grid.
      *
@@ -495,16 +1071,52 @@ public class Model implements Cloneable {
      */
     public void setGrid(Grid grid) {
         this.grid = grid;
+        shadingCache.clear();
+        planObliqueStage.clear();
+        contoursSmoothStage.clear();
 
-        // find minimum and maximum values in grid
+        // find minimum and maximum values in grid. The statistics are cached
+        // by the grid until it is modified. A grid without valid values has
+        // a minimum of Float.MAX_VALUE and a maximum of -Float.MAX_VALUE.
         gridMinMax = grid.getMinMax();
 
-        // create a Gaussian pyramids
-        GaussianPyramid gaussianPyramid = new GaussianPyramid(grid);
+        // load the Laplacian pyramid from the cache
+        final boolean cachePyramid = pyramidCache != null && laplacianPyramidStorage == null;
+        laplacianPyramid = null;
+        if (cachePyramid) {
+            try {
+                laplacianPyramid = pyramidCache.load(grid);
+            } catch (IOException ex) {
+                Logger.getLogger(Model.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        if (laplacianPyramid == null) {
+            // create a Gaussian pyramids
+            GaussianPyramid gaussianPyramid = new GaussianPyramid(grid);
+
+            // create the Laplacian pyramid 
+            laplacianPyramid = new LaplacianPyramid();
+            laplacianPyramid.createPyramid(gaussianPyramid.getPyramid(),
+                    laplacianPyramidStorage);
+
+            if (cachePyramid) {
+                try {
+                    pyramidCache.store(grid, laplacianPyramid);
+                } catch (IOException ex) {
+                    Logger.getLogger(Model.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
 
-        // create the Laplacian pyramid 
-        laplacianPyramid = new LaplacianPyramid();
-        laplacianPyramid.createPyramid(gaussianPyramid.getPyramid());
+        // expand the levels of the pyramid to full resolution if the memory
+        // budget allows for it
+        fullResolutionBands = null;
+        if (fullResolutionBandsBudget > 0) {
+            fullResolutionBands = FullResolutionBands.create(laplacianPyramid,
+                    fullResolutionBandsBudget, laplacianPyramidStorage == null
+                            ? grid.getStorageFactory() : laplacianPyramidStorage);
+        }
 
         updateGeneralizedGrid();
 
@@ -0,0 +1,306 @@
+package edu.oregonstate.cartography.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores the levels of Laplacian pyramids in files, such that the pyramid of
+ * a grid that is opened again does not need to be computed. A file is named
+ * after a hash of the values, the size and the georeferencing of the grid.
+ * Levels are loaded with memory mapping, and the operating system reads
+ * values from the file when they are first accessed.
+ *
+ * Levels are stored as 4-byte floats in the native byte order of the
+ * computer that created the file. Files in a different byte order are
+ * ignored.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class PyramidCache {
+
+    /**
+     * Identifies a cache file.
+     */
+    private static final int MAGIC = 0x50595243;
+
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Written in the native byte order to detect files with another order.
+     */
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+
+    /**
+     * The number of bytes of the header before the descriptions of the
+     * levels: magic, version, byte order mark, hash, number of levels.
+     */
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 4;
+
+    /**
+     * The number of bytes of the description of a level: columns, rows, cell
+     * size, west, south.
+     */
+    private static final int LEVEL_BYTES = 4 + 4 + 8 + 8 + 8;
+
+    /**
+     * The minimum number of rows hashed by one thread.
+     */
+    private static final int HASH_BAND_HEIGHT = 16;
+
+    private static final String FILE_EXTENSION = ".pyramid";
+
+    private final File directory;
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory The directory for the cache files. Created by store()
+     * if it does not exist. load() finds no pyramids while the directory does
+     * not exist.
+     */
+    public PyramidCache(File directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory is null");
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory with the cache files.
+     *
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Computes a hash of the values, the size and the georeferencing of a
+     * grid. Rows are hashed in parallel.
+     *
+     * @param grid The grid.
+     * @return The hash.
+     */
+    public static long hash(Grid grid) {
+        final long[] rowHashes = new long[grid.getRows()];
+        RowBands.forEach(grid, HASH_BAND_HEIGHT, new RowBands.Task() {
+            @Override
+            public void run(Grid grid, int startRow, int endRow) {
+                final int cols = grid.getCols();
+                final GridRow row = grid.rowView();
+                for (int r = startRow; r < endRow; r++) {
+                    final float[] a = row.moveTo(r).array();
+                    final int o = row.offset();
+                    long h = r;
+                    for (int c = 0; c < cols; c++) {
+                        h = mix(h, Float.floatToIntBits(a[o + c]));
+                    }
+                    rowHashes[r] = h;
+                }
+            }
+        });
+
+        long h = VERSION;
+        h = mix(h, grid.getCols());
+        h = mix(h, grid.getRows());
+        h = mix(h, Double.doubleToLongBits(grid.getCellSize()));
+        h = mix(h, Double.doubleToLongBits(grid.getWest()));
+        h = mix(h, Double.doubleToLongBits(grid.getSouth()));
+        for (long rowHash : rowHashes) {
+            h = mix(h, rowHash);
+        }
+        return h;
+    }
+
+    /**
+     * Combines a hash with a value.
+     */
+    private static long mix(long h, long v) {
+        h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Returns the file for a grid.
+     *
+     * @param hash The hash of the grid.
+     * @return The file.
+     */
+    private File file(long hash) {
+        return new File(directory, String.format("%016x", hash) + FILE_EXTENSION);
+    }
+
+    /**
+     * Loads the Laplacian pyramid of a grid.
+     *
+     * @param grid The grid.
+     * @return The pyramid, or null if the cache does not contain a pyramid
+     * for the grid.
+     * @throws IOException If the file cannot be read.
+     */
+    public LaplacianPyramid load(Grid grid) throws IOException {
+        final long hash = hash(grid);
+        final File file = file(hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            if (header == null
+                    || header.getInt() != MAGIC
+                    || header.getInt() != VERSION
+                    || header.getInt() != BYTE_ORDER_MARK
+                    || header.getLong() != hash) {
+                return null;
+            }
+            final int nLevels = header.getInt();
+            if (nLevels < 1) {
+                return null;
+            }
+            ByteBuffer levelHeader = read(channel, HEADER_BYTES, nLevels * LEVEL_BYTES);
+            if (levelHeader == null) {
+                return null;
+            }
+
+            Grid[] levels = new Grid[nLevels];
+            long position = HEADER_BYTES + (long) nLevels * LEVEL_BYTES;
+            for (int i = 0; i < nLevels; i++) {
+                final int cols = levelHeader.getInt();
+                final int rows = levelHeader.getInt();
+                final double cellSize = levelHeader.getDouble();
+                final double west = levelHeader.getDouble();
+                final double south = levelHeader.getDouble();
+                final long bytes = 4L * cols * rows;
+                if (cols < 3 || rows < 3 || position + bytes > channel.size()) {
+                    return null;
+                }
+                MappedGridStorage storage = new MappedGridStorage(cols, rows,
+                        channel, position);
+                // grids derived from the levels use the storage of the grid
+                levels[i] = new Grid(storage, cellSize, grid.getStorageFactory());
+                levels[i].setWest(west);
+                levels[i].setSouth(south);
+                position += bytes;
+            }
+
+            // protect against hash collisions with grids of different size
+            // or location
+            if (levels[0].getCols() != grid.getCols()
+                    || levels[0].getRows() != grid.getRows()
+                    || levels[0].getCellSize() != grid.getCellSize()
+                    || levels[0].getWest() != grid.getWest()
+                    || levels[0].getSouth() != grid.getSouth()) {
+                return null;
+            }
+
+            LaplacianPyramid pyramid = new LaplacianPyramid();
+            pyramid.setLevels(levels);
+            return pyramid;
+        }
+    }
+
+    /**
+     * Reads bytes from a file.
+     *
+     * @param channel The channel of the file.
+     * @param position The position of the first byte.
+     * @param length The number of bytes.
+     * @return A buffer in the native byte order, or null if the file is too
+     * short.
+     * @throws IOException If the file cannot be read.
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Stores the Laplacian pyramid of a grid. The file is first written under
+     * a temporary name, such that an incomplete file is never loaded.
+     *
+     * @param grid The grid.
+     * @param pyramid The Laplacian pyramid of the grid.
+     * @throws IOException If the file cannot be written.
+     */
+    public void store(Grid grid, LaplacianPyramid pyramid) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final long hash = hash(grid);
+        final Grid[] levels = pyramid.getLevels();
+
+        File tmpFile = File.createTempFile("pyramid", ".tmp", directory);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES
+                        + levels.length * LEVEL_BYTES).order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(BYTE_ORDER_MARK);
+                header.putLong(hash);
+                header.putInt(levels.length);
+                for (Grid level : levels) {
+                    header.putInt(level.getCols());
+                    header.putInt(level.getRows());
+                    header.putDouble(level.getCellSize());
+                    header.putDouble(level.getWest());
+                    header.putDouble(level.getSouth());
+                }
+                header.flip();
+                write(channel, header);
+
+                for (Grid level : levels) {
+                    final int cols = level.getCols();
+                    ByteBuffer rowBuffer = ByteBuffer.allocate(4 * cols)
+                            .order(ByteOrder.nativeOrder());
+                    FloatBuffer floats = rowBuffer.asFloatBuffer();
+                    final GridRow row = level.rowView();
+                    for (int r = 0; r < level.getRows(); r++) {
+                        floats.clear();
+                        floats.put(row.moveTo(r).array(), row.offset(), cols);
+                        rowBuffer.clear();
+                        write(channel, rowBuffer);
+                    }
+                }
+            }
+            File file = file(hash);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot replace " + file);
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        } finally {
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                tmpFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of a buffer.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
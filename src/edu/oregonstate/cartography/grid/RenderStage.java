@@ -0,0 +1,62 @@
+package edu.oregonstate.cartography.grid;
+
+import java.util.Arrays;
+
+/**
+ * An intermediate grid of the rendering pipeline of the Model, such as the
+ * plan oblique grid or the smoothed grid for illuminated contours. The grid
+ * is kept with the inputs it was computed from: the grids it was derived
+ * from with their modification counts, and the Model fields it depends on.
+ * The grid is only computed again when one of the inputs changes. Grids are
+ * compared by identity. Modification counts change with every
+ * Grid.setValue() and Grid.modified(), so code writing to an input grid with
+ * a GridRow must call Grid.modified() for the stage to detect the change.
+ *
+ * The grid is replaced and never changed after it has been added to the
+ * stage, such that it can be read by a renderer while another renderer
+ * computes a new grid for the stage.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class RenderStage {
+
+    /**
+     * The inputs of the grid or null.
+     */
+    private Object[] inputs;
+
+    /**
+     * The grid computed from the inputs or null.
+     */
+    private Grid grid;
+
+    /**
+     * Returns the grid if it was computed from the passed inputs.
+     *
+     * @param inputs The current inputs of the stage.
+     * @return The grid or null if the stage must be computed.
+     */
+    synchronized Grid get(Object... inputs) {
+        return Arrays.equals(this.inputs, inputs) ? grid : null;
+    }
+
+    /**
+     * Sets the grid of the stage.
+     *
+     * @param grid The grid. Must not be changed afterwards.
+     * @param inputs The inputs the grid was computed from.
+     */
+    synchronized void put(Grid grid, Object... inputs) {
+        this.grid = grid;
+        this.inputs = inputs;
+    }
+
+    /**
+     * Removes the grid from the stage.
+     */
+    synchronized void clear() {
+        grid = null;
+        inputs = null;
+    }
+}
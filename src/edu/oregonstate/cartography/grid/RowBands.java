@@ -0,0 +1,81 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.grid.operators.ThreadedGridOperator;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a task on bands of rows of a grid with the fork/join pool shared by
+ * the grid operators. Used for computing data derived from a grid, such as
+ * statistics and void masks.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class RowBands {
+
+    /**
+     * A task operating on a band of rows.
+     */
+    interface Task {
+
+        /**
+         * Operates on a band of rows. Called concurrently for different
+         * bands.
+         *
+         * @param grid The grid.
+         * @param startRow The first row of the band.
+         * @param endRow The first row after the band.
+         */
+        void run(Grid grid, int startRow, int endRow);
+    }
+
+    private RowBands() {
+    }
+
+    /**
+     * Runs a task on bands of rows.
+     *
+     * @param grid The grid.
+     * @param minRows The minimum number of rows in a band. Bands start at
+     * multiples of this number of rows.
+     * @param task The task.
+     */
+    static void forEach(Grid grid, int minRows, Task task) {
+        ThreadedGridOperator.getSharedPool().invoke(
+                new BandAction(grid, task, 0, grid.getRows(), minRows));
+    }
+
+    /**
+     * Recursively splits a band of rows in two halves.
+     */
+    private static final class BandAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Grid grid;
+        private final Task task;
+        private final int startRow;
+        private final int endRow;
+        private final int minRows;
+
+        BandAction(Grid grid, Task task, int startRow, int endRow, int minRows) {
+            this.grid = grid;
+            this.task = task;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            final int nBands = (endRow - startRow + minRows - 1) / minRows;
+            if (nBands <= 1) {
+                task.run(grid, startRow, endRow);
+                return;
+            }
+            final int splitRow = startRow + nBands / 2 * minRows;
+            invokeAll(new BandAction(grid, task, startRow, splitRow, minRows),
+                    new BandAction(grid, task, splitRow, endRow, minRows));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * Builds a Gaussian pyramid from a grid that is passed in strips of rows, for
+ * example while the grid is read from a file. A row of a reduced level is
+ * computed as soon as the five rows of the next larger level around it are
+ * available, and is then passed on to the next smaller level. Only five rows
+ * of each level are kept in memory by the builder. The levels are written to
+ * grids with a storage that can be kept in memory or in scratch files, such
+ * as GridStorage.MAPPED or GridStorage.TILED, such that grids larger than the
+ * available memory can be generalized.
+ *
+ * The levels are identical to the levels created by GaussianPyramid. The
+ * Laplacian pyramid can be created from the levels with
+ * LaplacianPyramid.createPyramid(), which processes grids row by row.
+ *
+ * Example: StreamingPyramidBuilder builder = new StreamingPyramidBuilder(cols,
+ * rows, cellSize, west, south, GridStorage.MAPPED); builder.addRows(strip,
+ * stripRows); ... Grid[] pyramid = builder.getPyramid();
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class StreamingPyramidBuilder {
+
+    /**
+     * The minimum number of columns and rows of a reduced level, identical to
+     * GaussianPyramid.
+     */
+    private static final int MIN_SIDE_LENGTH = 2;
+
+    /**
+     * A level of the pyramid with the last rows passed to the level.
+     */
+    private static final class Level {
+
+        final Grid grid;
+        final GridRow gridRow;
+
+        /**
+         * The last five rows. Row r is at window[r % 5]. Null for the
+         * smallest level, which is not reduced.
+         */
+        final float[][] window;
+
+        /**
+         * The rows of window convolved horizontally.
+         */
+        final float[][] hWindow;
+
+        /**
+         * The number of rows passed to this level.
+         */
+        int rowCount = 0;
+
+        Level(Grid grid, boolean reduced) {
+            this.grid = grid;
+            this.gridRow = grid.rowView();
+            if (reduced) {
+                window = new float[5][grid.getCols()];
+                hWindow = new float[5][grid.getCols()];
+            } else {
+                window = null;
+                hWindow = null;
+            }
+        }
+    }
+
+    private final Convolution5x5 conv = new Convolution5x5();
+
+    /**
+     * The levels. The full resolution level is at position 0.
+     */
+    private final Level[] levels;
+
+    /**
+     * Receives a row of a reduced level.
+     */
+    private final float[][] reducedRows;
+
+    /**
+     * Creates a builder for a grid.
+     *
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     * @param cellSize The cell size of the grid.
+     * @param west The western border of the grid.
+     * @param south The southern border of the grid.
+     * @param storageFactory Creates the storage for the levels of the
+     * pyramid, including the full resolution level.
+     */
+    public StreamingPyramidBuilder(int cols, int rows, double cellSize,
+            double west, double south, GridStorage.Factory storageFactory) {
+
+        // the number of levels is computed as in GaussianPyramid
+        int nLevels = 1;
+        for (int c = cols, r = rows;; nLevels++) {
+            if (c / 2 <= MIN_SIDE_LENGTH || r / 2 <= MIN_SIDE_LENGTH
+                    || (c / 2) * (r / 2) < MIN_SIDE_LENGTH * MIN_SIDE_LENGTH) {
+                break;
+            }
+            c = c / 2 + c % 2;
+            r = r / 2 + r % 2;
+        }
+
+        levels = new Level[nLevels];
+        reducedRows = new float[nLevels][];
+        for (int i = 0; i < nLevels; i++) {
+            Grid grid = new Grid(cols, rows, cellSize, storageFactory);
+            grid.setWest(west);
+            grid.setSouth(south);
+            levels[i] = new Level(grid, i < nLevels - 1);
+            reducedRows[i] = new float[cols];
+            cols = cols / 2 + cols % 2;
+            rows = rows / 2 + rows % 2;
+            cellSize *= 2;
+        }
+    }
+
+    /**
+     * Adds the next strip of rows of the full resolution grid. Rows are
+     * added from top to bottom.
+     *
+     * @param strip The values of the rows, row by row.
+     * @param nRows The number of rows in the strip.
+     */
+    public void addRows(float[] strip, int nRows) {
+        final int cols = levels[0].grid.getCols();
+        if (strip.length < nRows * cols) {
+            throw new IllegalArgumentException("strip is too short");
+        }
+        for (int r = 0; r < nRows; r++) {
+            addRow(0, strip, r * cols);
+        }
+    }
+
+    /**
+     * Adds the next row of the full resolution grid.
+     *
+     * @param row The values of the row.
+     */
+    public void addRow(float[] row) {
+        addRow(0, row, 0);
+    }
+
+    /**
+     * Adds a row to a level, and reduces the rows of the level that have
+     * become available.
+     *
+     * @param levelID The level.
+     * @param values The values of the row.
+     * @param offset The index of the first value in values.
+     */
+    private void addRow(int levelID, float[] values, int offset) {
+        final Level level = levels[levelID];
+        final int cols = level.grid.getCols();
+        final int rows = level.grid.getRows();
+        final int r = level.rowCount;
+        if (r == rows) {
+            throw new IllegalStateException("all rows have been added");
+        }
+
+        // store the row
+        System.arraycopy(values, offset, level.gridRow.moveTo(r).array(),
+                level.gridRow.offset(), cols);
+        level.gridRow.store();
+        ++level.rowCount;
+        if (level.rowCount == rows) {
+            level.grid.modified();
+        }
+        if (level.window == null) {
+            return;
+        }
+
+        // add the row to the window
+        System.arraycopy(values, offset, level.window[r % 5], 0, cols);
+        conv.convolveRow(level.window[r % 5], cols, level.hWindow[r % 5]);
+
+        // reduce the rows that have all rows around them. The last reduced
+        // row requires the last row.
+        final Level next = levels[levelID + 1];
+        final int newRows = next.grid.getRows();
+        while (next.rowCount < newRows) {
+            final int dstRow = next.rowCount;
+            final boolean available = dstRow == newRows - 1
+                    ? level.rowCount == rows : dstRow * 2 + 2 <= r;
+            if (!available) {
+                break;
+            }
+            final float[] reduced = reducedRows[levelID + 1];
+            conv.reduceRow(level.window, level.hWindow, cols, rows, dstRow, reduced);
+            addRow(levelID + 1, reduced, 0);
+        }
+    }
+
+    /**
+     * Returns whether all rows of the full resolution grid have been added.
+     *
+     * @return True if the pyramid is complete.
+     */
+    public boolean isComplete() {
+        return levels[0].rowCount == levels[0].grid.getRows();
+    }
+
+    /**
+     * Returns the levels of the pyramid.
+     *
+     * @return The levels with the full resolution grid at position 0.
+     */
+    public Grid[] getPyramid() {
+        if (!isComplete()) {
+            throw new IllegalStateException("not all rows have been added");
+        }
+        Grid[] pyramid = new Grid[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            pyramid[i] = levels[i].grid;
+        }
+        return pyramid;
+    }
+}
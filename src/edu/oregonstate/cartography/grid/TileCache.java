@@ -0,0 +1,212 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * A least-recently-used cache for the tiles of TiledGridStorage. All tiled
+ * grids share a single cache with a maximum size. When the cache is full, the
+ * least recently used tile is removed. If the values of the removed tile have
+ * changed, the tile is written to the scratch file of its grid.
+ *
+ * Tiles are accessed while holding the lock of the cache. Values are copied
+ * from and to tiles, and no reference to a tile array is kept outside of the
+ * cache. A tile can therefore be removed at any time.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class TileCache {
+
+    /**
+     * A tile in the cache. Tiles form a doubly linked list, with the most
+     * recently used tile at the head.
+     */
+    static final class Tile {
+
+        /**
+         * The storage this tile belongs to.
+         */
+        final TiledGridStorage storage;
+
+        /**
+         * The index of the tile in the storage.
+         */
+        final int index;
+
+        /**
+         * The tile values. Rows are stored one after the other.
+         */
+        final float[] values;
+
+        /**
+         * True if values have changed since the tile was loaded.
+         */
+        boolean dirty;
+
+        private Tile previous;
+        private Tile next;
+
+        Tile(TiledGridStorage storage, int index, float[] values) {
+            this.storage = storage;
+            this.index = index;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The cache shared by all tiled grids.
+     */
+    static final TileCache SHARED = new TileCache(Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * The most recently used tile.
+     */
+    private Tile head;
+
+    /**
+     * The least recently used tile.
+     */
+    private Tile tail;
+
+    /**
+     * The maximum number of bytes of all tiles in the cache.
+     */
+    private long maxBytes;
+
+    /**
+     * The number of bytes of all tiles in the cache.
+     */
+    private long bytes;
+
+    TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sets the maximum size of the cache. Removes tiles if the cache is larger
+     * than the new size.
+     *
+     * @param maxBytes The maximum number of bytes of all tiles in the cache.
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size.");
+        }
+        this.maxBytes = maxBytes;
+        while (bytes > maxBytes && tail != null) {
+            evict(tail);
+        }
+    }
+
+    /**
+     * Returns the maximum size of the cache.
+     *
+     * @return The maximum number of bytes of all tiles in the cache.
+     */
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns a tile. Loads the tile if it is not in the cache. The caller
+     * must hold the lock of this cache while accessing the tile.
+     *
+     * @param storage The storage of the tile.
+     * @param index The index of the tile in the storage.
+     * @param write True if values of the tile will be changed.
+     * @return The tile.
+     */
+    Tile tile(TiledGridStorage storage, int index, boolean write) {
+        assert Thread.holdsLock(this);
+        Tile tile = storage.residentTile(index);
+        if (tile == null) {
+            tile = load(storage, index);
+        } else if (tile != head) {
+            unlink(tile);
+            link(tile);
+        }
+        if (write) {
+            tile.dirty = true;
+        }
+        return tile;
+    }
+
+    /**
+     * Loads a tile and adds it to the cache. Removes least recently used tiles
+     * if the cache is full.
+     *
+     * @param storage The storage of the tile.
+     * @param index The index of the tile in the storage.
+     * @return The loaded tile.
+     */
+    private Tile load(TiledGridStorage storage, int index) {
+        final int tileLength = storage.tileLength();
+        final long tileBytes = 4L * tileLength;
+
+        // remove least recently used tiles and recycle an array if possible
+        float[] values = null;
+        while (bytes + tileBytes > maxBytes && tail != null) {
+            Tile evicted = tail;
+            evict(evicted);
+            if (evicted.values.length == tileLength) {
+                values = evicted.values;
+            }
+        }
+        if (values == null) {
+            values = new float[tileLength];
+        }
+
+        storage.load(index, values);
+        Tile tile = new Tile(storage, index, values);
+        storage.setResidentTile(index, tile);
+        link(tile);
+        bytes += tileBytes;
+        return tile;
+    }
+
+    /**
+     * Removes a tile from the cache and writes it to the scratch file of its
+     * storage if its values have changed.
+     *
+     * @param tile The tile to remove.
+     */
+    private void evict(Tile tile) {
+        if (tile.dirty) {
+            tile.storage.spill(tile.index, tile.values);
+        }
+        tile.storage.setResidentTile(tile.index, null);
+        unlink(tile);
+        bytes -= 4L * tile.values.length;
+    }
+
+    /**
+     * Adds a tile at the head of the list.
+     */
+    private void link(Tile tile) {
+        tile.previous = null;
+        tile.next = head;
+        if (head != null) {
+            head.previous = tile;
+        }
+        head = tile;
+        if (tail == null) {
+            tail = tile;
+        }
+    }
+
+    /**
+     * Removes a tile from the list.
+     */
+    private void unlink(Tile tile) {
+        if (tile.previous != null) {
+            tile.previous.next = tile.next;
+        } else {
+            head = tile.next;
+        }
+        if (tile.next != null) {
+            tile.next.previous = tile.previous;
+        } else {
+            tail = tile.previous;
+        }
+        tile.previous = null;
+        tile.next = null;
+    }
+}
@@ -0,0 +1,289 @@
+package edu.oregonstate.cartography.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores the values of a grid in square tiles. Tiles are kept in a TileCache
+ * of limited size that is shared by all tiled grids. Tiles that are removed
+ * from the cache are written to a scratch file and read again when needed.
+ * This limits the memory used by grids to the size of the cache.
+ *
+ * Values are accessed while holding the lock of the cache. Copying entire rows
+ * with readRow() and writeRow() is therefore considerably faster than
+ * accessing single values.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class TiledGridStorage extends GridStorage {
+
+    /**
+     * Closes the scratch file of a storage after the storage has been garbage
+     * collected.
+     */
+    private static final class ScratchFileReference
+            extends PhantomReference<TiledGridStorage> {
+
+        private final RandomAccessFile file;
+
+        ScratchFileReference(TiledGridStorage storage, RandomAccessFile file) {
+            super(storage, SCRATCH_FILE_QUEUE);
+            this.file = file;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException exc) {
+            }
+        }
+    }
+
+    private static final ReferenceQueue<TiledGridStorage> SCRATCH_FILE_QUEUE
+            = new ReferenceQueue<>();
+
+    /**
+     * References to scratch files that have not been closed yet.
+     */
+    private static final Set<ScratchFileReference> SCRATCH_FILES
+            = Collections.synchronizedSet(new HashSet<ScratchFileReference>());
+
+    /**
+     * The number of columns and rows in a tile. A power of 2.
+     */
+    private final int tileSize;
+
+    /**
+     * log2(tileSize)
+     */
+    private final int tileShift;
+
+    /**
+     * tileSize - 1
+     */
+    private final int tileMask;
+
+    /**
+     * The number of tiles in horizontal direction.
+     */
+    private final int tilesPerRow;
+
+    /**
+     * The cache with the tiles.
+     */
+    private final TileCache cache;
+
+    /**
+     * Tiles that are in the cache, null for tiles that are not in the cache.
+     * Only accessed by the cache.
+     */
+    private final TileCache.Tile[] residentTiles;
+
+    /**
+     * True for tiles that have been written to the scratch file.
+     */
+    private final boolean[] spilled;
+
+    /**
+     * The scratch file, created when the first tile is written.
+     */
+    private FileChannel scratchFile;
+
+    /**
+     * Buffer for reading and writing tiles.
+     */
+    private ByteBuffer ioBuffer;
+
+    /**
+     * Creates a new storage.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param tileSize The number of columns and rows in a tile. Must be a power
+     * of 2.
+     * @param cache The cache for the tiles.
+     */
+    TiledGridStorage(int cols, int rows, int tileSize, TileCache cache) {
+        super(cols, rows);
+        if (tileSize < 1 || Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("Tile size must be a power of 2.");
+        }
+        this.tileSize = tileSize;
+        this.tileShift = Integer.numberOfTrailingZeros(tileSize);
+        this.tileMask = tileSize - 1;
+        this.tilesPerRow = (cols + tileMask) >> tileShift;
+        final int tilesPerColumn = (rows + tileMask) >> tileShift;
+        if ((long) tilesPerRow * tilesPerColumn > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large.");
+        }
+        this.cache = cache;
+        residentTiles = new TileCache.Tile[tilesPerRow * tilesPerColumn];
+        spilled = new boolean[residentTiles.length];
+    }
+
+    @Override
+    int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the number of values in a tile.
+     *
+     * @return tileSize * tileSize
+     */
+    int tileLength() {
+        return tileSize * tileSize;
+    }
+
+    TileCache.Tile residentTile(int index) {
+        return residentTiles[index];
+    }
+
+    void setResidentTile(int index, TileCache.Tile tile) {
+        residentTiles[index] = tile;
+    }
+
+    /**
+     * Returns the index of the tile containing a cell.
+     */
+    private int tileIndex(int col, int row) {
+        return (row >> tileShift) * tilesPerRow + (col >> tileShift);
+    }
+
+    /**
+     * Returns the index of a cell in the values of its tile.
+     */
+    private int indexInTile(int col, int row) {
+        return ((row & tileMask) << tileShift) + (col & tileMask);
+    }
+
+    @Override
+    float getValue(int col, int row) {
+        synchronized (cache) {
+            TileCache.Tile tile = cache.tile(this, tileIndex(col, row), false);
+            return tile.values[indexInTile(col, row)];
+        }
+    }
+
+    @Override
+    void setValue(float value, int col, int row) {
+        synchronized (cache) {
+            TileCache.Tile tile = cache.tile(this, tileIndex(col, row), true);
+            tile.values[indexInTile(col, row)] = value;
+        }
+    }
+
+    @Override
+    void readRow(int row, float[] dst, int dstOffset) {
+        final int firstTile = (row >> tileShift) * tilesPerRow;
+        final int srcOffset = (row & tileMask) << tileShift;
+        synchronized (cache) {
+            for (int t = 0; t < tilesPerRow; t++) {
+                final int col = t << tileShift;
+                TileCache.Tile tile = cache.tile(this, firstTile + t, false);
+                System.arraycopy(tile.values, srcOffset,
+                        dst, dstOffset + col, Math.min(tileSize, cols - col));
+            }
+        }
+    }
+
+    @Override
+    void writeRow(int row, float[] src, int srcOffset) {
+        final int firstTile = (row >> tileShift) * tilesPerRow;
+        final int dstOffset = (row & tileMask) << tileShift;
+        synchronized (cache) {
+            for (int t = 0; t < tilesPerRow; t++) {
+                final int col = t << tileShift;
+                TileCache.Tile tile = cache.tile(this, firstTile + t, true);
+                System.arraycopy(src, srcOffset + col,
+                        tile.values, dstOffset, Math.min(tileSize, cols - col));
+            }
+        }
+    }
+
+    /**
+     * Loads the values of a tile. Called by the cache.
+     *
+     * @param index The index of the tile.
+     * @param values Destination array.
+     */
+    void load(int index, float[] values) {
+        if (!spilled[index]) {
+            Arrays.fill(values, 0f);
+            return;
+        }
+        try {
+            ioBuffer.clear();
+            final long position = (long) index * ioBuffer.capacity();
+            while (ioBuffer.hasRemaining()) {
+                if (scratchFile.read(ioBuffer, position + ioBuffer.position()) < 0) {
+                    throw new IOException("Unexpected end of scratch file.");
+                }
+            }
+            ioBuffer.flip();
+            ioBuffer.asFloatBuffer().get(values);
+        } catch (IOException exc) {
+            throw new IllegalStateException("Cannot read grid tile from scratch file.", exc);
+        }
+    }
+
+    /**
+     * Writes the values of a tile to the scratch file. Called by the cache.
+     *
+     * @param index The index of the tile.
+     * @param values The values to write.
+     */
+    void spill(int index, float[] values) {
+        try {
+            if (scratchFile == null) {
+                openScratchFile();
+            }
+            ioBuffer.clear();
+            ioBuffer.asFloatBuffer().put(values);
+            final long position = (long) index * ioBuffer.capacity();
+            while (ioBuffer.hasRemaining()) {
+                scratchFile.write(ioBuffer, position + ioBuffer.position());
+            }
+            spilled[index] = true;
+        } catch (IOException exc) {
+            throw new IllegalStateException("Cannot write grid tile to scratch file.", exc);
+        }
+    }
+
+    /**
+     * Creates the scratch file in the temporary directory. The file is closed
+     * after this storage has been garbage collected.
+     *
+     * @throws IOException
+     */
+    private void openScratchFile() throws IOException {
+        // close scratch files of storages that have been garbage collected
+        Reference<? extends TiledGridStorage> ref;
+        while ((ref = SCRATCH_FILE_QUEUE.poll()) != null) {
+            ((ScratchFileReference) ref).close();
+            SCRATCH_FILES.remove(ref);
+        }
+
+        File file = File.createTempFile("tiles", ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        SCRATCH_FILES.add(new ScratchFileReference(this, raf));
+        scratchFile = raf.getChannel();
+        ioBuffer = ByteBuffer.allocateDirect(4 * tileLength())
+                .order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,233 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * A packed bit mask marking the void (NaN) values of a grid. The grid is
+ * divided into square tiles, and for each tile the mask stores whether all
+ * values are valid, all values are void, or the tile contains valid and void
+ * values. Operators use the tile states to skip void areas and to avoid NaN
+ * tests where all values are valid.
+ *
+ * The mask of a grid is created with Grid.getVoidMask() and cached by the
+ * grid until the grid is modified.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class VoidMask {
+
+    /**
+     * The number of columns and rows of a tile.
+     */
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * log2(TILE_SIZE)
+     */
+    private static final int TILE_SHIFT = 6;
+
+    /**
+     * The tile or area contains valid and void values.
+     */
+    public static final byte MIXED = 0;
+
+    /**
+     * All values of the tile or area are valid.
+     */
+    public static final byte ALL_VALID = 1;
+
+    /**
+     * All values of the tile or area are void.
+     */
+    public static final byte ALL_VOID = 2;
+
+    private final int cols;
+    private final int rows;
+
+    /**
+     * The number of tile columns. One long of the bit mask stores the bits of
+     * one row in one tile, so this is also the number of longs per row.
+     */
+    private final int tileCols;
+
+    /**
+     * One bit per value, set for void values. The bit for col/row is bit
+     * (col % 64) of bits[row * tileCols + col / 64].
+     */
+    private final long[] bits;
+
+    /**
+     * The state of each tile: MIXED, ALL_VALID or ALL_VOID. The state of the
+     * tile at tileCol/tileRow is at tileRow * tileCols + tileCol.
+     */
+    private final byte[] tiles;
+
+    /**
+     * The modification count of the grid when the mask was created.
+     */
+    private final long modificationCount;
+
+    private VoidMask(Grid grid, long modificationCount) {
+        cols = grid.getCols();
+        rows = grid.getRows();
+        tileCols = (cols + TILE_SIZE - 1) >> TILE_SHIFT;
+        int tileRows = (rows + TILE_SIZE - 1) >> TILE_SHIFT;
+        bits = new long[rows * tileCols];
+        tiles = new byte[tileRows * tileCols];
+        this.modificationCount = modificationCount;
+    }
+
+    /**
+     * Creates the mask of a grid.
+     *
+     * @param grid The grid.
+     * @param modificationCount The modification count of the grid before the
+     * mask is created.
+     * @return The new mask.
+     */
+    static VoidMask create(Grid grid, long modificationCount) {
+        final VoidMask mask = new VoidMask(grid, modificationCount);
+        if ((long) mask.rows * mask.tileCols > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large.");
+        }
+        // bands are a multiple of the tile size, such that each tile is
+        // initialized by a single thread
+        RowBands.forEach(grid, TILE_SIZE, new RowBands.Task() {
+            @Override
+            public void run(Grid grid, int startRow, int endRow) {
+                mask.init(grid, startRow, endRow);
+            }
+        });
+        return mask;
+    }
+
+    /**
+     * Initializes the bits and the tile states for a band of rows.
+     *
+     * @param grid The grid.
+     * @param startRow The first row. A multiple of TILE_SIZE.
+     * @param endRow The first row after the band.
+     */
+    private void init(Grid grid, int startRow, int endRow) {
+        final GridRow row = grid.rowView();
+        for (int r = startRow; r < endRow; r++) {
+            final float[] values = row.moveTo(r).array();
+            final int offset = row.offset();
+            for (int tc = 0; tc < tileCols; tc++) {
+                final int c0 = tc << TILE_SHIFT;
+                final int c1 = Math.min(cols, c0 + TILE_SIZE);
+                long word = 0;
+                for (int c = c0; c < c1; c++) {
+                    if (Float.isNaN(values[offset + c])) {
+                        word |= 1L << (c - c0);
+                    }
+                }
+                bits[r * tileCols + tc] = word;
+            }
+        }
+
+        // tile states
+        for (int tr = startRow >> TILE_SHIFT; tr << TILE_SHIFT < endRow; tr++) {
+            final int r0 = tr << TILE_SHIFT;
+            final int r1 = Math.min(rows, r0 + TILE_SIZE);
+            for (int tc = 0; tc < tileCols; tc++) {
+                final int tileWidth = Math.min(cols - (tc << TILE_SHIFT), TILE_SIZE);
+                final long allVoid = tileWidth == 64 ? -1L : (1L << tileWidth) - 1;
+                boolean valid = true;
+                boolean empty = true;
+                for (int r = r0; r < r1; r++) {
+                    final long word = bits[r * tileCols + tc];
+                    valid &= word == 0;
+                    empty &= word == allVoid;
+                }
+                tiles[tr * tileCols + tc] = valid ? ALL_VALID : (empty ? ALL_VOID : MIXED);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a value is void.
+     *
+     * @param col The column.
+     * @param row The row.
+     * @return True if the value is NaN.
+     */
+    public boolean isVoid(int col, int row) {
+        return (bits[row * tileCols + (col >> TILE_SHIFT)] & (1L << col)) != 0;
+    }
+
+    /**
+     * Returns the state of a tile.
+     *
+     * @param tileCol The column of the tile.
+     * @param tileRow The row of the tile.
+     * @return MIXED, ALL_VALID or ALL_VOID.
+     */
+    public byte getTileState(int tileCol, int tileRow) {
+        return tiles[tileRow * tileCols + tileCol];
+    }
+
+    /**
+     * Returns the state of a rectangular area. The state is derived from the
+     * states of the tiles overlapping the area, and MIXED is returned if any
+     * tile is mixed, even if all values inside the area are valid or void.
+     * The area is clipped to the grid.
+     *
+     * @param col0 The first column of the area.
+     * @param row0 The first row of the area.
+     * @param col1 The column after the last column of the area.
+     * @param row1 The row after the last row of the area.
+     * @return MIXED, ALL_VALID or ALL_VOID.
+     */
+    public byte getState(int col0, int row0, int col1, int row1) {
+        col0 = Math.max(0, col0);
+        row0 = Math.max(0, row0);
+        col1 = Math.min(cols, col1);
+        row1 = Math.min(rows, row1);
+        if (col0 >= col1 || row0 >= row1) {
+            return ALL_VALID;
+        }
+        final int tc0 = col0 >> TILE_SHIFT;
+        final int tc1 = (col1 - 1) >> TILE_SHIFT;
+        final int tr0 = row0 >> TILE_SHIFT;
+        final int tr1 = (row1 - 1) >> TILE_SHIFT;
+        final byte state = tiles[tr0 * tileCols + tc0];
+        if (state == MIXED) {
+            return MIXED;
+        }
+        for (int tr = tr0; tr <= tr1; tr++) {
+            for (int tc = tc0; tc <= tc1; tc++) {
+                if (tiles[tr * tileCols + tc] != state) {
+                    return MIXED;
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Returns the number of columns of the masked grid.
+     *
+     * @return The number of columns.
+     */
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * Returns the number of rows of the masked grid.
+     *
+     * @return The number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the modification count of the grid when this mask was created.
+     *
+     * @return The modification count.
+     */
+    long getModificationCount() {
+        return modificationCount;
+    }
+}
@@ -2,6 +2,9 @@ package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.app.Vector3D;
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridPool;
+import edu.oregonstate.cartography.grid.GridRow;
+import edu.oregonstate.cartography.grid.VoidMask;
 import edu.oregonstate.cartography.gui.ProgressIndicator;
 import edu.oregonstate.cartography.gui.bivariate.BivariateColorRenderer;
 import edu.oregonstate.cartography.grid.ColorLUT;
@@ -22,6 +25,18 @@ public class ColorizerOperator extends ThreadedGridOperator {
      */
     public static final int VOID_COLOR = 0x00000000;
 
+    /**
+     * The number of entries in the table with the colors of the hypsometric
+     * tints.
+     */
+    private static final int COLOR_TABLE_SIZE = 4096;
+
+    /**
+     * The number of rows that are shaded and then colored while the rows are
+     * in the CPU cache.
+     */
+    private static final int SHADING_BLOCK_HEIGHT = 16;
+
     /**
      * The type of colored visualization this operator can create.
      */
@@ -86,9 +101,6 @@ public class ColorizerOperator extends ThreadedGridOperator {
         }
     }
 
-    // minimum and maximum value in the elevation model
-    private float minElev, maxElev;
-
     // the position of each color on a relative scale between 0 and 1
     // the lowest elevation is at index 0, the highest elevation at index
     // elevations.length - 1
@@ -103,6 +115,18 @@ public class ColorizerOperator extends ThreadedGridOperator {
     private int[] greens;
     private int[] blues;
 
+    // table with the hypsometric colors for COLOR_TABLE_SIZE elevations 
+    // evenly spaced between colorTableMin and colorTableMax. Contains the 
+    // red, green and blue components of each color, which are multiplied 
+    // with the shading.
+    private float[] colorTable;
+
+    // table with the ARGB values of the colors in colorTable
+    private int[] argbTable;
+
+    // the elevation range of the color tables
+    private float colorTableMin, colorTableMax;
+
     // utility variables for accelerating gray shading computation
     private double lx, ly, lz, nz, nz_sq;
 
@@ -118,12 +142,21 @@ public class ColorizerOperator extends ThreadedGridOperator {
     // colored image output
     private BufferedImage dstImage;
 
+    // void mask of the grid, used to skip void areas
+    private VoidMask voidMask;
+
     // the type of visualization created
     private ColorVisualization colorVisualization = ColorVisualization.GRAY_SHADING;
 
-    // progress indicator that needs to be updated periodically and be checked 
-    // for user cancellation.
-    private final ProgressIndicator progressIndicator;
+    // cache for the shading of the grid. Can be null.
+    private ShadingCache shadingCache;
+
+    // gray values of the shading between 0 and 255, NaN for void cells
+    private Grid shadingGrid;
+
+    // if true, the shading is computed and stored in shadingGrid before it
+    // is colored
+    private boolean computingShading = false;
 
     /**
      * Creates a new instance
@@ -133,14 +166,14 @@ public class ColorizerOperator extends ThreadedGridOperator {
      * @param bivariateColorRenderer Bivariate color renderer
      * @param colorLUT color lookup table renderer
      * @param progressIndicator Progress indicator that will be periodically
-     * updated.
+     * updated and checked for user cancellation. Can be null.
      */
     public ColorizerOperator(ColorVisualization colorVisualization,
             BivariateColorRenderer bivariateColorRenderer,
             ColorLUT colorLUT,
             ProgressIndicator progressIndicator) {
         this.colorVisualization = colorVisualization;
-        this.progressIndicator = progressIndicator;
+        setProgressIndicator(progressIndicator);
         this.bivariateColorRenderer = bivariateColorRenderer;
         this.colorLUT = colorLUT;
     }
@@ -164,6 +197,90 @@ public class ColorizerOperator extends ThreadedGridOperator {
             blues[i] = colors[i].getBlue();
         }
         this.colorPositions = Arrays.copyOf(colorPositions, colorPositions.length);
+        colorTable = null;
+        argbTable = null;
+    }
+
+    /**
+     * Sets a cache for the shading of the grid. If the grid was shaded with
+     * the same illumination by a previous operator, the cached shading is
+     * colored without computing the shading again.
+     *
+     * @param shadingCache The cache or null.
+     */
+    public void setShadingCache(ShadingCache shadingCache) {
+        this.shadingCache = shadingCache;
+    }
+
+    /**
+     * Fills the color tables for an elevation range, unless the tables have
+     * already been filled for the range and the current colors.
+     *
+     * @param minVal The lowest elevation.
+     * @param maxVal The highest elevation.
+     */
+    private void updateColorTable(float minVal, float maxVal) {
+        if (colorTable != null && colorTableMin == minVal && colorTableMax == maxVal) {
+            return;
+        }
+        colorTable = new float[COLOR_TABLE_SIZE * 3];
+        argbTable = new int[COLOR_TABLE_SIZE];
+        final int highestID = colorPositions.length - 1;
+        for (int i = 0; i < COLOR_TABLE_SIZE; i++) {
+            final float nElev = i / (float) (COLOR_TABLE_SIZE - 1);
+            float r, g, b;
+            if (nElev >= colorPositions[highestID]) {
+                r = reds[highestID];
+                g = greens[highestID];
+                b = blues[highestID];
+            } else {
+                // the knot below nElev, or the lowest knot
+                int k = highestID - 1;
+                while (k > 0 && nElev < colorPositions[k]) {
+                    --k;
+                }
+                if (nElev >= colorPositions[k]) {
+                    final float tu = (nElev - colorPositions[k])
+                            / (colorPositions[k + 1] - colorPositions[k]);
+                    final float tl = 1f - tu;
+                    r = tl * reds[k] + tu * reds[k + 1];
+                    g = tl * greens[k] + tu * greens[k + 1];
+                    b = tl * blues[k] + tu * blues[k + 1];
+                } else {
+                    r = reds[0];
+                    g = greens[0];
+                    b = blues[0];
+                }
+            }
+            colorTable[i * 3] = r;
+            colorTable[i * 3 + 1] = g;
+            colorTable[i * 3 + 2] = b;
+            argbTable[i] = (int) b | ((int) g << 8) | ((int) r << 16) | 0xFF000000;
+        }
+        colorTableMin = minVal;
+        colorTableMax = maxVal;
+    }
+
+    /**
+     * Returns the index of the entry in the color tables for an elevation.
+     *
+     * @param v The elevation. Must not be NaN.
+     * @param scale The number of table entries per elevation unit.
+     * @return The index between 0 and COLOR_TABLE_SIZE - 1.
+     */
+    private int colorTableIndex(float v, float scale) {
+        final int i = (int) ((v - colorTableMin) * scale + 0.5f);
+        return Math.max(0, Math.min(COLOR_TABLE_SIZE - 1, i));
+    }
+
+    /**
+     * Returns the scale factor for colorTableIndex().
+     *
+     * @return The number of table entries per elevation unit.
+     */
+    private float colorTableScale() {
+        final float range = colorTableMax - colorTableMin;
+        return range > 0 ? (COLOR_TABLE_SIZE - 1) / range : 0f;
     }
 
     /**
@@ -231,22 +348,6 @@ public class ColorizerOperator extends ThreadedGridOperator {
                 | 0xFF000000;
     }
 
-    private boolean reportProgress(int startRow, int endRow, int row) {
-        if (progressIndicator == null) {
-            return true;
-        }
-
-        // report progress if this is the first chunk of the image
-        // all chunks are the same size, but are rendered in different threads.
-        if (startRow == 0) {
-            int percentage = Math.round(100f * row / (endRow - startRow - 1f));
-            progressIndicator.progress(percentage);
-        }
-
-        // stop rendering if the user cancelled
-        return !progressIndicator.isCancelled();
-    }
-
     /**
      * Do not call this method. It will throw an UnsupportedOperationException.
      *
@@ -279,11 +380,12 @@ public class ColorizerOperator extends ThreadedGridOperator {
             double zenith, double ambientLight, float vertExaggeration) {
 
         // FIXME does not work
-        progressIndicator.setMessage("Rendering " + colorVisualization.toString());
+        ProgressIndicator progressIndicator = getProgressIndicator();
+        if (progressIndicator != null) {
+            progressIndicator.setMessage("Rendering " + colorVisualization.toString());
+        }
 
         dstImage = image;
-        this.minElev = minElev;
-        this.maxElev = maxElev;
 
         // create a light vector
         Vector3D light = new Vector3D(azimuth, zenith);
@@ -303,13 +405,68 @@ public class ColorizerOperator extends ThreadedGridOperator {
         nz_sq = nz * nz;
         this.ambientLight = ambientLight;
 
-        super.operate(grid, grid);
+        if (usesColorTable()) {
+            updateColorTable(minElev, maxElev);
+        }
+        // the shading is taken from the cache, or computed and colored in
+        // the same pass
+        final long modificationCount = grid.getModificationCount();
+        if (colorVisualization.isShading()) {
+            shadingGrid = shadingCache == null ? null : shadingCache.get(grid,
+                    azimuth, zenith, ambientLight, vertExaggeration);
+            if (shadingGrid == null) {
+                computingShading = true;
+                if (shadingCache == null) {
+                    shadingGrid = GridPool.SHARED.acquireUninitialized(grid.getCols(),
+                            grid.getRows(), grid.getCellSize(), grid.getStorageFactory());
+                } else {
+                    shadingGrid = new Grid(grid.getCols(), grid.getRows(),
+                            grid.getCellSize(), grid.getStorageFactory());
+                }
+            }
+        }
+
+        try {
+            // the void mask is cached by the grid and reused for rendering
+            // the grid again with different parameters
+            voidMask = usesVoidMask() || computingShading ? grid.getVoidMask() : null;
+            super.operate(grid, grid);
+
+            // an incomplete shading of a cancelled operator is not cached
+            if (computingShading && shadingCache != null && !isCancelled()) {
+                shadingGrid.modified();
+                shadingCache.put(grid, modificationCount, azimuth, zenith,
+                        ambientLight, vertExaggeration, shadingGrid);
+            }
+        } finally {
+            voidMask = null;
+            if (computingShading && shadingCache == null) {
+                GridPool.SHARED.release(shadingGrid);
+            }
+            computingShading = false;
+            shadingGrid = null;
+        }
 
         // FIXME does not work
-        progressIndicator.setMessage("Finished Rendering " + colorVisualization.toString());
+        if (progressIndicator != null) {
+            progressIndicator.setMessage("Finished Rendering " + colorVisualization.toString());
+        }
         return dstImage;
     }
 
+    /**
+     * Returns whether the progress indicator or the execution context has
+     * been cancelled.
+     *
+     * @return True if cancelled.
+     */
+    private boolean isCancelled() {
+        final ProgressIndicator progressIndicator = getProgressIndicator();
+        final ExecutionContext context = getExecutionContext();
+        return (progressIndicator != null && progressIndicator.isCancelled())
+                || (context != null && context.isCancelled());
+    }
+
     private int[] imageBuffer(BufferedImage img) {
         return ((DataBufferInt) (img.getRaster().getDataBuffer())).getData();
     }
@@ -332,102 +489,255 @@ public class ColorizerOperator extends ThreadedGridOperator {
         return Math.max(Math.min((dotProduct + 1d + ambientLight) * 127.5, 255.), 0);
     }
 
+    /**
+     * Moves three row views to a row and its upper and lower neighbors. At
+     * the top and bottom border of the grid, the neighbor outside the grid is
+     * replaced by the border row.
+     *
+     * @param top View for the row above.
+     * @param center View for the row.
+     * @param bottom View for the row below.
+     * @param row The row index.
+     * @param nRows The number of rows in the grid.
+     */
+    private static void moveTo(GridRow top, GridRow center, GridRow bottom,
+            int row, int nRows) {
+        top.moveTo(Math.max(0, row - 1));
+        center.moveTo(row);
+        bottom.moveTo(Math.min(nRows - 1, row + 1));
+    }
+
     /**
      * Computes a shading value in 0..255
      *
-     * @param grid
+     * @param top View on the row above the current row.
+     * @param center View on the current row.
+     * @param bottom View on the row below the current row.
      * @param col
-     * @param row
      * @param nCols
      * @param nRows
      * @return
      */
-    private double shade(float[][] grid, int col, int row, int nCols, int nRows) {
+    private double shade(GridRow top, GridRow center, GridRow bottom,
+            int col, int nCols, int nRows) {
+        final int row = center.getRow();
         if (row == 0) {
             // top-left corner
             if (col == 0) {
-                final double s = grid[1][0];
-                final double e = grid[0][1];
-                final double c = grid[0][0];
+                final double s = bottom.get(0);
+                final double e = center.get(1);
+                final double c = center.get(0);
                 return shadeNormal(2 * (e - c), 2 * (s - c));
             }
 
             // top-right corner
             if (col == nCols - 1) {
-                final double s = grid[1][nCols - 1];
-                final double w = grid[0][nCols - 2];
-                final double c = grid[0][nCols - 1];
+                final double s = bottom.get(nCols - 1);
+                final double w = center.get(nCols - 2);
+                final double c = center.get(nCols - 1);
                 return shadeNormal(2 * (w - c), 2 * (s - c));
             }
 
             // somewhere in top row
-            final double s = grid[1][col];
-            final double e = grid[0][col + 1];
-            final double c = grid[0][col];
-            final double w = grid[0][col - 1];
+            final double s = bottom.get(col);
+            final double e = center.get(col + 1);
+            final double c = center.get(col);
+            final double w = center.get(col - 1);
             return shadeNormal(w - e, 2 * (s - c));
         }
 
         if (row == nRows - 1) {
             // bottom-left corner
             if (col == 0) {
-                final double n = grid[nRows - 2][0];
-                final double e = grid[nRows - 1][1];
-                final double c = grid[nRows - 1][0];
+                final double n = top.get(0);
+                final double e = center.get(1);
+                final double c = center.get(0);
                 return shadeNormal(2 * (c - e), 2 * (c - n));
             }
 
             // bottom-right corner
             if (col == nCols - 1) {
-                final double n = grid[nRows - 2][nCols - 1];
-                final double w = grid[nRows - 1][nCols - 2];
-                final double c = grid[nRows - 1][nCols - 1];
+                final double n = top.get(nCols - 1);
+                final double w = center.get(nCols - 2);
+                final double c = center.get(nCols - 1);
                 return shadeNormal(2 * (w - c), 2 * (c - n));
             }
 
             // center of bottom row
-            final double n = grid[nRows - 2][col];
-            final double e = grid[nRows - 1][col + 1];
-            final double c = grid[nRows - 1][col];
-            final double w = grid[nRows - 1][col - 1];
+            final double n = top.get(col);
+            final double e = center.get(col + 1);
+            final double c = center.get(col);
+            final double w = center.get(col - 1);
             return shadeNormal(w - e, 2 * (c - n));
         }
 
         if (col == 0) {
-            final float[] topR = grid[row - 1];
-            final float[] ctrR = grid[row];
-            final float[] btmR = grid[row + 1];
-            return shadeNormal(2 * (ctrR[0] - ctrR[1]), btmR[0] - topR[0]);
+            return shadeNormal(2 * (center.get(0) - center.get(1)),
+                    bottom.get(0) - top.get(0));
         }
 
         if (col == nCols - 1) {
-            final float[] topR = grid[row - 1];
-            final float[] ctrR = grid[row];
-            final float[] btmR = grid[row + 1];
-            return shadeNormal(2 * (ctrR[nCols - 2] - ctrR[nCols - 1]),
-                    btmR[nCols - 1] - topR[nCols - 1]);
+            return shadeNormal(2 * (center.get(nCols - 2) - center.get(nCols - 1)),
+                    bottom.get(nCols - 1) - top.get(nCols - 1));
         }
 
         // normal vector on vertex
-        final float[] centerRow = grid[row];
-        final double nx = centerRow[col - 1] - centerRow[col + 1];
-        final double ny = grid[row + 1][col] - grid[row - 1][col];
+        final float[] centerArray = center.array();
+        final int centerOffset = center.offset();
+        final double nx = centerArray[centerOffset + col - 1] - centerArray[centerOffset + col + 1];
+        final double ny = bottom.get(col) - top.get(col);
         return shadeNormal(nx, ny);
     }
 
-    private void grayShading(Grid grid, int startRow, int endRow) {
-        final float[][] gridArray = grid.getGrid();
+    /**
+     * Returns whether the current visualization skips void areas with the
+     * void mask of the grid.
+     *
+     * @return True if the void mask is used.
+     */
+    private boolean usesVoidMask() {
+        switch (colorVisualization) {
+            case GRAY_SHADING:
+            case EXPOSITION:
+            case EXPOSITION_ELEVATION:
+            case HYPSOMETRIC_SHADING:
+            case LOCAL_HYPSOMETRIC_SHADING:
+            case HYPSOMETRIC:
+            case LOCAL_HYPSOMETRIC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether the current visualization colors elevations with the
+     * color tables.
+     *
+     * @return True if the color tables are used.
+     */
+    private boolean usesColorTable() {
+        switch (colorVisualization) {
+            case HYPSOMETRIC_SHADING:
+            case LOCAL_HYPSOMETRIC_SHADING:
+            case HYPSOMETRIC:
+            case LOCAL_HYPSOMETRIC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Colors the pixels of a row with VOID_COLOR where all values needed for
+     * coloring the pixels are void. The row is processed in segments that are
+     * one tile of the void mask wide.
+     *
+     * @param row The row.
+     * @param halo The number of neighboring columns and rows needed to color
+     * a pixel.
+     * @param imageBuffer The pixels of the image.
+     * @param voidSegments Receives for each segment whether its pixels are
+     * void.
+     * @return True if all pixels of the row are void.
+     */
+    private boolean colorVoidSegments(int row, int halo, int[] imageBuffer,
+            boolean[] voidSegments) {
+        final int nCols = voidMask.getCols();
+        final boolean allVoid = findVoidSegments(row, halo, voidSegments);
+        for (int i = 0; i < voidSegments.length; i++) {
+            if (voidSegments[i]) {
+                final int col0 = i * VoidMask.TILE_SIZE;
+                final int col1 = Math.min(nCols, col0 + VoidMask.TILE_SIZE);
+                Arrays.fill(imageBuffer, row * nCols + col0, row * nCols + col1, VOID_COLOR);
+            }
+        }
+        return allVoid;
+    }
+
+    /**
+     * Finds the segments of a row where all values needed for coloring the
+     * pixels are void. The row is processed in segments that are one tile of
+     * the void mask wide.
+     *
+     * @param row The row.
+     * @param halo The number of neighboring columns and rows needed to color
+     * a pixel.
+     * @param voidSegments Receives for each segment whether its pixels are
+     * void.
+     * @return True if all pixels of the row are void.
+     */
+    private boolean findVoidSegments(int row, int halo, boolean[] voidSegments) {
+        final int nCols = voidMask.getCols();
+        boolean allVoid = true;
+        for (int i = 0; i < voidSegments.length; i++) {
+            final int col0 = i * VoidMask.TILE_SIZE;
+            final int col1 = Math.min(nCols, col0 + VoidMask.TILE_SIZE);
+            final byte state = voidMask.getState(col0 - halo, row - halo,
+                    col1 + halo, row + halo + 1);
+            voidSegments[i] = state == VoidMask.ALL_VOID;
+            allVoid &= voidSegments[i];
+        }
+        return allVoid;
+    }
+
+    /**
+     * Allocates an array for colorVoidSegments().
+     *
+     * @param nCols The number of columns of the grid.
+     * @return An array with one element per row segment.
+     */
+    private static boolean[] voidSegments(int nCols) {
+        return new boolean[(nCols + VoidMask.TILE_SIZE - 1) / VoidMask.TILE_SIZE];
+    }
+
+    /**
+     * Computes the shading of a band of rows and stores it in shadingGrid.
+     * Cells in void areas are set to NaN.
+     */
+    private void computeShading(Grid grid, int startRow, int endRow) {
+        final GridRow top = grid.rowView();
+        final GridRow center = grid.rowView();
+        final GridRow bottom = grid.rowView();
+        final GridRow shadingRow = shadingGrid.rowView();
+        final int nCols = grid.getCols();
+        final int nRows = grid.getRows();
+        final boolean[] voidSegments = voidSegments(nCols);
+        for (int row = startRow; row < endRow; ++row) {
+            final float[] shadingArray = shadingRow.moveTo(row).array();
+            final int shadingOffset = shadingRow.offset();
+            findVoidSegments(row, 1, voidSegments);
+            moveTo(top, center, bottom, row, nRows);
+            for (int col = 0; col < nCols; ++col) {
+                if (voidSegments[col / VoidMask.TILE_SIZE]) {
+                    shadingArray[shadingOffset + col] = Float.NaN;
+                } else {
+                    shadingArray[shadingOffset + col]
+                            = (float) shade(top, center, bottom, col, nCols, nRows);
+                }
+            }
+            shadingRow.store();
+        }
+    }
+
+    private void grayShading(int startRow, int endRow) {
+        final GridRow shadingRow = shadingGrid.rowView();
         final int nCols = dstImage.getWidth();
-        final int nRows = dstImage.getHeight();
         final int[] imageBuffer = imageBuffer(dstImage);
+        final boolean[] voidSegments = voidSegments(nCols);
 
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
+            if (colorVoidSegments(row, 1, imageBuffer, voidSegments)) {
+                continue;
             }
+            final float[] shadingArray = shadingRow.moveTo(row).array();
+            final int shadingOffset = shadingRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                final double gray = shade(gridArray, col, row, nCols, nRows);
-                if (Double.isNaN(gray)) {
+                if (voidSegments[col / VoidMask.TILE_SIZE]) {
+                    continue;
+                }
+                final float gray = shadingArray[shadingOffset + col];
+                if (Float.isNaN(gray)) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
                 } else {
                     final int g = (int) gray;
@@ -439,44 +749,63 @@ public class ColorizerOperator extends ThreadedGridOperator {
 
     private void hypsometricShading(Grid grid, int startRow, int endRow) {
         final int nCols = grid.getCols();
-        final int nRows = grid.getRows();
-        final float[][] gr = grid.getGrid();
+        final GridRow gridRow = grid.rowView();
+        final GridRow shadingRow = shadingGrid.rowView();
         final int[] imageBuffer = imageBuffer(dstImage);
+        final boolean[] voidSegments = voidSegments(nCols);
+        final float[] table = colorTable;
+        final float scale = colorTableScale();
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
+            if (colorVoidSegments(row, 1, imageBuffer, voidSegments)) {
+                continue;
             }
+            final float[] gridArray = gridRow.moveTo(row).array();
+            final int gridOffset = gridRow.offset();
+            final float[] shadingArray = shadingRow.moveTo(row).array();
+            final int shadingOffset = shadingRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                final double gray = shade(gr, col, row, nCols, nRows);
-                if (Double.isNaN(gray)) {
+                if (voidSegments[col / VoidMask.TILE_SIZE]) {
+                    continue;
+                }
+                final float gray = shadingArray[shadingOffset + col];
+                if (Float.isNaN(gray)) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
                 } else {
-                    // apply a color ramp to the grid value
-                    final float v = gr[row][col];
+                    // look up the color of the grid value
+                    final float v = gridArray[gridOffset + col];
+                    final int i = colorTableIndex(v, scale) * 3;
                     // multiply the color with the gray value of the shading
-                    final int argb = getLinearRGB(v, minElev, maxElev, (float) (gray / 255d));
-                    imageBuffer[row * nCols + col] = argb;
+                    final float mult = (float) (gray / 255d);
+                    final int r = (int) (mult * table[i]);
+                    final int g = (int) (mult * table[i + 1]);
+                    final int b = (int) (mult * table[i + 2]);
+                    imageBuffer[row * nCols + col] = b | (g << 8) | (r << 16) | 0xFF000000;
                 }
             }
         }
     }
 
-    private void expositionShading(Grid grid, int startRow, int endRow) {
-        final float[][] gridArray = grid.getGrid();
+    private void expositionShading(int startRow, int endRow) {
+        final GridRow shadingRow = shadingGrid.rowView();
         final int nCols = dstImage.getWidth();
-        final int nRows = dstImage.getHeight();
         final int[] imageBuffer = imageBuffer(dstImage);
+        final boolean[] voidSegments = voidSegments(nCols);
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
+            if (colorVoidSegments(row, 1, imageBuffer, voidSegments)) {
+                continue;
             }
+            final float[] shadingArray = shadingRow.moveTo(row).array();
+            final int shadingOffset = shadingRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                final double gray = shade(gridArray, col, row, nCols, nRows);
-                if (Double.isNaN(gray)) {
+                if (voidSegments[col / VoidMask.TILE_SIZE]) {
+                    continue;
+                }
+                final float gray = shadingArray[shadingOffset + col];
+                if (Float.isNaN(gray)) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
                 } else {
                     // apply a color ramp to the shaded gray value 
-                    final int argb = getLinearRGB((float) gray, 0, 255, 1f);
+                    final int argb = getLinearRGB(gray, 0, 255, 1f);
                     imageBuffer[row * nCols + col] = argb;
                 }
             }
@@ -484,10 +813,11 @@ public class ColorizerOperator extends ThreadedGridOperator {
     }
 
     private void expositionElevationShading(Grid grid, int startRow, int endRow) {
-        final float[][] gridArray = grid.getGrid();
+        final GridRow center = grid.rowView();
+        final GridRow shadingRow = shadingGrid.rowView();
         final int nCols = dstImage.getWidth();
-        final int nRows = dstImage.getHeight();
         final int[] imageBuffer = imageBuffer(dstImage);
+        final boolean[] voidSegments = voidSegments(nCols);
         float[] minMax = grid.getMinMax();
         final double minVal = minMax[0];
         final double maxVal = minMax[1];
@@ -495,16 +825,22 @@ public class ColorizerOperator extends ThreadedGridOperator {
         float[] hsb = new float[3];
 
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
+            if (colorVoidSegments(row, 1, imageBuffer, voidSegments)) {
+                continue;
             }
+            center.moveTo(row);
+            final float[] shadingArray = shadingRow.moveTo(row).array();
+            final int shadingOffset = shadingRow.offset();
             for (int col = 0; col < nCols; ++col) {
+                if (voidSegments[col / VoidMask.TILE_SIZE]) {
+                    continue;
+                }
 
-                final double gray = shade(gridArray, col, row, nCols, nRows);
+                final double gray = shadingArray[shadingOffset + col];
                 if (Double.isNaN(gray)) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
                 } else {
-                    final double v = grid.getValue(col, row);
+                    final double v = center.get(col);
                     int argb = colorLUT.getColor(gray / 255d, (v - minVal) / range);
                     // TODO experimental always use gray value of shading for brightness; ignor brightness of color look-up table
                     int red = (argb >> 16) & 0xFF;
@@ -523,9 +859,6 @@ public class ColorizerOperator extends ThreadedGridOperator {
         final int nCols = dstImage.getWidth();
         final int[] imageBuffer = imageBuffer(dstImage);
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
-            }
             if (bivariateColorRenderer.hasGrids() == false) {
                 for (int col = 0; col < nCols; ++col) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
@@ -539,29 +872,20 @@ public class ColorizerOperator extends ThreadedGridOperator {
         }
     }
 
-    private void bivariateShading(Grid grid, int startRow, int endRow) {
-        if (grid == null) {
-            return;
-        }
+    private void bivariateShading(int startRow, int endRow) {
         final int nCols = dstImage.getWidth();
-        final int nRows = grid.getRows();
-        final float[][] gr = grid.getGrid();
+        final GridRow shadingRow = shadingGrid.rowView();
         final int[] imageBuffer = imageBuffer(dstImage);
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
-            }
             if (bivariateColorRenderer.hasGrids() == false) {
                 for (int col = 0; col < nCols; ++col) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
                 }
             } else {
+                final float[] shadingArray = shadingRow.moveTo(row).array();
+                final int shadingOffset = shadingRow.offset();
                 for (int col = 0; col < nCols; ++col) {
-                    int gray = (int) shade(gr, col, row, nCols, nRows);
-                    if (Double.isNaN(gray)) {
-                        imageBuffer[row * nCols + col] = VOID_COLOR;
-                        continue;
-                    }
+                    int gray = (int) shadingArray[shadingOffset + col];
                     int rgb = bivariateColorRenderer.renderPixel(col, row);
                     if (rgb == VOID_COLOR) {
                         imageBuffer[row * nCols + col] = VOID_COLOR;
@@ -583,18 +907,25 @@ public class ColorizerOperator extends ThreadedGridOperator {
     private void hypsometric(Grid grid, int startRow, int endRow) {
         final int nCols = dstImage.getWidth();
         final int[] imageBuffer = imageBuffer(dstImage);
+        final boolean[] voidSegments = voidSegments(nCols);
+        final GridRow gridRow = grid.rowView();
+        final int[] table = argbTable;
+        final float scale = colorTableScale();
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
+            if (colorVoidSegments(row, 0, imageBuffer, voidSegments)) {
+                continue;
             }
-            float[] gridRow = grid.getGrid()[row];
+            final float[] gridArray = gridRow.moveTo(row).array();
+            final int gridOffset = gridRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                final float v = gridRow[col];
+                if (voidSegments[col / VoidMask.TILE_SIZE]) {
+                    continue;
+                }
+                final float v = gridArray[gridOffset + col];
                 if (Float.isNaN(v)) {
                     imageBuffer[row * nCols + col] = VOID_COLOR;
                 } else {
-                    final int argb = getLinearRGB(v, minElev, maxElev, 1);
-                    imageBuffer[row * nCols + col] = argb;
+                    imageBuffer[row * nCols + col] = table[colorTableIndex(v, scale)];
                 }
             }
         }
@@ -604,9 +935,6 @@ public class ColorizerOperator extends ThreadedGridOperator {
         final int nCols = dstImage.getWidth();
         final int[] imageBuffer = imageBuffer(dstImage);
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
-            }
             for (int col = 0; col < nCols; ++col) {
                 final float slope = (float) grid.getSlope(col, row);
                 if (Float.isNaN(slope)) {
@@ -623,9 +951,6 @@ public class ColorizerOperator extends ThreadedGridOperator {
         final int nCols = dstImage.getWidth();
         final int[] imageBuffer = imageBuffer(dstImage);
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
-            }
             for (int col = 0; col < nCols; ++col) {
                 final float aspect = (float) grid.getAspect(col, row);
                 if (Float.isNaN(aspect)) {
@@ -642,9 +967,6 @@ public class ColorizerOperator extends ThreadedGridOperator {
         final int nCols = dstImage.getWidth();
         final int[] imageBuffer = imageBuffer(dstImage);
         for (int row = startRow; row < endRow; ++row) {
-            if (!reportProgress(startRow, endRow, row)) {
-                return;
-            }
             for (int col = 0; col < nCols; ++col) {
                 final float profileCurvature = GridProfileCurvatureOperator.getProfileCurvature(grid, col, row, 3);
                 if (Float.isNaN(profileCurvature)) {
@@ -658,7 +980,8 @@ public class ColorizerOperator extends ThreadedGridOperator {
     }
 
     /**
-     * Compute a chunk of the image.
+     * Compute a chunk of the image. If the shading is not cached, blocks of
+     * rows are shaded and then colored.
      *
      * @param grid Grid with elevation values.
      * @param ignore
@@ -667,12 +990,31 @@ public class ColorizerOperator extends ThreadedGridOperator {
      */
     @Override
     protected void operate(Grid grid, Grid ignore, int startRow, int endRow) {
+        if (computingShading) {
+            for (int r0 = startRow; r0 < endRow; r0 += SHADING_BLOCK_HEIGHT) {
+                final int r1 = Math.min(endRow, r0 + SHADING_BLOCK_HEIGHT);
+                computeShading(grid, r0, r1);
+                colorize(grid, r0, r1);
+            }
+        } else {
+            colorize(grid, startRow, endRow);
+        }
+    }
+
+    /**
+     * Colors a band of rows of the image.
+     *
+     * @param grid Grid with elevation values.
+     * @param startRow First row to compute.
+     * @param endRow First row of next chunk.
+     */
+    private void colorize(Grid grid, int startRow, int endRow) {
         switch (colorVisualization) {
             case GRAY_SHADING:
-                grayShading(grid, startRow, endRow);
+                grayShading(startRow, endRow);
                 break;
             case EXPOSITION:
-                expositionShading(grid, startRow, endRow);
+                expositionShading(startRow, endRow);
                 break;
             case EXPOSITION_ELEVATION:
                 expositionElevationShading(grid, startRow, endRow);
@@ -681,7 +1023,7 @@ public class ColorizerOperator extends ThreadedGridOperator {
                 bivariate(startRow, endRow);
                 break;
             case BIVARIATE_SHADING:
-                bivariateShading(grid, startRow, endRow);
+                bivariateShading(startRow, endRow);
                 break;
             case HYPSOMETRIC_SHADING:
             case LOCAL_HYPSOMETRIC_SHADING:
@@ -703,6 +1045,16 @@ public class ColorizerOperator extends ThreadedGridOperator {
         }
     }
 
+    /**
+     * The grids are not changed.
+     *
+     * @return False
+     */
+    @Override
+    protected boolean isDestinationModified() {
+        return false;
+    }
+
     @Override
     public String getName() {
         return "Colorizer";
@@ -0,0 +1,185 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The context in which operators are executed for a job, such as rendering an
+ * image. Several jobs can run at the same time, for example when multiple
+ * models are rendered. The context of a job has:
+ *
+ * A thread budget: the operators of the job are executed by a pool with the
+ * given number of threads, instead of the pool shared by all operators, such
+ * that concurrent jobs can share the CPU cores.
+ *
+ * A priority: background jobs pause between blocks of rows while an
+ * interactive job is running, such that an interactive rendering is not
+ * slowed down by batch work.
+ *
+ * A cancellation token: operators stop processing rows when the context is
+ * cancelled.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class ExecutionContext {
+
+    /**
+     * The priority of a job.
+     */
+    public enum Priority {
+
+        /**
+         * Batch work that pauses while interactive jobs are running.
+         */
+        BACKGROUND,
+        /**
+         * Work that the user is waiting for, for example a rendering
+         * displayed in the GUI.
+         */
+        INTERACTIVE
+    }
+
+    /**
+     * The maximum time in milliseconds a paused background job waits before
+     * testing again whether it has been cancelled.
+     */
+    private static final long PAUSE_MILLISECONDS = 100;
+
+    /**
+     * Lock for the number of running interactive jobs.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * The number of operators currently executed for interactive jobs.
+     */
+    private static volatile int interactiveOperations = 0;
+
+    private final int threads;
+    private final Priority priority;
+    private volatile boolean cancelled = false;
+
+    /**
+     * The pool with the budgeted number of threads. Created when first used.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Creates a new context.
+     *
+     * @param threads The number of threads. Must be at least 1.
+     * @param priority The priority of the job.
+     */
+    public ExecutionContext(int threads, Priority priority) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads.");
+        }
+        if (priority == null) {
+            throw new IllegalArgumentException("priority is null");
+        }
+        this.threads = threads;
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the pool executing the operators of this job. Threads of the
+     * pool terminate when the pool is idle.
+     *
+     * @return A pool with getThreads() threads.
+     */
+    public synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            final int threadPriority = priority == Priority.BACKGROUND
+                    ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY;
+            pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread
+                            = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setPriority(threadPriority);
+                    return thread;
+                }
+            }, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * Cancels the job. Operators stop processing rows, and paused background
+     * operators resume to stop.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns whether the job has been cancelled.
+     *
+     * @return True if cancel() has been called.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the number of threads of this job.
+     *
+     * @return The number of threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the priority of this job.
+     *
+     * @return The priority.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Called by operators before they start processing rows.
+     */
+    void begin() {
+        if (priority == Priority.INTERACTIVE) {
+            synchronized (LOCK) {
+                ++interactiveOperations;
+            }
+        }
+    }
+
+    /**
+     * Called by operators after they have processed all rows.
+     */
+    void end() {
+        if (priority == Priority.INTERACTIVE) {
+            synchronized (LOCK) {
+                --interactiveOperations;
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called by operators between blocks of rows. Blocks background jobs while
+     * an interactive job is running, unless this job is cancelled.
+     */
+    void pauseWhilePreempted() {
+        if (priority != Priority.BACKGROUND || interactiveOperations == 0) {
+            return;
+        }
+        synchronized (LOCK) {
+            while (interactiveOperations > 0 && !cancelled) {
+                try {
+                    LOCK.wait(PAUSE_MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
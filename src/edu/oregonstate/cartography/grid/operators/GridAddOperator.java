@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * Add a constant value.
@@ -15,18 +16,26 @@ public class GridAddOperator extends ThreadedGridOperator {
     }
    
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        final GridRow srcRow = src.rowView();
+        final GridRow dstRow = dst.rowView();
         final int nCols = src.getCols();
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcRow = srcGrid[row];
-            float[] dstRow = dstGrid[row];
+            final float[] srcArray = srcRow.moveTo(row).array();
+            final float[] dstArray = dstRow.moveTo(row).array();
+            final int srcOffset = srcRow.offset();
+            final int dstOffset = dstRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                dstRow[col] = srcRow[col] + offset;
+                dstArray[dstOffset + col] = srcArray[srcOffset + col] + offset;
             }
+            dstRow.store();
         }
     }
 
+    @Override
+    public int getHaloRows() {
+        return 0;
+    }
+
     @Override
     public String getName() {
         return "Vertical Offset";
@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * Copy a grid.
@@ -10,13 +11,23 @@ public class GridCopyOperator extends ThreadedGridOperator {
 
     @Override
     protected void operate(Grid src, Grid dst, int startRow, int endRow) {
+        final GridRow srcRow = src.rowView();
+        final GridRow dstRow = dst.rowView();
+        final int nCols = src.getCols();
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcArray = src.getGrid()[row];
-            float[] dstArray = dst.getGrid()[row];
-            System.arraycopy(srcArray, 0, dstArray, 0, srcArray.length);
+            srcRow.moveTo(row);
+            dstRow.moveTo(row);
+            System.arraycopy(srcRow.array(), srcRow.offset(),
+                    dstRow.array(), dstRow.offset(), nCols);
+            dstRow.store();
         }
     }
 
+    @Override
+    public int getHaloRows() {
+        return 0;
+    }
+
     @Override
     public String getName() {
         return "Copy";
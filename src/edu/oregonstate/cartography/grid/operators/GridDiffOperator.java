@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * Computes dst = src - dst
@@ -12,6 +13,11 @@ public class GridDiffOperator extends ThreadedGridOperator{
     public GridDiffOperator() {
     }
     
+    @Override
+    public int getHaloRows() {
+        return 0;
+    }
+
     @Override
     public String getName() {
         return "Difference";
@@ -21,18 +27,19 @@ public class GridDiffOperator extends ThreadedGridOperator{
     protected void operate(Grid src, Grid dst, int startRow, int endRow) {
         int nCols = src.getCols();
         
-        float[][] srcGrid1 = src.getGrid();
-        float[][] srcGrid2 = dst.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        final GridRow srcRow = src.rowView();
+        final GridRow dstRow = dst.rowView();
         
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcRow1 = srcGrid1[row];
-            float[] srcRow2 = srcGrid2[row];
-            float[] dstRow = dstGrid[row];
+            final float[] srcArray = srcRow.moveTo(row).array();
+            final float[] dstArray = dstRow.moveTo(row).array();
+            final int srcOffset = srcRow.offset();
+            final int dstOffset = dstRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                float v = srcRow1[col] - srcRow2[col];
-                dstRow[col] = Float.isInfinite(v) ? Float.NaN : v;
+                float v = srcArray[srcOffset + col] - dstArray[dstOffset + col];
+                dstArray[dstOffset + col] = Float.isInfinite(v) ? Float.NaN : v;
             }
+            dstRow.store();
         }
     }
 }
\ No newline at end of file
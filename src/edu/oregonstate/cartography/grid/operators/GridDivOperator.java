@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * Computes grid1 / (grid2 + k)
@@ -41,18 +42,22 @@ public class GridDivOperator extends ThreadedGridOperator{
     protected void operate(Grid src, Grid dst, int startRow, int endRow) {
         int nCols = src.getCols();
         
-        float[][] srcGrid1 = grid1.getGrid();
-        float[][] srcGrid2 = grid2.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        final GridRow srcRow1 = grid1.rowView();
+        final GridRow srcRow2 = grid2.rowView();
+        final GridRow dstRow = dst.rowView();
         
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcRow1 = srcGrid1[row];
-            float[] srcRow2 = srcGrid2[row];
-            float[] dstRow = dstGrid[row];
+            final float[] srcArray1 = srcRow1.moveTo(row).array();
+            final float[] srcArray2 = srcRow2.moveTo(row).array();
+            final float[] dstArray = dstRow.moveTo(row).array();
+            final int srcOffset1 = srcRow1.offset();
+            final int srcOffset2 = srcRow2.offset();
+            final int dstOffset = dstRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                float v = srcRow1[col] / (srcRow2[col] + k);
-                dstRow[col] = Float.isInfinite(v) ? Float.NaN : v;
+                float v = srcArray1[srcOffset1 + col] / (srcArray2[srcOffset2 + col] + k);
+                dstArray[dstOffset + col] = Float.isInfinite(v) ? Float.NaN : v;
             }
+            dstRow.store();
         }
     }
 }
\ No newline at end of file
@@ -5,6 +5,10 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridPool;
+import edu.oregonstate.cartography.grid.GridRow;
+import edu.oregonstate.cartography.grid.VoidMask;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
 import java.text.DecimalFormat;
 
 /**
@@ -37,12 +41,29 @@ public class GridGaussLowPassOperator implements GridOperator {
      */
     private int relativeFilterSize = 8;
 
+    /**
+     * Progress indicator informed about progress of the two convolution
+     * passes and checked for cancellation. Can be null.
+     */
+    private ProgressIndicator progressIndicator;
+
+    /**
+     * The context of the job executing the convolution passes. Can be null.
+     */
+    private ExecutionContext executionContext;
+
     /**
      * Applies horizontal Gaussian convolution and stores results in a
      * transposed grid.
      */
     private class HorizontalTransposedConvolution extends ThreadedGridOperator {
 
+        /**
+         * Void mask of the source grid, used to skip void areas and to avoid
+         * NaN tests in valid areas.
+         */
+        private VoidMask voidMask;
+
         /**
          * Create a transposed grid
          *
@@ -53,7 +74,9 @@ public class GridGaussLowPassOperator implements GridOperator {
         protected Grid initDestinationGrid(Grid srcGrid) {
             final int nrows = srcGrid.getRows();
             final int ncols = srcGrid.getCols();
-            Grid tempTransposedGrid = new Grid(nrows, ncols, srcGrid.getCellSize());
+            // all values of the transposed grid are overwritten
+            Grid tempTransposedGrid = GridPool.SHARED.acquireUninitialized(
+                    nrows, ncols, srcGrid.getCellSize(), srcGrid.getStorageFactory());
             tempTransposedGrid.setWest(srcGrid.getWest());
             tempTransposedGrid.setSouth(srcGrid.getSouth());
             return tempTransposedGrid;
@@ -67,8 +90,18 @@ public class GridGaussLowPassOperator implements GridOperator {
             return super.operate(src, dst);
         }
 
-        private float convolveWithNaN(float[] srcRow, int col, float[] kernel) {
-            final int nCols = srcRow.length;
+        @Override
+        protected void prepare(Grid src, Grid dst) {
+            voidMask = src.getVoidMask();
+        }
+
+        @Override
+        protected void finish(Grid src, Grid dst) {
+            voidMask = null;
+        }
+
+        private float convolveWithNaN(float[] srcRow, int srcOffset, int nCols,
+                int col, float[] kernel) {
             final int halfFilterSize = kernelSize() / 2;
             float sum = 0;
             float coefSum = 0;
@@ -77,7 +110,7 @@ public class GridGaussLowPassOperator implements GridOperator {
                 if (c < 0 || c >= nCols) {
                     continue;
                 }
-                float v = srcRow[c];
+                float v = srcRow[srcOffset + c];
                 if (Float.isNaN(v)) {
                     continue;
                 }
@@ -95,9 +128,10 @@ public class GridGaussLowPassOperator implements GridOperator {
             final int halfFilterSize = kernelSize() / 2;
             final float[] kernel = kernel();
 
+            final GridRow srcView = src.rowView();
             for (int row = startRow; row < endRow; row++) {
-                final float[][] dstGrid = dst.getGrid();
-                final float[] srcRow = src.getGrid()[row];
+                final float[] srcRow = srcView.moveTo(row).array();
+                final int srcOffset = srcView.offset();
 
                 // convolve left border area
                 final int maxCol = Math.min(halfFilterSize, ncols);
@@ -107,27 +141,51 @@ public class GridGaussLowPassOperator implements GridOperator {
                     for (int f = -col; f <= halfFilterSize; f++) {
                         if (col + f < ncols) {
                             final float s = kernel[f + halfFilterSize];
-                            sum += srcRow[col + f] * s;
+                            sum += srcRow[srcOffset + col + f] * s;
                             coefSum += s;
                         }
                     }
                     float v = sum / coefSum;
                     if (Float.isNaN(v)) {
-                        v = convolveWithNaN(srcRow, col, kernel);
+                        v = convolveWithNaN(srcRow, srcOffset, ncols, col, kernel);
                     }
-                    dstGrid[col][row] = v; // transposed destination
+                    dst.setValue(v, row, col); // transposed destination
                 }
 
-                // convolve center area
-                for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
-                    float sum = 0;
-                    for (int c = col - halfFilterSize, f = 0; c <= col + halfFilterSize; c++, f++) {
-                        sum += srcRow[c] * kernel[f];
-                    }
-                    if (Float.isNaN(sum)) {
-                        sum = convolveWithNaN(srcRow, col, kernel);
+                // convolve center area in segments that are one tile of the
+                // void mask wide
+                final int maxCenterCol = ncols - halfFilterSize;
+                for (int col = halfFilterSize; col < maxCenterCol;) {
+                    final int segmentEnd = Math.min(maxCenterCol,
+                            (col / VoidMask.TILE_SIZE + 1) * VoidMask.TILE_SIZE);
+                    final byte state = voidMask.getState(col - halfFilterSize, row,
+                            segmentEnd + halfFilterSize, row + 1);
+                    if (state == VoidMask.ALL_VOID) {
+                        // all values under the kernel are void
+                        for (; col < segmentEnd; col++) {
+                            dst.setValue(Float.NaN, row, col); // transposed destination
+                        }
+                    } else if (state == VoidMask.ALL_VALID) {
+                        // no values under the kernel are void
+                        for (; col < segmentEnd; col++) {
+                            float sum = 0;
+                            for (int c = col - halfFilterSize, f = 0; c <= col + halfFilterSize; c++, f++) {
+                                sum += srcRow[srcOffset + c] * kernel[f];
+                            }
+                            dst.setValue(sum, row, col); // transposed destination
+                        }
+                    } else {
+                        for (; col < segmentEnd; col++) {
+                            float sum = 0;
+                            for (int c = col - halfFilterSize, f = 0; c <= col + halfFilterSize; c++, f++) {
+                                sum += srcRow[srcOffset + c] * kernel[f];
+                            }
+                            if (Float.isNaN(sum)) {
+                                sum = convolveWithNaN(srcRow, srcOffset, ncols, col, kernel);
+                            }
+                            dst.setValue(sum, row, col); // transposed destination
+                        }
                     }
-                    dstGrid[col][row] = sum; // transposed destination
                 }
 
                 // convolve right border area
@@ -138,15 +196,15 @@ public class GridGaussLowPassOperator implements GridOperator {
                     for (int f = -halfFilterSize; f < ncols - col; f++) {
                         if (col + f >= 0) {
                             final float s = kernel[f + halfFilterSize];
-                            sum += srcRow[col + f] * s;
+                            sum += srcRow[srcOffset + col + f] * s;
                             coefSum += s;
                         }
                     }
                     float v = sum / coefSum;
                     if (Float.isNaN(v)) {
-                        v = convolveWithNaN(srcRow, col, kernel);
+                        v = convolveWithNaN(srcRow, srcOffset, ncols, col, kernel);
                     }
-                    dstGrid[col][row] = v; // transposed destination
+                    dst.setValue(v, row, col); // transposed destination
                 }
             }
         }
@@ -246,7 +304,8 @@ public class GridGaussLowPassOperator implements GridOperator {
 
     @Override
     public Grid operate(Grid grid) {
-        Grid dst = new Grid(grid.getCols(), grid.getRows(), grid.getCellSize());
+        Grid dst = GridPool.SHARED.acquireUninitialized(grid.getCols(),
+                grid.getRows(), grid.getCellSize(), grid.getStorageFactory());
         dst.setWest(grid.getWest());
         dst.setSouth(grid.getSouth());
         return operate(grid, dst);
@@ -273,8 +332,35 @@ public class GridGaussLowPassOperator implements GridOperator {
         }
 
         HorizontalTransposedConvolution hop = new HorizontalTransposedConvolution();
+        hop.setProgressIndicator(progressIndicator);
+        hop.setExecutionContext(executionContext);
         Grid transposedGrid = hop.operate(src);
-        return hop.operate(transposedGrid, dst);
+        if ((progressIndicator == null || !progressIndicator.isCancelled())
+                && (executionContext == null || !executionContext.isCancelled())) {
+            hop.operate(transposedGrid, dst);
+        }
+        GridPool.SHARED.release(transposedGrid);
+        return dst;
+    }
+
+    /**
+     * Sets a progress indicator that is informed about progress and checked
+     * for cancellation. If the indicator is cancelled, the destination grid
+     * is only partially computed.
+     *
+     * @param progressIndicator The progress indicator or null.
+     */
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
+    /**
+     * Sets the execution context of the job running the convolution passes.
+     *
+     * @param executionContext The context or null.
+     */
+    public void setExecutionContext(ExecutionContext executionContext) {
+        this.executionContext = executionContext;
     }
 
     /**
@@ -7,6 +7,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * Copies NaN values from a source grid to a destination grid.
@@ -18,21 +19,29 @@ public class GridMaskOperator extends ThreadedGridOperator {
     @Override
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
 
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        final GridRow srcRow = src.rowView();
+        final GridRow dstRow = dst.rowView();
         final int nCols = src.getCols();
 
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcRow = srcGrid[row];
-            float[] dstRow = dstGrid[row];
+            final float[] srcArray = srcRow.moveTo(row).array();
+            final float[] dstArray = dstRow.moveTo(row).array();
+            final int srcOffset = srcRow.offset();
+            final int dstOffset = dstRow.offset();
             for (int col = 0; col < nCols; ++col) {
-                if (Float.isNaN(srcRow[col])) {
-                    dstRow[col] = Float.NaN;
+                if (Float.isNaN(srcArray[srcOffset + col])) {
+                    dstArray[dstOffset + col] = Float.NaN;
                 }
             }
+            dstRow.store();
         }
     }
 
+    @Override
+    public int getHaloRows() {
+        return 0;
+    }
+
     @Override
     public String getName() {
         return "Mask";
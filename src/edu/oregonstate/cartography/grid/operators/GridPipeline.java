@@ -0,0 +1,318 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import edu.oregonstate.cartography.grid.Grid;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Applies a sequence of threaded operators band by band. Instead of applying
+ * each operator to the entire grid before the next operator starts, all
+ * operators are applied to a band of rows while the values of the band are
+ * still in the CPU cache. This saves a full pass over the grids for each
+ * operator.
+ *
+ * Operators must declare the number of rows above and below a row they read
+ * with ThreadedGridOperator.getHaloRows(). Rows that an operator cannot
+ * compute within a band, because rows of the neighboring band are needed, are
+ * computed in a second pass after all bands have been processed. Only a few
+ * rows at the border of each band are computed in the second pass.
+ *
+ * ThreadedGridOperator.prepare() is called for all operators before the first
+ * row is processed. Operators computing values in prepare() from the result
+ * of a previous operator, such as GridScaleToRangeOperator, must therefore be
+ * the first operator or be preceded by operators that do not change the grid
+ * read by the operator.
+ *
+ * Example: new GridPipeline().add(new GridCopyOperator(), grid, copy)
+ * .add(new GridSlopeOperator(), copy, slope).run();
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class GridPipeline {
+
+    /**
+     * The minimum number of rows in a band.
+     */
+    private static final int MIN_BAND_HEIGHT = 8;
+
+    /**
+     * The number of bands per thread of the pool.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * An operator with its source and destination grids.
+     */
+    private static final class Stage {
+
+        final ThreadedGridOperator op;
+        final Grid src;
+        final Grid dst;
+
+        /**
+         * The number of rows at the border of a band that cannot be computed
+         * with the rows of the band. This is the sum of the halo rows of this
+         * operator and of all previous operators.
+         */
+        final int halo;
+
+        Stage(ThreadedGridOperator op, Grid src, Grid dst, int halo) {
+            this.op = op;
+            this.src = src;
+            this.dst = dst;
+            this.halo = halo;
+        }
+    }
+
+    private final ArrayList<Stage> stages = new ArrayList<>();
+
+    /**
+     * The pool executing the pipeline or null if the shared pool is used.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * The context of the job executing the pipeline. Can be null.
+     */
+    private ExecutionContext executionContext;
+
+    public GridPipeline() {
+    }
+
+    /**
+     * Appends an operator to the pipeline.
+     *
+     * @param op The operator. getHaloRows() must not return -1.
+     * @param src The source grid. Must have the same size as the grids of the
+     * previous operators.
+     * @param dst The destination grid. Must have the same size as the source
+     * grid. Must not be a grid read by a previous operator with halo rows.
+     * @return This pipeline.
+     */
+    public GridPipeline add(ThreadedGridOperator op, Grid src, Grid dst) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(op.getName() + ": invalid source grid");
+        }
+        if (dst == null || !dst.isWellFormed() || !src.isIdenticalInSize(dst)) {
+            throw new IllegalArgumentException(op.getName() + ": invalid destination grid");
+        }
+        if (!stages.isEmpty() && !stages.get(0).src.isIdenticalInSize(src)) {
+            throw new IllegalArgumentException(op.getName() + ": grids of different size");
+        }
+        final int haloRows = op.getHaloRows();
+        if (haloRows < 0) {
+            throw new IllegalArgumentException(op.getName() + " cannot be used in a pipeline");
+        }
+        if (haloRows > 0 && src == dst) {
+            throw new IllegalArgumentException(op.getName() + ": overwriting source grid is not possible");
+        }
+        int halo = haloRows;
+        for (Stage stage : stages) {
+            // the rows at the border of a band are computed after the rows
+            // of a later operator have been changed
+            if (stage.halo > 0 && stage.src == dst) {
+                throw new IllegalArgumentException(op.getName()
+                        + ": cannot change a grid read by " + stage.op.getName());
+            }
+            halo = Math.max(halo, stage.halo + haloRows);
+        }
+        stages.add(new Stage(op, src, dst, halo));
+        return this;
+    }
+
+    /**
+     * Applies the operators.
+     */
+    public void run() {
+        if (stages.isEmpty()) {
+            return;
+        }
+        final int nRows = stages.get(0).src.getRows();
+        final int maxHalo = stages.get(stages.size() - 1).halo;
+        final ForkJoinPool p = getPool();
+
+        // bands must be high enough such that rows computed in the second
+        // pass for neighboring band borders do not depend on each other. For
+        // tiled grids, bands are a multiple of the tile size.
+        int tileSize = 0;
+        for (Stage stage : stages) {
+            tileSize = Math.max(tileSize, Math.max(stage.src.getTileSize(),
+                    stage.dst.getTileSize()));
+        }
+        int bandHeight = Math.max(MIN_BAND_HEIGHT, 4 * maxHalo + 1);
+        if (tileSize > 0) {
+            bandHeight = (bandHeight + tileSize - 1) / tileSize * tileSize;
+        } else {
+            bandHeight = Math.max(bandHeight, nRows / (p.getParallelism() * BANDS_PER_THREAD));
+        }
+        final int nBands = (nRows + bandHeight - 1) / bandHeight;
+
+        final ExecutionContext context = executionContext;
+        if (context != null) {
+            context.begin();
+        }
+        // only stages that have been prepared are finished
+        int nPrepared = 0;
+        try {
+            for (Stage stage : stages) {
+                stage.op.prepare(stage.src, stage.dst);
+                nPrepared++;
+            }
+            p.invoke(new BandsAction(0, nBands, bandHeight, nRows));
+            if (nBands > 1 && maxHalo > 0) {
+                p.invoke(new BorderAction(1, nBands, bandHeight, nRows));
+            }
+        } finally {
+            for (int i = 0; i < nPrepared; i++) {
+                Stage stage = stages.get(i);
+                stage.op.finish(stage.src, stage.dst);
+            }
+            if (context != null) {
+                context.end();
+            }
+        }
+        for (Stage stage : stages) {
+            if (stage.op.isDestinationModified()) {
+                stage.dst.modified();
+            }
+        }
+    }
+
+    /**
+     * Applies all operators to the rows of a band that can be computed
+     * without rows of the neighboring bands.
+     */
+    private final class BandsAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int firstBand;
+        private final int endBand;
+        private final int bandHeight;
+        private final int nRows;
+
+        BandsAction(int firstBand, int endBand, int bandHeight, int nRows) {
+            this.firstBand = firstBand;
+            this.endBand = endBand;
+            this.bandHeight = bandHeight;
+            this.nRows = nRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (endBand - firstBand > 1) {
+                final int mid = (firstBand + endBand) / 2;
+                invokeAll(new BandsAction(firstBand, mid, bandHeight, nRows),
+                        new BandsAction(mid, endBand, bandHeight, nRows));
+                return;
+            }
+            if (isCancelled()) {
+                return;
+            }
+            final int startRow = firstBand * bandHeight;
+            final int endRow = Math.min(nRows, startRow + bandHeight);
+            for (Stage stage : stages) {
+                // rows at the top and bottom of the grid are always computed
+                final int r0 = startRow == 0 ? 0 : startRow + stage.halo;
+                final int r1 = endRow == nRows ? nRows : endRow - stage.halo;
+                if (r0 < r1) {
+                    stage.op.operate(stage.src, stage.dst, r0, r1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the operators to the rows around the border between two bands
+     * that were skipped by BandsAction.
+     */
+    private final class BorderAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int firstBorder;
+        private final int endBorder;
+        private final int bandHeight;
+        private final int nRows;
+
+        BorderAction(int firstBorder, int endBorder, int bandHeight, int nRows) {
+            this.firstBorder = firstBorder;
+            this.endBorder = endBorder;
+            this.bandHeight = bandHeight;
+            this.nRows = nRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (endBorder - firstBorder > 1) {
+                final int mid = (firstBorder + endBorder) / 2;
+                invokeAll(new BorderAction(firstBorder, mid, bandHeight, nRows),
+                        new BorderAction(mid, endBorder, bandHeight, nRows));
+                return;
+            }
+            if (isCancelled()) {
+                return;
+            }
+            final int borderRow = firstBorder * bandHeight;
+            for (Stage stage : stages) {
+                if (stage.halo > 0) {
+                    final int r0 = Math.max(0, borderRow - stage.halo);
+                    final int r1 = Math.min(nRows, borderRow + stage.halo);
+                    stage.op.operate(stage.src, stage.dst, r0, r1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pauses while the job is preempted by an interactive job, and then
+     * tests whether the execution context has been cancelled.
+     *
+     * @return True if no more bands should be processed.
+     */
+    private boolean isCancelled() {
+        final ExecutionContext context = executionContext;
+        if (context == null) {
+            return false;
+        }
+        context.pauseWhilePreempted();
+        return context.isCancelled();
+    }
+
+    /**
+     * Returns the pool executing the pipeline.
+     *
+     * @return The pool of this pipeline, or the pool of the execution context,
+     * or the pool shared by all operators if this pipeline has no pool of its
+     * own and no execution context.
+     */
+    public ForkJoinPool getPool() {
+        if (pool != null) {
+            return pool;
+        }
+        return executionContext == null
+                ? ThreadedGridOperator.getSharedPool() : executionContext.getPool();
+    }
+
+    /**
+     * Sets the pool executing the pipeline.
+     *
+     * @param pool The pool or null to use the pool shared by all operators.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the execution context of the job running the pipeline. If the
+     * context is cancelled, the destination grids are only partially
+     * computed.
+     *
+     * @param executionContext The context or null.
+     */
+    public void setExecutionContext(ExecutionContext executionContext) {
+        this.executionContext = executionContext;
+    }
+}
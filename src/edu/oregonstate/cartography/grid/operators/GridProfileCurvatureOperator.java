@@ -1,13 +1,15 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * From: Wilson, J. P. and Gallant, J. C. (2000). Terrain Analysis - Principles
  * and Applications. Wiley. Pages 52-57.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
-public class GridProfileCurvatureOperator implements GridOperator {
+public class GridProfileCurvatureOperator extends ThreadedGridOperator
+        implements TileOperator {
 
     private int filterSize = 3;
     
@@ -100,66 +102,81 @@ public class GridProfileCurvatureOperator implements GridOperator {
         
     }
 */   
+    @Override
     public String getName() {
         return "Profile Curvature";
     }
 
-    public Grid operate(Grid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();
-        }
-        
+    @Override
+    protected void operate(Grid src, Grid dst, int startRow, int endRow) {
+        operate(src, dst, startRow, endRow, 0, src.getCols());
+    }
+
+    @Override
+    public void operate(Grid geoGrid, Grid newGrid, int startRow, int endRow,
+            int startCol, int endCol) {
         final int halfFilterSize = filterSize / 2;
         
         final int cols = geoGrid.getCols();
         final int rows = geoGrid.getRows();
         final double cellSize = geoGrid.getCellSize();
-        Grid newGrid = new Grid(cols, rows, cellSize);
-        newGrid.setWest(geoGrid.getWest());
-        newGrid.setSouth(geoGrid.getSouth());
         
         final float inverseDoubleMeshSize = (float)(1d / (2d * cellSize));
         final float inverseSquareMeshSize = (float)(1d / (cellSize * cellSize));
   
         // top rows
-        for (int row = 0; row < halfFilterSize; row++) {
-            for (int col = 0; col < cols; col++) {
+        for (int row = startRow; row < Math.min(halfFilterSize, endRow); row++) {
+            for (int col = startCol; col < endCol; col++) {
                 this.operateBorder(geoGrid, newGrid, col, row, cellSize);
             }
         }
         // bottom rows
-        for (int row = rows - halfFilterSize; row < rows; row++) {
-            for (int col = 0; col < cols; col++) {
+        for (int row = Math.max(rows - halfFilterSize, startRow); row < endRow; row++) {
+            for (int col = startCol; col < endCol; col++) {
                 this.operateBorder(geoGrid, newGrid, col, row, cellSize);
             }
         }
+        startRow = Math.max(halfFilterSize, startRow);
+        endRow = Math.min(rows - halfFilterSize, endRow);
         // left columns
-        for (int col = 0; col < halfFilterSize; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
+        for (int col = startCol; col < Math.min(halfFilterSize, endCol); col++) {
+            for (int row = startRow; row < endRow; row++) {
                 this.operateBorder(geoGrid, newGrid, col, row, cellSize);
             }
         }
         // right columns
-        for (int col = cols - halfFilterSize; col < cols; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
+        for (int col = Math.max(cols - halfFilterSize, startCol); col < endCol; col++) {
+            for (int row = startRow; row < endRow; row++) {
                 this.operateBorder(geoGrid, newGrid, col, row, cellSize);
             }
         }
+        startCol = Math.max(halfFilterSize, startCol);
+        endCol = Math.min(cols - halfFilterSize, endCol);
         // interior of grid
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-        for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
+        final GridRow topRow = geoGrid.rowView();
+        final GridRow centerRow = geoGrid.rowView();
+        final GridRow bottomRow = geoGrid.rowView();
+        final GridRow dstRow = newGrid.rowView();
+        for (int row = startRow; row < endRow; row++) {
+            final float[] top = topRow.moveTo(row - halfFilterSize).array();
+            final float[] center = centerRow.moveTo(row).array();
+            final float[] bottom = bottomRow.moveTo(row + halfFilterSize).array();
+            final float[] dst = dstRow.moveTo(row).array();
+            final int t = topRow.offset();
+            final int c = centerRow.offset();
+            final int b = bottomRow.offset();
+            final int d = dstRow.offset();
+            for (int col = startCol; col < endCol; col++) {
                 
-                final float z1 = srcGrid[row-halfFilterSize][col+halfFilterSize]; // top right
-                final float z2 = srcGrid[row][col+halfFilterSize]; // right
-                final float z3 = srcGrid[row+halfFilterSize][col+halfFilterSize]; // bottom right
-                final float z4 = srcGrid[row+halfFilterSize][col]; // bottom
-                final float z5 = srcGrid[row+halfFilterSize][col-halfFilterSize]; // bottom left
-                final float z6 = srcGrid[row][col-halfFilterSize]; // left
-                final float z7 = srcGrid[row-halfFilterSize][col-halfFilterSize]; // top left
-                final float z8 = srcGrid[row-halfFilterSize][col]; // top
-                final float z9 = srcGrid[row][col]; // center
+                final float z1 = top[t + col + halfFilterSize]; // top right
+                final float z2 = center[c + col + halfFilterSize]; // right
+                final float z3 = bottom[b + col + halfFilterSize]; // bottom right
+                final float z4 = bottom[b + col]; // bottom
+                final float z5 = bottom[b + col - halfFilterSize]; // bottom left
+                final float z6 = center[c + col - halfFilterSize]; // left
+                final float z7 = top[t + col - halfFilterSize]; // top left
+                final float z8 = top[t + col]; // top
+                final float z9 = center[c + col]; // center
                 
                 final float zx = (z2 - z6) * inverseDoubleMeshSize;
                 final float zy = (z8 - z4) * inverseDoubleMeshSize;
@@ -171,13 +188,35 @@ public class GridProfileCurvatureOperator implements GridOperator {
                 
                 final float divider = (float)(p * q * Math.sqrt(q));
                 if (divider != 0) {
-                    dstGrid[row][col] = (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
+                    dst[d + col] = (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
                 }
                 
             }
+            dstRow.store();
         }
-        
-        return newGrid;
+    }
+
+    /**
+     * Tiles are processed for very wide grids, such that the rows read for a
+     * row remain in the CPU cache.
+     *
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The number of columns of a tile.
+     */
+    @Override
+    public int getTileColumns(Grid src, Grid dst) {
+        return cacheTileColumns(filterSize, 1);
+    }
+
+    /**
+     * Cells are computed from the cells around them.
+     *
+     * @return False
+     */
+    @Override
+    public boolean isOverwritingSupported() {
+        return false;
     }
     
     private void operateBorder(Grid src, Grid dst, int col, int row, double cellSize) {
@@ -187,9 +226,6 @@ public class GridProfileCurvatureOperator implements GridOperator {
         final float inverseDoubleMeshSize = (float) (1 / (2 * cellSize));
         final float inverseSquareMeshSize = (float) (1 / (cellSize * cellSize));
 
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
-        
         final int cols = src.getCols();
         final int rows = src.getRows();
 
@@ -198,15 +234,15 @@ public class GridProfileCurvatureOperator implements GridOperator {
         final int cm = col - halfFilterSize < 0 ? 0 : col - halfFilterSize;
         final int cp = col + halfFilterSize >= cols ? cols - halfFilterSize : col + halfFilterSize;
         
-        final float z1 = srcGrid[rm][cp]; // top right
-        final float z2 = srcGrid[row][cp]; // right
-        final float z3 = srcGrid[rp][cp]; // bottom right
-        final float z4 = srcGrid[rp][col]; // bottom
-        final float z5 = srcGrid[rp][cm]; // bottom left
-        final float z6 = srcGrid[row][cm]; // left
-        final float z7 = srcGrid[rm][cm]; // top left
-        final float z8 = srcGrid[rm][col]; // top
-        final float z9 = srcGrid[row][col]; // center
+        final float z1 = src.getValue(cp, rm); // top right
+        final float z2 = src.getValue(cp, row); // right
+        final float z3 = src.getValue(cp, rp); // bottom right
+        final float z4 = src.getValue(col, rp); // bottom
+        final float z5 = src.getValue(cm, rp); // bottom left
+        final float z6 = src.getValue(cm, row); // left
+        final float z7 = src.getValue(cm, rm); // top left
+        final float z8 = src.getValue(col, rm); // top
+        final float z9 = src.getValue(col, row); // center
 
         final float zx = (z2 - z6) * inverseDoubleMeshSize;
         final float zy = (z8 - z4) * inverseDoubleMeshSize;
@@ -218,7 +254,7 @@ public class GridProfileCurvatureOperator implements GridOperator {
 
         final float divider = (float) (p * q * Math.sqrt(q));
         if (divider != 0) {
-            dstGrid[row][col] = (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
+            dst.setValue((zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100, col, row);
         }
     }
 
@@ -7,6 +7,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 import java.util.Arrays;
 
 /**
@@ -25,6 +26,12 @@ public class GridScaleToRangeOperator extends ThreadedGridOperator {
      * accelerate computations.
      */
     private float srcMin, srcMax;
+
+    /**
+     * If true, srcMin and srcMax have been set with setSourceRange and are
+     * not computed from the source grid.
+     */
+    private boolean hasSourceRange = false;
     
     /**
      * Creates a new instance of GridScaleToRangeOperator
@@ -42,18 +49,25 @@ public class GridScaleToRangeOperator extends ThreadedGridOperator {
     }
 
     @Override
-    public Grid operate(Grid src, Grid dst) {
+    protected void prepare(Grid src, Grid dst) {
+        if (hasSourceRange) {
+            return;
+        }
         final float[] minMax = src.getMinMax();
         srcMin = minMax[0];
         srcMax = minMax[1];
-        return super.operate(src, dst);
+    }
+
+    @Override
+    public int getHaloRows() {
+        return 0;
     }
 
     @Override
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
 
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        final GridRow srcRow = src.rowView();
+        final GridRow dstRow = dst.rowView();
         final int nCols = src.getCols();
 
         final float srcRange = srcMax - srcMin;
@@ -61,16 +75,21 @@ public class GridScaleToRangeOperator extends ThreadedGridOperator {
         if (srcRange <= 0 || dstRange <= 0) {
             // set everything in dst to the new minimum
             for (int row = startRow; row < endRow; ++row) {
-                Arrays.fill(dstGrid[row], dstMin);
+                dstRow.moveTo(row);
+                Arrays.fill(dstRow.array(), dstRow.offset(), dstRow.offset() + nCols, dstMin);
+                dstRow.store();
             }
         } else {
             final float f = dstRange / srcRange;
             for (int row = startRow; row < endRow; ++row) {
-                float[] srcRow = srcGrid[row];
-                float[] dstRow = dstGrid[row];
+                final float[] srcArray = srcRow.moveTo(row).array();
+                final float[] dstArray = dstRow.moveTo(row).array();
+                final int srcOffset = srcRow.offset();
+                final int dstOffset = dstRow.offset();
                 for (int col = 0; col < nCols; ++col) {
-                    dstRow[col] = (srcRow[col] - srcMin) * f + dstMin;
+                    dstArray[dstOffset + col] = (srcArray[srcOffset + col] - srcMin) * f + dstMin;
                 }
+                dstRow.store();
             }
         }
     }
@@ -101,6 +120,23 @@ public class GridScaleToRangeOperator extends ThreadedGridOperator {
         this.dstMax = minMax[1];
     }
 
+    /**
+     * Sets the values that are scaled to the new minimum and maximum. By
+     * default, the minimum and maximum of the source grid are used. A range
+     * is set when a part of a grid is scaled with the range of the entire
+     * grid.
+     *
+     * @param minMax The values that are mapped to the new minimum and
+     * maximum, or null to use the minimum and maximum of the source grid.
+     */
+    public void setSourceRange(float[] minMax) {
+        hasSourceRange = minMax != null;
+        if (hasSourceRange) {
+            srcMin = minMax[0];
+            srcMax = minMax[1];
+        }
+    }
+
     @Override
     public String getName() {
         return "Scale To Range";
@@ -1,28 +1,122 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * Compute slope as rise/run in [0..1]
  * @author Bernhard Jenny, Oregon State University
  */
-public class GridSlopeOperator extends ThreadedGridOperator {
-    
+public class GridSlopeOperator extends ThreadedGridOperator
+        implements TileOperator {
+
     public GridSlopeOperator() {
     }
-   
+
     @Override
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
-        float[][] dstGrid = dst.getGrid();
+        operate(src, dst, startRow, endRow, 0, src.getCols());
+    }
+
+    @Override
+    public void operate(Grid src, Grid dst, int startRow, int endRow,
+            int startCol, int endCol) {
         final int nCols = src.getCols();
+        final int nRows = src.getRows();
+        final double cellSizeTimes8 = 8d * src.getCellSize();
+        final GridRow topRow = src.rowView();
+        final GridRow centerRow = src.rowView();
+        final GridRow bottomRow = src.rowView();
+        final GridRow dstRow = dst.rowView();
+
         for (int row = startRow; row < endRow; ++row) {
-            float[] dstRow = dstGrid[row];
-            for (int col = 0; col < nCols; ++col) {
-                dstRow[col] = (float)src.getSlope(col, row);
+            // border rows are repeated, same as Grid.getSlope()
+            final float[] top = topRow.moveTo(Math.max(0, row - 1)).array();
+            final float[] center = centerRow.moveTo(row).array();
+            final float[] bottom = bottomRow.moveTo(Math.min(nRows - 1, row + 1)).array();
+            final float[] dstArray = dstRow.moveTo(row).array();
+            final int t = topRow.offset();
+            final int c = centerRow.offset();
+            final int b = bottomRow.offset();
+            final int d = dstRow.offset();
+
+            // border columns are repeated as well
+            if (startCol == 0) {
+                dstArray[d] = slope(top, t, center, c, bottom, b,
+                        0, 0, 1, cellSizeTimes8);
+            }
+            final int col1 = Math.min(endCol, nCols - 1);
+            for (int col = Math.max(1, startCol); col < col1; ++col) {
+                dstArray[d + col] = slope(top, t, center, c, bottom, b,
+                        col - 1, col, col + 1, cellSizeTimes8);
             }
+            if (endCol == nCols) {
+                dstArray[d + nCols - 1] = slope(top, t, center, c, bottom, b,
+                        nCols - 2, nCols - 1, nCols - 1, cellSizeTimes8);
+            }
+            dstRow.store();
         }
     }
 
+    /**
+     * Computes the slope for a cell from its 3x3 neighborhood. Identical to
+     * Grid.getSlope(), but accesses row arrays directly.
+     *
+     * @param top Array with the values of the row above.
+     * @param topOffset Offset of the row above in top.
+     * @param center Array with the values of the central row.
+     * @param centerOffset Offset of the central row in center.
+     * @param bottom Array with the values of the row below.
+     * @param bottomOffset Offset of the row below in bottom.
+     * @param colLeft Column to the left.
+     * @param col Central column.
+     * @param colRight Column to the right.
+     * @param cellSizeTimes8 Cell size multiplied by 8.
+     * @return Slope in [0..1].
+     */
+    private static float slope(float[] top, int topOffset,
+            float[] center, int centerOffset,
+            float[] bottom, int bottomOffset,
+            int colLeft, int col, int colRight,
+            double cellSizeTimes8) {
+        final double a = top[topOffset + colLeft];
+        final double b = top[topOffset + col];
+        final double c = top[topOffset + colRight];
+        final double d = center[centerOffset + colLeft];
+
+        final double f = center[centerOffset + colRight];
+        final double g = bottom[bottomOffset + colLeft];
+        final double h = bottom[bottomOffset + col];
+        final double i = bottom[bottomOffset + colRight];
+
+        final double dZdX = ((c + (2 * f) + i) - (a + (2 * d) + g)) / cellSizeTimes8;
+        final double dZdY = ((g + (2 * h) + i) - (a + (2 * b) + c)) / cellSizeTimes8;
+        return (float) Math.sqrt((dZdX * dZdX) + (dZdY * dZdY));
+    }
+
+    /**
+     * The rows above and below a row are read to compute the row.
+     *
+     * @return 1
+     */
+    @Override
+    public int getHaloRows() {
+        return 1;
+    }
+
+    /**
+     * Tiles are processed for very wide grids, such that the three rows read
+     * for a row remain in the CPU cache.
+     *
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The number of columns of a tile.
+     */
+    @Override
+    public int getTileColumns(Grid src, Grid dst) {
+        return cacheTileColumns(3, 1);
+    }
+
     @Override
     public String getName() {
         return "Slope";
@@ -1,6 +1,8 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridPool;
+import edu.oregonstate.cartography.grid.GridRow;
 import edu.oregonstate.cartography.grid.LaplacianPyramid;
 
 // FIXME filter is square instead of circular
@@ -13,7 +15,8 @@ import edu.oregonstate.cartography.grid.LaplacianPyramid;
  *
  * @author Bernhard Jenny, Oregon State University
  */
-public final class GridStandardDeviationOperator extends ThreadedGridOperator {
+public final class GridStandardDeviationOperator extends ThreadedGridOperator
+        implements TileOperator {
 
     private static final int FILTER_SIZE_SCALE = 16;
 
@@ -21,6 +24,12 @@ public final class GridStandardDeviationOperator extends ThreadedGridOperator {
 
     private LaplacianPyramid laplacianPyramid;
 
+    /**
+     * High-pass band extracted from the Laplacian pyramid. Computed once before
+     * the rows are processed.
+     */
+    private Grid highPassGrid;
+
     private GridStandardDeviationOperator() {
     }
 
@@ -38,8 +47,30 @@ public final class GridStandardDeviationOperator extends ThreadedGridOperator {
         return "Local Standard Deviation Estimation";
     }
 
+    @Override
+    protected void prepare(Grid src, Grid dst) {
+        // extract high-pass band from Laplacian pyramid
+        float[] weights = laplacianPyramid.createConstantWeights(0);
+        for (int i = 0; i < Math.min(levels, weights.length); i++) {
+            weights[i] = 1;
+        }
+        highPassGrid = laplacianPyramid.sumLevels(weights, true);
+    }
+
+    @Override
+    protected void finish(Grid src, Grid dst) {
+        GridPool.SHARED.release(highPassGrid);
+        highPassGrid = null;
+    }
+
     @Override
     protected void operate(Grid src, Grid dst, int startRow, int endRow) {
+        operate(src, dst, startRow, endRow, 0, src.getCols());
+    }
+
+    @Override
+    public void operate(Grid src, Grid dst, int startRow, int endRow,
+            int startCol, int endCol) {
         if (src == null) {
             throw new IllegalArgumentException();
         }
@@ -51,28 +82,20 @@ public final class GridStandardDeviationOperator extends ThreadedGridOperator {
         final int cols = src.getCols();
         final int rows = src.getRows();
 
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
-
-        // extract high-pass band from Laplacian pyramid
-        float[] weights = laplacianPyramid.createConstantWeights(0);
-        for (int i = 0; i < Math.min(levels, weights.length); i++) {
-            weights[i] = 1;
-        }
-        Grid highPassGrid = laplacianPyramid.sumLevels(weights, true);
+        final Grid highPassGrid = this.highPassGrid;
 
         // FIXME the following code does not work if the filter size is larger
         // than the grid
         
         // top rows
-        for (int row = startRow; row < halfFilterSize; row++) {
-            for (int col = 0; col < cols; col++) {
+        for (int row = startRow; row < Math.min(halfFilterSize, endRow); row++) {
+            for (int col = startCol; col < endCol; col++) {
                 operateBorder(src, dst, col, row, highPassGrid);
             }
         }
         // bottom rows
-        for (int row = rows - halfFilterSize; row < endRow; row++) {
-            for (int col = 0; col < cols; col++) {
+        for (int row = Math.max(rows - halfFilterSize, startRow); row < endRow; row++) {
+            for (int col = startCol; col < endCol; col++) {
                 operateBorder(src, dst, col, row, highPassGrid);
             }
         }
@@ -81,51 +104,75 @@ public final class GridStandardDeviationOperator extends ThreadedGridOperator {
         endRow = Math.min(src.getRows() - halfFilterSize, endRow);
 
         // left columns
-        for (int col = 0; col < halfFilterSize; col++) {
+        for (int col = startCol; col < Math.min(halfFilterSize, endCol); col++) {
             for (int row = startRow; row < endRow; row++) {
                 operateBorder(src, dst, col, row, highPassGrid);
             }
         }
         // right columns
-        for (int col = cols - halfFilterSize; col < cols; col++) {
+        for (int col = Math.max(cols - halfFilterSize, startCol); col < endCol; col++) {
             for (int row = startRow; row < endRow; row++) {
                 operateBorder(src, dst, col, row, highPassGrid);
             }
         }
 
+        startCol = Math.max(halfFilterSize, startCol);
+        endCol = Math.min(cols - halfFilterSize, endCol);
+
         // interior of grid
         // FIXME adjust npts to number of NaNs
         final float npts = filterSize * filterSize;      
 
+        // one view for each row of the filter window
+        final GridRow[] windowRows = new GridRow[filterSize];
+        for (int i = 0; i < filterSize; i++) {
+            windowRows[i] = highPassGrid.rowView();
+        }
+        final GridRow dstRow = dst.rowView();
         for (int row = startRow; row < endRow; row++) {
-            float[] dstRow = dstGrid[row];
-            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
+            for (int i = 0; i < filterSize; i++) {
+                windowRows[i].moveTo(row - halfFilterSize + i);
+            }
+            final float[] dstArray = dstRow.moveTo(row).array();
+            final int dstOffset = dstRow.offset();
+            for (int col = startCol; col < endCol; col++) {
                 float sqDif = 0;
-                for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
-                    float[] srcRow = srcGrid[r];
+                for (GridRow windowRow : windowRows) {
+                    final float[] difArray = windowRow.array();
+                    final int offset = windowRow.offset();
                     for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
-                        // FIXME avoid function call
-                        float dif = highPassGrid.getValue(c, r);
+                        float dif = difArray[offset + c];
                         // FIXME test for NaN
                         // FIXME apply weighting with Gaussian bell
                         sqDif += dif * dif;
                     }
                 }
                 float std = (float) Math.sqrt(sqDif / npts);
-                dstRow[col] = std;
+                dstArray[dstOffset + col] = std;
             }
+            dstRow.store();
         }
     }
 
+    /**
+     * Tiles are processed such that the rows of the filter window remain in
+     * the CPU cache.
+     *
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The number of columns of a tile.
+     */
+    @Override
+    public int getTileColumns(Grid src, Grid dst) {
+        return cacheTileColumns(filterSize(), 1);
+    }
+
     private void operateBorder(Grid src, Grid dst, int col, int row, Grid highPassGrid) {
 
         // make sure filterSize is odd number
         final int filterSize = filterSize();
         final int halfFilterSize = filterSize / 2;
 
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
-
         final int cols = src.getCols();
         final int rows = src.getRows();
 
@@ -134,10 +181,9 @@ public final class GridStandardDeviationOperator extends ThreadedGridOperator {
         float sqDif = 0;
         for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
             if (r > 0 && r < rows) {
-                float[] srcRow = srcGrid[r];
                 for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
                     if (c > 0 && c < cols) {
-                        final float v = srcRow[c];
+                        final float v = src.getValue(c, r);
                         if (!Float.isNaN(v)) {
                             float dif = highPassGrid.getValue(c, r);
                             sqDif += dif * dif;
@@ -147,6 +193,6 @@ public final class GridStandardDeviationOperator extends ThreadedGridOperator {
             }
         }
         float std = (float) Math.sqrt(sqDif / npts);
-        dstGrid[row][col] = std;
+        dst.setValue(std, col, row);
     }
 }
@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridPool;
 import edu.oregonstate.cartography.gui.ProgressIndicator;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
@@ -16,8 +17,6 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
     // anti-aliasing width is half a cell size
     private final double AA_DIST_PX = 0.5;
 
-    // a progress indicator for communicating progress and for checking for cancel events
-    private ProgressIndicator progress = null;
     // this image will receive the computed contour lines
     private BufferedImage image;
     // illuminated and shaded or only shaded contours
@@ -119,17 +118,61 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
      * grid.
      * @param grid Grid with elevation values.
      * @param slopeGrid Grid with slope values.
-     * @param progress Progress indicator. Not used when scale is 1.
+     * @param progress Progress indicator informed about progress and checked
+     * for cancellation. Can be null.
      */
     public void renderToImage(BufferedImage destinationImage, Grid grid, Grid slopeGrid, ProgressIndicator progress) {
+        Grid smooth = createSmoothGrid(grid, progress);
+        try {
+            renderToImage(destinationImage, grid, slopeGrid, smooth, progress);
+        } finally {
+            GridPool.SHARED.release(smooth);
+        }
+    }
+
+    /**
+     * Renders contours to the passed image with a smoothed grid created by
+     * createSmoothGrid(), for example a smoothed grid kept from a previous
+     * rendering.
+     *
+     * @param destinationImage Image must be this.scale times larger than the
+     * grid.
+     * @param grid Grid with elevation values.
+     * @param slopeGrid Grid with slope values.
+     * @param smoothGrid Grid smoothed with createSmoothGrid().
+     * @param progress Progress indicator informed about progress and checked
+     * for cancellation. Can be null.
+     */
+    public void renderToImage(BufferedImage destinationImage, Grid grid,
+            Grid slopeGrid, Grid smoothGrid, ProgressIndicator progress) {
         if (destinationImage == null) {
             throw new IllegalArgumentException();
         }
         this.image = destinationImage;
-        this.progress = progress;
         this.imageBuffer = ((DataBufferInt) (image.getRaster().getDataBuffer())).getData();
-        this.smoothGrid = new GridGaussLowPassOperator(aspectGaussBlur).operate(grid);
-        super.operate(grid, slopeGrid);
+        setProgressIndicator(progress);
+        this.smoothGrid = smoothGrid;
+        try {
+            super.operate(grid, slopeGrid);
+        } finally {
+            this.smoothGrid = null;
+        }
+    }
+
+    /**
+     * Smoothes a grid with a Gaussian blur filter to compute the aspect of
+     * contour lines.
+     *
+     * @param grid Grid with elevation values.
+     * @param progress Progress indicator informed about progress and checked
+     * for cancellation. Can be null.
+     * @return The smoothed grid, taken from the shared GridPool.
+     */
+    public Grid createSmoothGrid(Grid grid, ProgressIndicator progress) {
+        GridGaussLowPassOperator gaussOp = new GridGaussLowPassOperator(aspectGaussBlur);
+        gaussOp.setProgressIndicator(progress);
+        gaussOp.setExecutionContext(getExecutionContext());
+        return gaussOp.operate(grid);
     }
 
     /**
@@ -154,22 +197,7 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
                 }
             }
         } else {
-            // only report progress if this is the first chunk of the image
-            // all chunks are the same size, but are rendered in different threads.
-            boolean reportProgress = startRow == 1 && progress != null;
-
             for (int row = startRow; row < endRow; row++) {
-                // stop rendering if the user canceled
-                if (progress != null && progress.isCancelled()) {
-                    return;
-                }
-
-                // report progress made
-                if (reportProgress) {
-                    int percentage = Math.round(100f * row / (endRow - startRow));
-                    progress.progress(percentage);
-                }
-
                 // destination has different size than source grid.
                 for (int col = 1; col < cols - 1; col++) {
                     scaledIlluminatedContours(src, col, row, slopeGrid, scale);
@@ -236,6 +264,16 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
         }
     }
 
+    /**
+     * The grids are not changed.
+     *
+     * @return False
+     */
+    @Override
+    protected boolean isDestinationModified() {
+        return false;
+    }
+
     @Override
     public String getName() {
         return "Illuminated Contours";
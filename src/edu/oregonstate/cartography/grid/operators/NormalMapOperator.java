@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 
@@ -161,84 +162,81 @@ public class NormalMapOperator extends ThreadedGridOperator {
     /**
      * Computes a normal vector and encodes the vector in an ARGB color. Uses 4
      * neighboring cells to compute the normal vector.
-     * @param grid The grid with elevation values.
+     * @param top View on the row above the cell.
+     * @param center View on the row of the cell.
+     * @param bottom View on the row below the cell.
      * @param col Column of cell.
-     * @param row Row of cell.
      * @param nCols Number of columns in grid.
      * @param nRows Number of rows in grid.
      * @param nz Z component of the normal vector.
      * @return ARGB color with encoded normal vector. The alpha component is always 255.
      */
-    private int normalARGB_4Neighbors(float[][] grid, int col, int row, int nCols, int nRows, double nz) {
+    private int normalARGB_4Neighbors(GridRow top, GridRow center, GridRow bottom,
+            int col, int nCols, int nRows, double nz) {
+        final int row = center.getRow();
         if (row == 0) {
             // top-left corner
             if (col == 0) {
-                final double s = grid[1][0];
-                final double e = grid[0][1];
-                final double c = grid[0][0];
+                final double s = bottom.get(0);
+                final double e = center.get(1);
+                final double c = center.get(0);
                 return normalARGB(2 * (e - c), 2 * (s - c), nz);
             }
 
             // top-right corner
             if (col == nCols - 1) {
-                final double s = grid[1][nCols - 1];
-                final double w = grid[0][nCols - 2];
-                final double c = grid[0][nCols - 1];
+                final double s = bottom.get(nCols - 1);
+                final double w = center.get(nCols - 2);
+                final double c = center.get(nCols - 1);
                 return normalARGB(2 * (w - c), 2 * (s - c), nz);
             }
 
             // somewhere in top row
-            final double s = grid[1][col];
-            final double e = grid[0][col + 1];
-            final double c = grid[0][col];
-            final double w = grid[0][col - 1];
+            final double s = bottom.get(col);
+            final double e = center.get(col + 1);
+            final double c = center.get(col);
+            final double w = center.get(col - 1);
             return normalARGB(w - e, 2 * (s - c), nz);
         }
 
         if (row == nRows - 1) {
             // bottom-left corner
             if (col == 0) {
-                final double n = grid[nRows - 2][0];
-                final double e = grid[nRows - 1][1];
-                final double c = grid[nRows - 1][0];
+                final double n = top.get(0);
+                final double e = center.get(1);
+                final double c = center.get(0);
                 return normalARGB(2 * (c - e), 2 * (c - n), nz);
             }
 
             // bottom-right corner
             if (col == nCols - 1) {
-                final double n = grid[nRows - 2][nCols - 1];
-                final double w = grid[nRows - 1][nCols - 2];
-                final double c = grid[nRows - 1][nCols - 1];
+                final double n = top.get(nCols - 1);
+                final double w = center.get(nCols - 2);
+                final double c = center.get(nCols - 1);
                 return normalARGB(2 * (w - c), 2 * (c - n), nz);
             }
 
             // center of bottom row
-            final double n = grid[nRows - 2][col];
-            final double e = grid[nRows - 1][col + 1];
-            final double c = grid[nRows - 1][col];
-            final double w = grid[nRows - 1][col - 1];
+            final double n = top.get(col);
+            final double e = center.get(col + 1);
+            final double c = center.get(col);
+            final double w = center.get(col - 1);
             return normalARGB(w - e, 2 * (c - n), nz);
         }
 
         if (col == 0) {
-            final float[] topR = grid[row - 1];
-            final float[] ctrR = grid[row];
-            final float[] btmR = grid[row + 1];
-            return normalARGB(2 * (ctrR[0] - ctrR[1]), btmR[0] - topR[0], nz);
+            return normalARGB(2 * (center.get(0) - center.get(1)),
+                    bottom.get(0) - top.get(0), nz);
         }
 
         if (col == nCols - 1) {
-            final float[] topR = grid[row - 1];
-            final float[] ctrR = grid[row];
-            final float[] btmR = grid[row + 1];
-            return normalARGB(2 * (ctrR[nCols - 2] - ctrR[nCols - 1]),
-                    btmR[nCols - 1] - topR[nCols - 1], nz);
+            return normalARGB(2 * (center.get(nCols - 2) - center.get(nCols - 1)),
+                    bottom.get(nCols - 1) - top.get(nCols - 1), nz);
         }
 
         // normal vector on vertex
-        final float[] centerRow = grid[row];
-        final double nx = centerRow[col - 1] - centerRow[col + 1];
-        final double ny = grid[row + 1][col] - grid[row - 1][col];
+        final double nx = center.get(col - 1) - center.get(col + 1);
+        final double ny = bottom.get(col) - top.get(col);
         return normalARGB(nx, ny, nz);
     }
 
@@ -252,7 +250,9 @@ public class NormalMapOperator extends ThreadedGridOperator {
      */
     @Override
     protected void operate(Grid grid, Grid ignore, int startRow, int endRow) {
-        float[][] g = grid.getGrid();
+        final GridRow top = grid.rowView();
+        final GridRow center = grid.rowView();
+        final GridRow bottom = grid.rowView();
         final int nCols = dstImage.getWidth();
         final int nRows = dstImage.getHeight();
         final int[] imageBuffer = ((DataBufferInt) (dstImage.getRaster().getDataBuffer())).getData();
@@ -268,12 +268,26 @@ public class NormalMapOperator extends ThreadedGridOperator {
         double nz = 2 * cellSize / vertExaggeration;
         
         for (int row = startRow; row < endRow; ++row) {
+            // rows outside of the grid are replaced by the border row
+            top.moveTo(Math.max(0, row - 1));
+            center.moveTo(row);
+            bottom.moveTo(Math.min(nRows - 1, row + 1));
             for (int col = 0; col < nCols; ++col) {
-                imageBuffer[row * nCols + col] = normalARGB_4Neighbors(g, col, row, nCols, nRows, nz);
+                imageBuffer[row * nCols + col] = normalARGB_4Neighbors(top, center, bottom, col, nCols, nRows, nz);
             }
         }
     }
 
+    /**
+     * The grids are not changed.
+     *
+     * @return False
+     */
+    @Override
+    protected boolean isDestinationModified() {
+        return false;
+    }
+
     @Override
     public String getName() {
         return "Normal Map";
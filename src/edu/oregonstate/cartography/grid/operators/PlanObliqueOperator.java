@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridPool;
 
 /**
  *
@@ -48,7 +49,8 @@ public class PlanObliqueOperator implements GridOperator {
         }
 
         // init sheared grid
-        Grid shearedGrid = new Grid(nCols, nRows, grid.getCellSize());
+        Grid shearedGrid = GridPool.SHARED.acquire(nCols, nRows,
+                grid.getCellSize(), grid.getStorageFactory());
         shearedGrid.setSouth(grid.getSouth());
         shearedGrid.setWest(grid.getWest());
 
@@ -2,13 +2,15 @@ package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.app.Vector3D;
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridRow;
 
 /**
  * This operator computes shaded relief from a terrain model.
  *
  * @author Charles Preppernau and Bernie Jenny, Oregon State University
  */
-public class ShaderOperator extends ThreadedGridOperator {
+public class ShaderOperator extends ThreadedGridOperator
+        implements TileOperator {
 
     /**
      * Vertical exaggeration factor applied to terrain values before computing a
@@ -44,6 +46,22 @@ public class ShaderOperator extends ThreadedGridOperator {
      */
     @Override
     protected void operate(Grid src, Grid dst, int startRow, int endRow) {
+        operate(src, dst, startRow, endRow, 0, src.getCols());
+    }
+
+    /**
+     * Compute a shading for a tile of the grid.
+     *
+     * @param src Source grid
+     * @param dst Destination grid
+     * @param startRow First row.
+     * @param endRow First row of next tile.
+     * @param startCol First column.
+     * @param endCol First column of next tile.
+     */
+    @Override
+    public void operate(Grid src, Grid dst, int startRow, int endRow,
+            int startCol, int endCol) {
         int nCols = src.getCols();
         int nRows = src.getRows();
 
@@ -64,123 +82,146 @@ public class ShaderOperator extends ThreadedGridOperator {
         final double nz = 2 * cellSize / vertExaggeration;
         final double nz_sq = nz * nz;
 
-        final float[][] dstGrid = dst.getGrid();
-        final float[][] srcGrid = src.getGrid();
+        final GridRow top = src.rowView();
+        final GridRow center = src.rowView();
+        final GridRow bottom = src.rowView();
+        final GridRow dstRow = dst.rowView();
+
+        // columns of the tile that are not on the left or right border
+        final int col0 = Math.max(1, startCol);
+        final int col1 = Math.min(nCols - 1, endCol);
 
         // top row
         if (startRow == 0) {
-            for (int col = 1; col < nCols - 1; col++) {
-                final double s = srcGrid[1][col];
-                final double e = srcGrid[0][col + 1];
-                final double c = srcGrid[0][col];
-                final double w = srcGrid[0][col - 1];
+            final GridRow srcRow0 = src.rowView().moveTo(0);
+            final GridRow srcRow1 = src.rowView().moveTo(1);
+            final GridRow dstRow0 = dst.rowView().moveTo(0);
+            for (int col = col0; col < col1; col++) {
+                final double s = srcRow1.get(col);
+                final double e = srcRow0.get(col + 1);
+                final double c = srcRow0.get(col);
+                final double w = srcRow0.get(col - 1);
                 final double nx = w - e;
                 final double ny = 2 * (s - c);
                 final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-                dstGrid[0][col] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstRow0.set((float) ((dotProduct + 1) / 2 * 255.0D), col);
             }
             // top-left corner
-            {
-                final double s = srcGrid[1][0];
-                final double e = srcGrid[0][1];
-                final double c = srcGrid[0][0];
+            if (startCol == 0) {
+                final double s = srcRow1.get(0);
+                final double e = srcRow0.get(1);
+                final double c = srcRow0.get(0);
                 final double nx = 2 * (e - c);
                 final double ny = 2 * (s - c);
                 final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-                dstGrid[0][0] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstRow0.set((float) ((dotProduct + 1) / 2 * 255.0D), 0);
             }
             // top-right corner
-            {
-                final double s = srcGrid[1][nCols - 1];
-                final double w = srcGrid[0][nCols - 2];
-                final double c = srcGrid[0][nCols - 1];
+            if (endCol == nCols) {
+                final double s = srcRow1.get(nCols - 1);
+                final double w = srcRow0.get(nCols - 2);
+                final double c = srcRow0.get(nCols - 1);
                 final double nx = 2 * (w - c);
                 final double ny = 2 * (s - c);
                 final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-                dstGrid[0][nCols - 1] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstRow0.set((float) ((dotProduct + 1) / 2 * 255.0D), nCols - 1);
             }
+            dstRow0.store();
         }
         startRow = Math.max(1, startRow);
 
         // bottom row
         if (endRow == nRows) {
-            for (int col = 1; col < nCols - 1; col++) {
-                final double n = srcGrid[nRows - 2][col];
-                final double e = srcGrid[nRows - 1][col + 1];
-                final double c = srcGrid[nRows - 1][col];
-                final double w = srcGrid[nRows - 1][col - 1];
+            final GridRow srcRowN2 = src.rowView().moveTo(nRows - 2);
+            final GridRow srcRowN1 = src.rowView().moveTo(nRows - 1);
+            final GridRow dstRowN1 = dst.rowView().moveTo(nRows - 1);
+            for (int col = col0; col < col1; col++) {
+                final double n = srcRowN2.get(col);
+                final double e = srcRowN1.get(col + 1);
+                final double c = srcRowN1.get(col);
+                final double w = srcRowN1.get(col - 1);
                 final double nx = w - e;
                 final double ny = 2 * (c - n);
                 final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-                dstGrid[nRows - 1][col] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstRowN1.set((float) ((dotProduct + 1) / 2 * 255.0D), col);
             }
             // bottom-left corner
-            {
-                final double n = srcGrid[nRows - 2][0];
-                final double e = srcGrid[nRows - 1][1];
-                final double c = srcGrid[nRows - 1][0];
+            if (startCol == 0) {
+                final double n = srcRowN2.get(0);
+                final double e = srcRowN1.get(1);
+                final double c = srcRowN1.get(0);
                 final double nx = 2 * (c - e);
                 final double ny = 2 * (c - n);
                 final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-                dstGrid[nRows - 1][0] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstRowN1.set((float) ((dotProduct + 1) / 2 * 255.0D), 0);
             }
             // bottom-right corner
-            {
-                final double n = srcGrid[nRows - 2][nCols - 1];
-                final double w = srcGrid[nRows - 1][nCols - 2];
-                final double c = srcGrid[nRows - 1][nCols - 1];
+            if (endCol == nCols) {
+                final double n = srcRowN2.get(nCols - 1);
+                final double w = srcRowN1.get(nCols - 2);
+                final double c = srcRowN1.get(nCols - 1);
                 final double nx = 2 * (w - c);
                 final double ny = 2 * (c - n);
                 final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-                dstGrid[nRows - 1][nCols - 1] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstRowN1.set((float) ((dotProduct + 1) / 2 * 255.0D), nCols - 1);
             }
+            dstRowN1.store();
         }
         endRow = Math.min(endRow, nRows - 1);
 
-        // left column
+        // interior of grid
         for (int row = startRow; row < endRow; ++row) {
-            final double s = srcGrid[row + 1][0];
-            final double e = srcGrid[row][0 + 1];
-            final double c = srcGrid[row][0];
-            final double n = srcGrid[row - 1][0];
-            final double nx = 2 * (c - e);
-            final double ny = s - n;
-            final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
-            final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-            dstGrid[row][0] = (float) ((dotProduct + 1) / 2 * 255.0D);
-        }
+            top.moveTo(row - 1);
+            center.moveTo(row);
+            bottom.moveTo(row + 1);
+            dstRow.moveTo(row);
 
-        // right column
-        for (int row = startRow; row < endRow; ++row) {
-            final double s = srcGrid[row + 1][nCols - 1];
-            final double c = srcGrid[row][nCols - 1];
-            final double n = srcGrid[row - 1][nCols - 1];
-            final double w = srcGrid[row][nCols - 2];
-            final double nx = 2 * (w - c);
-            final double ny = s - n;
-            final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
-            final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
-            dstGrid[row][nCols - 1] = (float) ((dotProduct + 1) / 2 * 255.0D);
-        }
+            // left column
+            if (startCol == 0) {
+                final double s = bottom.get(0);
+                final double e = center.get(1);
+                final double c = center.get(0);
+                final double n = top.get(0);
+                final double nx = 2 * (c - e);
+                final double ny = s - n;
+                final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
+                final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
+                dstRow.set((float) ((dotProduct + 1) / 2 * 255.0D), 0);
+            }
 
-        // interior of grid
-        for (int row = startRow; row < endRow; ++row) {
-            final float[] dstRow = dstGrid[row];
-            final float[] topRow = srcGrid[row - 1];
-            final float[] centralRow = srcGrid[row];
-            final float[] bottomRow = srcGrid[row + 1];
-            for (int col = 1; col < nCols - 1; col++) {
+            // right column
+            if (endCol == nCols) {
+                final double s = bottom.get(nCols - 1);
+                final double c = center.get(nCols - 1);
+                final double n = top.get(nCols - 1);
+                final double w = center.get(nCols - 2);
+                final double nx = 2 * (w - c);
+                final double ny = s - n;
+                final double nL = Math.sqrt(nx * nx + ny * ny + nz_sq);
+                final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
+                dstRow.set((float) ((dotProduct + 1) / 2 * 255.0D), nCols - 1);
+            }
+
+            final float[] dstArray = dstRow.array();
+            final float[] topArray = top.array();
+            final float[] centralArray = center.array();
+            final float[] bottomArray = bottom.array();
+            final int dstOffset = dstRow.offset();
+            final int topOffset = top.offset();
+            final int centralOffset = center.offset();
+            final int bottomOffset = bottom.offset();
+            for (int col = col0; col < col1; col++) {
                 // get height values of four neighboring points
-                final double s = bottomRow[col];
-                final double e = centralRow[col + 1];
-                final double n = topRow[col];
-                final double w = centralRow[col - 1];
+                final double s = bottomArray[bottomOffset + col];
+                final double e = centralArray[centralOffset + col + 1];
+                final double n = topArray[topOffset + col];
+                final double w = centralArray[centralOffset + col - 1];
 
                 // normal vector on vertex
                 final double nx = w - e;
@@ -193,11 +234,35 @@ public class ShaderOperator extends ThreadedGridOperator {
                 final double dotProduct = (nx * lx + ny * ly + nz * lz) / nL;
 
                 // scale dot product from [-1, +1] to a gray value in [0, 255]
-                dstRow[col] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                dstArray[dstOffset + col] = (float) ((dotProduct + 1) / 2 * 255.0D);
             }
+            dstRow.store();
         }
     }
 
+    /**
+     * The rows above and below a row are read to compute the row.
+     *
+     * @return 1
+     */
+    @Override
+    public int getHaloRows() {
+        return 1;
+    }
+
+    /**
+     * Tiles are processed for very wide grids, such that the three rows read
+     * for a row remain in the CPU cache.
+     *
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The number of columns of a tile.
+     */
+    @Override
+    public int getTileColumns(Grid src, Grid dst) {
+        return cacheTileColumns(3, 1);
+    }
+
     @Override
     public String getName() {
         return "Shading";
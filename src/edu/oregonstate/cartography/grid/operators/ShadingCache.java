@@ -0,0 +1,97 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import edu.oregonstate.cartography.grid.Grid;
+
+/**
+ * Keeps the shading computed by ColorizerOperator for a grid, such that the
+ * grid can be colored again without computing the shading when only colors
+ * change. The shading is identified by the grid object, its modification
+ * count and cell size, and the illumination parameters. The modification
+ * count changes with every Grid.setValue() and Grid.modified(), so code
+ * writing to a grid with a GridRow must call Grid.modified() for the cache
+ * to detect the change. Only the shading of the last grid is kept.
+ *
+ * The shading grid is replaced and never changed after it has been added to
+ * the cache, such that it can be read while another shading is computed.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class ShadingCache {
+
+    // the grid that was shaded, its modification count and cell size
+    private Grid grid;
+    private long modificationCount;
+    private double cellSize;
+
+    // the illumination of the shading
+    private double azimuth;
+    private double zenith;
+    private double ambientLight;
+    private float vertExaggeration;
+
+    // the gray values between 0 and 255 of the shading, NaN for void cells
+    private Grid shading;
+
+    public ShadingCache() {
+    }
+
+    /**
+     * Returns the shading of a grid.
+     *
+     * @param grid The shaded grid.
+     * @param azimuth Azimuth angle of illumination.
+     * @param zenith Zenith angle of illumination.
+     * @param ambientLight Ambient light added to shading.
+     * @param vertExaggeration Vertical exaggeration factor.
+     * @return The shading, or null if the cache does not contain a shading
+     * of the grid with these parameters.
+     */
+    synchronized Grid get(Grid grid, double azimuth, double zenith,
+            double ambientLight, float vertExaggeration) {
+        if (shading == null
+                || grid != this.grid
+                || grid.getModificationCount() != modificationCount
+                || grid.getCellSize() != cellSize
+                || azimuth != this.azimuth
+                || zenith != this.zenith
+                || ambientLight != this.ambientLight
+                || vertExaggeration != this.vertExaggeration) {
+            return null;
+        }
+        return shading;
+    }
+
+    /**
+     * Adds the shading of a grid, replacing the shading in the cache.
+     *
+     * @param grid The shaded grid.
+     * @param modificationCount The modification count of the grid when the
+     * shading was computed.
+     * @param azimuth Azimuth angle of illumination.
+     * @param zenith Zenith angle of illumination.
+     * @param ambientLight Ambient light added to shading.
+     * @param vertExaggeration Vertical exaggeration factor.
+     * @param shading The shading. Must not be changed afterwards.
+     */
+    synchronized void put(Grid grid, long modificationCount, double azimuth,
+            double zenith, double ambientLight, float vertExaggeration,
+            Grid shading) {
+        this.grid = grid;
+        this.modificationCount = modificationCount;
+        this.cellSize = grid.getCellSize();
+        this.azimuth = azimuth;
+        this.zenith = zenith;
+        this.ambientLight = ambientLight;
+        this.vertExaggeration = vertExaggeration;
+        this.shading = shading;
+    }
+
+    /**
+     * Removes the shading from the cache.
+     */
+    public synchronized void clear() {
+        grid = null;
+        shading = null;
+    }
+}
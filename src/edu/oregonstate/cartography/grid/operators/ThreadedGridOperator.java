@@ -1,17 +1,160 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
-import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import edu.oregonstate.cartography.grid.GridPool;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A base class for multi-threaded grid operators. Allocates as many threads
- * for operating on the grid as CPU cores are available.
+ * A base class for multi-threaded grid operators. The rows of the grid are
+ * processed in bands by the threads of a fork/join pool. By default, all
+ * operators share a pool with as many threads as CPU cores are available.
+ * If a progress indicator is set, the rows completed by all threads are
+ * reported to the indicator, and all threads stop processing rows when the
+ * indicator is cancelled. An execution context can be set to run the operator
+ * with the thread budget, priority and cancellation token of a job.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
 public abstract class ThreadedGridOperator implements GridOperator {
 
+    /**
+     * The minimum number of rows in a band processed by a single task.
+     */
+    private static final int MIN_BAND_HEIGHT = 8;
+
+    /**
+     * The number of bands per thread of the pool. More bands than threads
+     * allow idle threads to steal work from busy threads.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * The number of rows processed between two tests for cancellation when
+     * a progress indicator or an execution context is set.
+     */
+    private static final int PROGRESS_BLOCK_HEIGHT = 16;
+
+    /**
+     * The minimum time between two progress reports in nanoseconds.
+     */
+    private static final long MIN_PROGRESS_INTERVAL = 50000000L;
+
+    /**
+     * The number of bytes of the CPU cache that a tile's neighborhood should
+     * fit into. Most CPUs have at least 256 KB of second level cache per core.
+     */
+    private static final long TILE_CACHE_BYTES = 256 * 1024;
+
+    /**
+     * The minimum number of columns of a tile.
+     */
+    private static final int MIN_TILE_COLUMNS = 64;
+
+    /**
+     * The pool shared by all operators without their own pool.
+     */
+    private static ForkJoinPool sharedPool = new ForkJoinPool();
+
+    /**
+     * The pool of this operator or null if the shared pool is used.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Progress indicator informed about completed rows and checked for
+     * cancellation. Can be null.
+     */
+    private ProgressIndicator progressIndicator;
+
+    /**
+     * The context of the job executing this operator. Can be null.
+     */
+    private ExecutionContext executionContext;
+
+    /**
+     * Returns the pool shared by all operators that have no pool of their 
+     * own.
+     * @return The shared pool.
+     */
+    public static synchronized ForkJoinPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Sets the pool shared by all operators that have no pool of their own.
+     * The previous shared pool is not shut down.
+     * @param pool The new shared pool.
+     */
+    public static synchronized void setSharedPool(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool is null");
+        }
+        sharedPool = pool;
+    }
+
+    /**
+     * Returns the pool executing this operator.
+     * @return The pool of this operator, or the pool of the execution 
+     * context, or the shared pool if this operator has no pool of its own
+     * and no execution context.
+     */
+    public ForkJoinPool getPool() {
+        if (pool != null) {
+            return pool;
+        }
+        return executionContext == null ? getSharedPool() : executionContext.getPool();
+    }
+
+    /**
+     * Sets the pool executing this operator, for example to share a pool
+     * with a limited number of threads between several renderings.
+     * @param pool The pool or null to use the shared pool.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the progress indicator of this operator.
+     * @return The progress indicator or null.
+     */
+    public ProgressIndicator getProgressIndicator() {
+        return progressIndicator;
+    }
+
+    /**
+     * Sets a progress indicator. The operator reports the percentage of
+     * processed rows to the indicator, and stops processing rows when the
+     * indicator is cancelled. The destination grid is then only partially
+     * computed.
+     * @param progressIndicator The progress indicator or null.
+     */
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
+    /**
+     * Returns the execution context of this operator.
+     * @return The execution context or null.
+     */
+    public ExecutionContext getExecutionContext() {
+        return executionContext;
+    }
+
+    /**
+     * Sets the execution context of the job running this operator. The 
+     * operator is executed by the pool of the context, pauses while
+     * interactive jobs are running if the context has background priority,
+     * and stops processing rows when the context is cancelled.
+     * @param executionContext The context or null.
+     */
+    public void setExecutionContext(ExecutionContext executionContext) {
+        this.executionContext = executionContext;
+    }
+
     /**
      * Operate row-wise on the passed source grid and store the result in the passed 
      * destination grid. The source and the destination can be the same object
@@ -24,6 +167,20 @@ public abstract class ThreadedGridOperator implements GridOperator {
      */
     protected abstract void operate(Grid src, Grid dst, int startRow, int endRow);
 
+    /**
+     * Returns the number of columns of a tile such that the rows read for
+     * a row of the tile fit into the cache of a CPU core. Used by operators
+     * implementing TileOperator.
+     * @param windowRows The number of rows read for computing a row.
+     * @param gridCount The number of grids read.
+     * @return The number of columns, a multiple of 64.
+     */
+    protected static int cacheTileColumns(int windowRows, int gridCount) {
+        long bytesPerColumn = 4L * Math.max(1, windowRows) * Math.max(1, gridCount);
+        int cols = (int) Math.min(Integer.MAX_VALUE, TILE_CACHE_BYTES / bytesPerColumn);
+        return Math.max(MIN_TILE_COLUMNS, cols / MIN_TILE_COLUMNS * MIN_TILE_COLUMNS);
+    }
+
     /**
      * Returns whether the source and destination grids can be the same object.
      * Defaults to true, that is, the source grid can be overwritten. Needs to
@@ -35,9 +192,53 @@ public abstract class ThreadedGridOperator implements GridOperator {
         return true;
     }
     
+    /**
+     * Returns the number of rows above and below a row that are read from the
+     * source grid to compute the row in the destination grid. Used by
+     * GridPipeline to process multiple operators band by band. Defaults to -1,
+     * that is, the number of rows is unknown and the operator cannot be
+     * combined with other operators in a pipeline. Operators computing a cell
+     * from the source cell at the same position return 0.
+     * @return The number of rows above and below a row, or -1.
+     */
+    public int getHaloRows() {
+        return -1;
+    }
+
+    /**
+     * Called before rows are processed. Operators can override this method to
+     * compute values needed for all rows, for example the range of the source
+     * grid.
+     * @param src The source grid.
+     * @param dst The destination grid.
+     */
+    protected void prepare(Grid src, Grid dst) {
+    }
+
+    /**
+     * Called after all rows have been processed, also if processing failed. 
+     * Operators can override this method to release data computed by prepare().
+     * @param src The source grid.
+     * @param dst The destination grid.
+     */
+    protected void finish(Grid src, Grid dst) {
+    }
+
+    /**
+     * Returns whether the operator changes the values of the destination
+     * grid. Defaults to true. Operators that only read grids, for example to
+     * render an image, return false, such that statistics and void masks
+     * cached by the destination grid remain valid.
+     * @return True if the values of the destination grid change.
+     */
+    protected boolean isDestinationModified() {
+        return true;
+    }
+
     /**
      * Creates a new grid that will store the results of the operator. This
-     * method creates a new grid of the same size as the source grid. It must be
+     * method takes a grid of the same size as the source grid with all values
+     * set to 0 from the shared GridPool. It must be
      * overridden if the derived operator generates a grid that has a different
      * dimension or position than the source grid.
      * @param src The source grid.
@@ -50,7 +251,8 @@ public abstract class ThreadedGridOperator implements GridOperator {
         
         int nrows = src.getRows();
         int ncols = src.getCols();
-        Grid newGrid = new Grid(ncols, nrows, src.getCellSize());
+        Grid newGrid = GridPool.SHARED.acquire(ncols, nrows, src.getCellSize(),
+                src.getStorageFactory());
         newGrid.setWest(src.getWest());
         newGrid.setSouth(src.getSouth());
         return newGrid;
@@ -81,58 +283,264 @@ public abstract class ThreadedGridOperator implements GridOperator {
         if (dst == null || !dst.isWellFormed()) {
             throw new IllegalArgumentException(getName() + ": invalid destination grid");
         }
-        if (!isOverwritingSupported() && src.getGrid() == dst.getGrid()) {
+        if (!isOverwritingSupported() && src == dst) {
             throw new IllegalArgumentException(getName() + ": overwriting source grid is not possible");
         }
         
+        // Rows are recursively split into bands, which are processed by the
+        // threads of a fork/join pool. Idle threads steal bands from busy 
+        // threads, which balances uneven costs per row. Tiled grids are
+        // split into bands that are one tile high, such that the tiles of 
+        // all threads fit into the tile cache. Stencil operators access rows
+        // above and below a band in the neighboring tiles.
         int nRows = src.getRows();
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        ArrayList<GridOperatorThread> threads = new ArrayList(nThreads);
-        int rowChunk = (nRows / nThreads) + 1;
-        for (int i = 0; i < nThreads; i++) {
-            int startRow = i * rowChunk;
-            int endRow = Math.min(nRows, startRow + rowChunk);
-            GridOperatorThread t = new GridOperatorThread(src, dst, startRow, endRow);
-            t.setName(this.getName() + " " + i);
-            threads.add(t);
-            t.start();
-        }
-
-        for (Thread t : threads) {
+        ForkJoinPool pool = getPool();
+        int tileSize = Math.max(src.getTileSize(), dst.getTileSize());
+        int bandHeight;
+        if (tileSize > 0) {
+            bandHeight = tileSize;
+        } else {
+            bandHeight = Math.max(MIN_BAND_HEIGHT,
+                    nRows / (pool.getParallelism() * BANDS_PER_THREAD));
+        }
+
+        // Operators implementing TileOperator process the bands in tiles,
+        // such that the rows of the neighborhood remain in the CPU cache
+        // while a tile is processed. Only grids with all values in one
+        // array are processed in tiles; other grids copy entire rows.
+        int nCols = src.getCols();
+        int tileColumns = 0;
+        if (this instanceof TileOperator && src.hasArray() && dst.hasArray()) {
+            tileColumns = ((TileOperator) this).getTileColumns(src, dst);
+            if (tileColumns >= nCols) {
+                tileColumns = 0;
+            }
+        }
+
+        ExecutionContext context = executionContext;
+        Progress progress = null;
+        if (progressIndicator != null || context != null) {
+            progress = new Progress(progressIndicator, context, (long) nRows * nCols);
+        }
+        Job job = new Job(src, dst, bandHeight, tileSize > 0, tileColumns, progress);
+        if (context != null) {
+            context.begin();
+        }
+        try {
+            prepare(src, dst);
             try {
-                t.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ThreadedGridOperator.class.getName()).log(Level.SEVERE, null, ex);
+                pool.invoke(new BlockTask(job, 0, nRows, 0, nCols));
+            } finally {
+                finish(src, dst);
+            }
+        } finally {
+            if (context != null) {
+                context.end();
             }
         }
 
+        if (isDestinationModified()) {
+            dst.modified();
+        }
+
         return dst;
     }
 
     /**
-     * A private utility class for wrapping a thread.
+     * Counts the cells completed by all threads, reports the progress, and
+     * tests whether the progress indicator or the execution context has been
+     * cancelled.
+     */
+    private static final class Progress {
+
+        private final ProgressIndicator indicator;
+        private final ExecutionContext context;
+        private final long totalCells;
+        private final AtomicLong completedCells = new AtomicLong();
+        private final AtomicInteger reportedPercentage = new AtomicInteger();
+        private volatile long lastReportTime = System.nanoTime();
+        private volatile boolean cancelled;
+
+        Progress(ProgressIndicator indicator, ExecutionContext context,
+                long totalCells) {
+            this.indicator = indicator;
+            this.context = context;
+            this.totalCells = totalCells;
+        }
+
+        /**
+         * Returns whether the progress indicator or the execution context
+         * has been cancelled.
+         * @return True if processing should stop.
+         */
+        boolean isCancelled() {
+            if (!cancelled) {
+                cancelled = (indicator != null && indicator.isCancelled())
+                        || (context != null && context.isCancelled());
+            }
+            return cancelled;
+        }
+
+        /**
+         * Called before a block of rows is processed. Pauses while the job is
+         * preempted by an interactive job, and then tests for cancellation.
+         * @return True if processing should stop.
+         */
+        boolean beforeBlock() {
+            if (context != null) {
+                context.pauseWhilePreempted();
+            }
+            return isCancelled();
+        }
+
+        /**
+         * Adds completed cells and reports the progress. Only one thread
+         * reports a new percentage, and percentages are reported at most once
+         * per MIN_PROGRESS_INTERVAL, except for the completion.
+         * @param cells The number of completed cells.
+         */
+        void completed(long cells) {
+            if (indicator == null) {
+                return;
+            }
+            long done = completedCells.addAndGet(cells);
+            int percentage = (int) (100 * done / totalCells);
+            int reported = reportedPercentage.get();
+            if (percentage <= reported) {
+                return;
+            }
+            long time = System.nanoTime();
+            if (percentage < 100 && time - lastReportTime < MIN_PROGRESS_INTERVAL) {
+                return;
+            }
+            if (reportedPercentage.compareAndSet(reported, percentage)) {
+                lastReportTime = time;
+                if (!indicator.progress(percentage)) {
+                    cancelled = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The grids and the parameters shared by all tasks of one run of the
+     * operator.
      */
-    private class GridOperatorThread extends Thread {
+    private static final class Job {
 
         final Grid srcGrid;
         final Grid dstGrid;
-        final int startRow;
-        final int endRow;
 
-        public GridOperatorThread(Grid srcGrid,
-                Grid dstGrid,
-                int startRow,
-                int endRow) {
+        /**
+         * The maximum number of rows processed without splitting.
+         */
+        final int bandHeight;
 
+        /**
+         * If true, bands are split at multiples of bandHeight.
+         */
+        final boolean aligned;
+
+        /**
+         * The number of columns of a tile, or 0 if entire rows are processed.
+         */
+        final int tileColumns;
+
+        /**
+         * Counts completed cells. Can be null.
+         */
+        final Progress progress;
+
+        Job(Grid srcGrid, Grid dstGrid, int bandHeight, boolean aligned,
+                int tileColumns, Progress progress) {
             this.srcGrid = srcGrid;
             this.dstGrid = dstGrid;
+            this.bandHeight = bandHeight;
+            this.aligned = aligned;
+            this.tileColumns = tileColumns;
+            this.progress = progress;
+        }
+    }
+
+    /**
+     * A task operating on a band of rows. Bands higher than the band height
+     * are split into two tasks. If the operator processes tiles, bands are
+     * then split into tiles.
+     */
+    private class BlockTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Job job;
+        final int startRow;
+        final int endRow;
+        final int startCol;
+        final int endCol;
+
+        /**
+         * Creates a new task.
+         *
+         * @param job The grids and parameters.
+         * @param startRow The first row.
+         * @param endRow The first row after the band.
+         * @param startCol The first column.
+         * @param endCol The first column after the band.
+         */
+        BlockTask(Job job, int startRow, int endRow, int startCol, int endCol) {
+            this.job = job;
             this.startRow = startRow;
             this.endRow = endRow;
+            this.startCol = startCol;
+            this.endCol = endCol;
         }
 
         @Override
-        public void run() {
-            operate(srcGrid, dstGrid, startRow, endRow);
+        protected void compute() {
+            final Progress progress = job.progress;
+            if (progress != null && progress.isCancelled()) {
+                return;
+            }
+            final int nRows = endRow - startRow;
+            if (nRows > job.bandHeight) {
+                int splitRow = startRow + nRows / 2;
+                if (job.aligned) {
+                    splitRow = startRow + Math.max(1, nRows / 2 / job.bandHeight) * job.bandHeight;
+                }
+                invokeAll(new BlockTask(job, startRow, splitRow, startCol, endCol),
+                        new BlockTask(job, splitRow, endRow, startCol, endCol));
+                return;
+            }
+            final int nCols = endCol - startCol;
+            if (job.tileColumns > 0 && nCols > job.tileColumns) {
+                final int splitCol = startCol
+                        + Math.max(1, nCols / 2 / job.tileColumns) * job.tileColumns;
+                invokeAll(new BlockTask(job, startRow, endRow, startCol, splitCol),
+                        new BlockTask(job, startRow, endRow, splitCol, endCol));
+                return;
+            }
+            if (progress == null) {
+                operateBlock(startRow, endRow);
+                return;
+            }
+            // process the block in groups of rows, and stop when the 
+            // progress indicator or the execution context is cancelled
+            for (int r = startRow; r < endRow; r += PROGRESS_BLOCK_HEIGHT) {
+                if (progress.beforeBlock()) {
+                    return;
+                }
+                int blockEndRow = Math.min(endRow, r + PROGRESS_BLOCK_HEIGHT);
+                operateBlock(r, blockEndRow);
+                progress.completed((long) (blockEndRow - r) * nCols);
+            }
+        }
+
+        private void operateBlock(int r0, int r1) {
+            if (job.tileColumns > 0) {
+                ((TileOperator) ThreadedGridOperator.this).operate(job.srcGrid,
+                        job.dstGrid, r0, r1, startCol, endCol);
+            } else {
+                operate(job.srcGrid, job.dstGrid, r0, r1);
+            }
         }
     }
 }
@@ -0,0 +1,37 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import edu.oregonstate.cartography.grid.Grid;
+
+/**
+ * A ThreadedGridOperator that can process tiles instead of entire rows.
+ * Operators reading a large neighborhood for each cell implement this
+ * interface, such that the neighborhood remains in the CPU cache while the
+ * rows of a tile are processed. ThreadedGridOperator only splits bands into
+ * tiles for operators implementing this interface.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public interface TileOperator {
+
+    /**
+     * Returns the number of columns of a tile.
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The number of columns of a tile, or 0 to process entire rows.
+     */
+    public int getTileColumns(Grid src, Grid dst);
+
+    /**
+     * Operate on a tile of the passed source grid and store the result in the
+     * passed destination grid.
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @param startRow The index of the first row to operate on.
+     * @param endRow The index of the row after the last row of the tile.
+     * @param startCol The index of the first column to operate on.
+     * @param endCol The index of the column after the last column of the tile.
+     */
+    public void operate(Grid src, Grid dst, int startRow, int endRow,
+            int startCol, int endCol);
+}
@@ -9,6 +9,7 @@ import edu.oregonstate.cartography.geometryimport.ShapeImporter;
 import edu.oregonstate.cartography.grid.ESRIASCIIGridExporter;
 import edu.oregonstate.cartography.grid.EsriASCIIGridReader;
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridStorage;
 import edu.oregonstate.cartography.grid.Model;
 import edu.oregonstate.cartography.grid.Model.ForegroundVisualization;
 import edu.oregonstate.cartography.grid.WorldFileExporter;
@@ -29,6 +30,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -1173,8 +1175,9 @@ public class MainWindow extends javax.swing.JFrame {
             @Override
             protected Void doInBackground() throws Exception {
                 start();
-                //import the DEM and create pyramids
-                Grid grid = EsriASCIIGridReader.read(filePath, this);
+                //import the DEM and create pyramids. Large grids are stored
+                //in memory-mapped files outside of the heap.
+                Grid grid = EsriASCIIGridReader.read(filePath, this, GridStorage.AUTOMATIC);
                 this.setIndeterminate(true);
                 this.setCancellable(false);
                 model.setGrid(grid);
@@ -1257,6 +1260,25 @@ public class MainWindow extends javax.swing.JFrame {
         return navigableImagePanel.getImage();
     }
 
+    /**
+     * Returns the part of the display image that is visible.
+     *
+     * @return The bounds in pixels of the display image, or null.
+     */
+    public Rectangle getVisibleImageBounds() {
+        return navigableImagePanel.getVisibleImageBounds();
+    }
+
+    /**
+     * Returns the scale of the display image on the screen.
+     *
+     * @return The number of screen pixels per pixel of the display image, or
+     * 0 if the image has not been displayed yet.
+     */
+    public double getImageScale() {
+        return navigableImagePanel.getImageScale();
+    }
+
     void setPreferredImageSize(Dimension dimension) {
         navigableImagePanel.setPreferredSize(dimension);
     }
@@ -766,6 +766,31 @@ public class NavigableImagePanel extends JPanel {
         repaint();
     }
 
+    /**
+     * <p>
+     * Gets the part of the image that is currently displayed in the panel.</p>
+     *
+     * @return the bounds of the displayed part in image coordinates, or null
+     * if no image has been displayed yet or the image is outside the panel.
+     */
+    public Rectangle getVisibleImageBounds() {
+        if (image == null || scale == 0.0) {
+            return null;
+        }
+        return getImageClipBounds();
+    }
+
+    /**
+     * <p>
+     * Gets the scale of the displayed image.</p>
+     *
+     * @return the number of screen pixels per image pixel, or 0 if no image
+     * has been displayed yet.
+     */
+    public double getImageScale() {
+        return image == null ? 0.0 : scale;
+    }
+
     //Gets the bounds of the image area currently displayed in the panel (in image
     //coordinates).
     private Rectangle getImageClipBounds() {
@@ -18,7 +18,9 @@ import edu.oregonstate.cartography.gui.bivariate.BivariateColorRenderer;
 import java.awt.CardLayout;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.ItemEvent;
 import java.awt.image.BufferedImage;
@@ -36,6 +38,7 @@ import javax.swing.JLabel;
 import javax.swing.JMenuItem;
 import javax.swing.JRootPane;
 import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeListener;
 
 /**
@@ -56,11 +59,20 @@ public class SettingsPanel extends javax.swing.JPanel {
         private final BufferedImage backgroundImage;
         private final BufferedImage foregroundImage;
 
+        // pyramid level and region in grid cells of the preview that is
+        // rendered before the full resolution images, or null if no preview
+        // is rendered
+        private final int previewLevel;
+        private final Rectangle previewRegion;
+
         protected Renderer(BufferedImage backgroundImage,
-                BufferedImage foregroundImage, ProgressPanel progressPanel) {
+                BufferedImage foregroundImage, int previewLevel,
+                Rectangle previewRegion, ProgressPanel progressPanel) {
             super(progressPanel);
             this.backgroundImage = backgroundImage;
             this.foregroundImage = foregroundImage;
+            this.previewLevel = previewLevel;
+            this.previewRegion = previewRegion;
             this.setIndeterminate(false);
             this.setCancellable(false);
             this.removeMessageField();
@@ -70,11 +82,62 @@ public class SettingsPanel extends javax.swing.JPanel {
         public Void doInBackground() {
             // initialize the progress dialog
             start();
-            model.renderBackgroundImage(backgroundImage, this);
-            model.renderForegroundImage(foregroundImage, this);
+            if (previewRegion != null) {
+                // the progress bar only reports the full resolution rendering
+                final Model.Preview preview = model.renderPreview(previewLevel,
+                        previewRegion, 1, null, null);
+                if (preview != null && !isCancelled()) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            showPreview(preview);
+                        }
+                    });
+                }
+            }
+            model.renderImages(backgroundImage, foregroundImage, this, null);
             return null;
         }
 
+        /**
+         * Copies a preview into the visible part of the display image. The
+         * preview is replaced by the full resolution images when rendering is
+         * done. Must be called from the event dispatching thread.
+         *
+         * @param preview The preview to show.
+         */
+        private void showPreview(Model.Preview preview) {
+            MainWindow mainWindow = getOwnerWindow();
+            if (isDone() || mainWindow == null) {
+                return;
+            }
+            BufferedImage displayImage = mainWindow.getImage();
+            Grid grid = model.getGeneralizedGrid();
+            if (displayImage == null || grid == null) {
+                return;
+            }
+            int displayScale = displayImage.getWidth() / grid.getCols();
+            Rectangle r = preview.bounds;
+            Graphics2D g = displayImage.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                int x = r.x * displayScale;
+                int y = r.y * displayScale;
+                int w = r.width * displayScale;
+                int h = r.height * displayScale;
+                g.setColor(Color.WHITE);
+                g.fillRect(x, y, w, h);
+                g.drawImage(preview.backgroundImage, x, y, w, h, null);
+                if (preview.foregroundImage != null) {
+                    g.drawImage(preview.foregroundImage, x, y, w, h, null);
+                }
+            } finally {
+                g.dispose();
+            }
+            mainWindow.repaintImage();
+        }
+
         @Override
         protected void done() {
             Graphics g = null;
@@ -242,8 +305,42 @@ public class SettingsPanel extends javax.swing.JPanel {
             int foregroundScale = (renderSpeed == FAST ? 1 : 2);
             BufferedImage foregroundImage = model.createDestinationImage(foregroundScale);
 
+            // find the visible part of the grid and the pyramid level that
+            // approximately matches the resolution on screen, such that a
+            // preview can be shown before the full resolution image is ready
+            Rectangle previewRegion = null;
+            int previewLevel = 0;
+            Grid grid = model.getGeneralizedGrid();
+            BufferedImage displayImage = mainWindow.getImage();
+            Rectangle visibleBounds = mainWindow.getVisibleImageBounds();
+            double imageScale = mainWindow.getImageScale();
+            if (grid != null && displayImage != null && visibleBounds != null
+                    && imageScale > 0) {
+                int cols = grid.getCols();
+                int rows = grid.getRows();
+                int displayScale = displayImage.getWidth() / cols;
+                if (displayScale > 0
+                        && displayImage.getWidth() == cols * displayScale
+                        && displayImage.getHeight() == rows * displayScale) {
+                    // number of grid cells per screen pixel
+                    double cellsPerPixel = 1. / (displayScale * imageScale);
+                    previewLevel = Math.max(0, (int) Math.floor(Math.log(cellsPerPixel) / Math.log(2)));
+                    int x0 = (int) Math.floor(visibleBounds.getMinX() / displayScale);
+                    int y0 = (int) Math.floor(visibleBounds.getMinY() / displayScale);
+                    int x1 = (int) Math.ceil(visibleBounds.getMaxX() / displayScale);
+                    int y1 = (int) Math.ceil(visibleBounds.getMaxY() / displayScale);
+                    Rectangle region = new Rectangle(x0, y0, x1 - x0, y1 - y0)
+                            .intersection(new Rectangle(0, 0, cols, rows));
+                    boolean isFullGrid = region.width == cols && region.height == rows;
+                    if (!region.isEmpty() && (previewLevel > 0 || !isFullGrid)) {
+                        previewRegion = region;
+                    }
+                }
+            }
+
             // create a new renderer and run it
-            renderer = new Renderer(backgroundImage, foregroundImage, progressPanel);
+            renderer = new Renderer(backgroundImage, foregroundImage,
+                    previewLevel, previewRegion, progressPanel);
             renderer.execute();
         } catch (Throwable e) {
             String msg = "<html>An error occured when rendering the terrain.</html>";